@@ -23,6 +23,7 @@ import android.view.LayoutInflater;
 import android.view.ViewGroup;
 
 import com.android.example.spline.databinding.LayoutLayerRowBinding;
+import com.android.example.spline.model.ChangeBus;
 import com.android.example.spline.model.Layer;
 import com.android.example.spline.model.LayerGroup;
 import com.android.example.spline.viewmodel.LayerRowCallbacks;
@@ -46,46 +47,30 @@ public class LayerListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHold
     private LayerRowCallbacks mLayerRowCallbacks;
     private LayerGroup mRoot;
     private ObservableList<Layer> mTwirledDownLayers;
-    private ObservableList.OnListChangedCallback<ObservableList<Layer>> mOnListChangedCallback;
+    private ChangeBus mChangeBus;
+    private ChangeBus.Listener mChangeListener;
     private InverseBindingListener mCurrentLayerAttrChangedListener;
 
     public LayerListAdapter() {
 
-        mOnListChangedCallback = new ObservableList
-                .OnListChangedCallback<ObservableList<Layer>>() {
+        mChangeListener = new ChangeBus.Listener() {
             @Override
-            public void onChanged(ObservableList<Layer> layers) {
-
-            }
-
-            @Override
-            public void onItemRangeChanged(ObservableList<Layer> layers, int i, int i1) {
-
-            }
-
-            @Override
-            public void onItemRangeInserted(ObservableList<Layer> layers, int start, int count) {
-                addListChangedCallbacks(layers, start, start + count);
-
-                for (int i = start; i < start + count; i++) {
-                    addLayer(layers.get(i));
-                }
-            }
-
-            @Override
-            public void onItemRangeMoved(ObservableList<Layer> layers, int i, int i1, int i2) {
-
-            }
-
-            @Override
-            public void onItemRangeRemoved(ObservableList<Layer> layers, int start, int count) {
-                // Because we don't know which item(s) were removed, we have to
-                // reconstruct it ourselves
-                Set<Layer> currentTwirled = new HashSet<Layer>(getTwirledDownLayersForGroup(mRoot));
-                Set<Layer> oldTwirled = new HashSet<Layer>(mTwirledDownLayers);
-                oldTwirled.removeAll(currentTwirled);
-                for (Layer l : oldTwirled) {
-                    removeLayer(l);
+            public void onLayersChanged(List<ChangeBus.Change> changes) {
+                for (int i = 0; i < changes.size(); i++) {
+                    ChangeBus.Change change = changes.get(i);
+                    if (change.hasChanged(ChangeBus.CHANGE_ADDED)) {
+                        addLayer(change.getLayer());
+                    } else if (change.hasChanged(ChangeBus.CHANGE_REMOVED)) {
+                        // The removed layer's descendants leave the list too, so reconstruct which
+                        // rows went away
+                        Set<Layer> currentTwirled =
+                                new HashSet<Layer>(getTwirledDownLayersForGroup(mRoot));
+                        Set<Layer> oldTwirled = new HashSet<Layer>(mTwirledDownLayers);
+                        oldTwirled.removeAll(currentTwirled);
+                        for (Layer l : oldTwirled) {
+                            removeLayer(l);
+                        }
+                    }
                 }
             }
         };
@@ -115,32 +100,17 @@ public class LayerListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHold
     }
 
     public void setRoot(LayerGroup root) {
+        if (mChangeBus != null) {
+            mChangeBus.removeListener(mChangeListener);
+        }
         mRoot = root;
-        if (root != null) {
-            mRoot.getLayers().addOnListChangedCallback(mOnListChangedCallback);
-            addListChangedCallbacks(mRoot.getLayers());
+        mChangeBus = root != null ? root.getChangeBus() : null;
+        if (mChangeBus != null) {
+            mChangeBus.addListener(mChangeListener);
         }
         mTwirledDownLayers = getTwirledDownLayersForGroup(mRoot);
     }
 
-    private void addListChangedCallbacks(List<Layer> layers) {
-        addListChangedCallbacks(layers, 0, layers.size());
-    }
-
-    private void addListChangedCallbacks(List<Layer> layers, int start, int end) {
-        for (int i = start; i < end; i++) {
-            Layer l = layers.get(i);
-            if (l instanceof LayerGroup) {
-                LayerGroup lg = (LayerGroup) l;
-                ObservableList<Layer> childLayers = lg.getLayers();
-                // Add list listener for future changes to the layer group's list of children
-                childLayers.addOnListChangedCallback(mOnListChangedCallback);
-                // Recursive call to add property listeners to each child layer
-                addListChangedCallbacks(childLayers);
-            }
-        }
-    }
-
     public ObservableList<Layer> getTwirledDownLayersForGroup(LayerGroup root) {
         ObservableList<Layer> twirledDownLayers = new ObservableArrayList<>();
 
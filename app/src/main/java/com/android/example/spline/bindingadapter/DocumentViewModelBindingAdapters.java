@@ -45,6 +45,10 @@ import com.android.example.spline.view.RulerView;
                 attribute = "viewportY",
                 method = "getViewportY"),
 
+        @InverseBindingMethod(type = DocumentView.class,
+                attribute = "viewportScale",
+                method = "getViewportScale"),
+
         @InverseBindingMethod(type = DocumentView.class,
                 attribute = "viewportWidth",
                 method = "getViewportWidth"),
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.model;
+
+import android.graphics.RectF;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Reports every change to the layers of a document to listeners subscribed once for the whole
+ * document, instead of callbacks attached to each layer and group list. Changes are coalesced into
+ * one Change per layer, holding a mask of what changed along with the layer's bounds before and
+ * after. Property changes are delivered at the end of each setter, or when the outermost
+ * EditTransaction commits. Layers being added to or removed from the tree are reported right away.
+ * <p>
+ * Listeners can also subscribe to a single layer, and are dropped when the layer leaves the
+ * document.
+ * <p>
+ * Changes are recycled once delivered, so listeners must not hold on to them. Nothing is allocated
+ * to record and deliver changes once the bus has warmed up, since it runs on every step of a drag.
+ */
+public class ChangeBus {
+
+    public static final int CHANGE_GEOMETRY = 1;
+    public static final int CHANGE_VISIBILITY = 1 << 1;
+    public static final int CHANGE_OPACITY = 1 << 2;
+    public static final int CHANGE_COLOR = 1 << 3;
+    public static final int CHANGE_NAME = 1 << 4;
+    public static final int CHANGE_SELECTION = 1 << 5;
+    // The layer was added to a group in the tree, along with its descendants
+    public static final int CHANGE_ADDED = 1 << 6;
+    // The layer was removed from its group, along with its descendants
+    public static final int CHANGE_REMOVED = 1 << 7;
+
+    public interface Listener {
+        /**
+         * @param changes valid only until this method returns
+         */
+        void onLayersChanged(List<Change> changes);
+    }
+
+    /**
+     * What changed about one layer since its changes were last delivered
+     */
+    public static class Change {
+        private Layer layer;
+        private int changes;
+        private final RectF oldBounds = new RectF();
+        private final RectF newBounds = new RectF();
+
+        Change() {
+        }
+
+        public Layer getLayer() {
+            return layer;
+        }
+
+        /**
+         * @return a mask of CHANGE_ flags
+         */
+        public int getChanges() {
+            return changes;
+        }
+
+        public boolean hasChanged(int mask) {
+            return (changes & mask) != 0;
+        }
+
+        /**
+         * The layer's bounds when the first of these changes was made, normalized so that left is
+         * never greater than right, nor top than bottom
+         */
+        public RectF getOldBounds() {
+            return oldBounds;
+        }
+
+        /**
+         * The layer's bounds when the changes were delivered, normalized like getOldBounds
+         */
+        public RectF getNewBounds() {
+            return newBounds;
+        }
+
+        private static void getBounds(Layer layer, RectF out) {
+            float left = layer.getLeft();
+            float right = layer.getRight();
+            float top = layer.getTop();
+            float bottom = layer.getBottom();
+            out.set(Math.min(left, right), Math.min(top, bottom), Math.max(left, right),
+                    Math.max(top, bottom));
+        }
+    }
+
+    /**
+     * A reusable list of one change, for delivering to the listeners of a single layer
+     */
+    private static class SingleChange extends AbstractList<Change> {
+        Change change;
+
+        @Override
+        public Change get(int index) {
+            if (index != 0) {
+                throw new IndexOutOfBoundsException();
+            }
+            return change;
+        }
+
+        @Override
+        public int size() {
+            return 1;
+        }
+    }
+
+    // Replaced by a copy when modified while being dispatched to, rather than copied on every
+    // dispatch
+    private ArrayList<Listener> listeners = new ArrayList<>();
+    private final IdentityHashMap<Layer, ArrayList<Listener>> layerListeners =
+            new IdentityHashMap<>();
+    // Changes not delivered yet, in the order their layers first changed, and the same keyed by
+    // layer
+    private ArrayList<Change> pending = new ArrayList<>();
+    private final IdentityHashMap<Layer, Change> pendingByLayer = new IdentityHashMap<>();
+    // Changes being delivered by flush, swapped with pending
+    private ArrayList<Change> flushing = new ArrayList<>();
+    private boolean flushInProgress;
+    private final ArrayList<Change> pool = new ArrayList<>();
+    // One list per level of nested dispatch
+    private final ArrayList<SingleChange> singles = new ArrayList<>();
+    private int dispatchDepth;
+    private final EditTransaction transaction = new EditTransaction(this);
+
+    /**
+     * @return the transaction batching the changes of the document's layers
+     */
+    public EditTransaction getTransaction() {
+        return transaction;
+    }
+
+    public void addListener(Listener listener) {
+        if (dispatchDepth > 0) {
+            listeners = new ArrayList<>(listeners);
+        }
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        if (dispatchDepth > 0) {
+            listeners = new ArrayList<>(listeners);
+        }
+        listeners.remove(listener);
+    }
+
+    /**
+     * Subscribes to the changes of one layer of the document, until the layer is removed
+     */
+    public void addListener(Layer layer, Listener listener) {
+        ArrayList<Listener> list = layerListeners.get(layer);
+        if (list == null) {
+            list = new ArrayList<>(1);
+        } else if (dispatchDepth > 0) {
+            list = new ArrayList<>(list);
+        }
+        list.add(listener);
+        layerListeners.put(layer, list);
+    }
+
+    public void removeListener(Layer layer, Listener listener) {
+        ArrayList<Listener> list = layerListeners.get(layer);
+        if (list != null) {
+            if (dispatchDepth > 0) {
+                list = new ArrayList<>(list);
+            }
+            list.remove(listener);
+            if (list.isEmpty()) {
+                layerListeners.remove(layer);
+            } else {
+                layerListeners.put(layer, list);
+            }
+        }
+    }
+
+    /**
+     * Records that a layer is about to change, before it's modified so that the change keeps the
+     * layer's old bounds
+     */
+    void willChange(Layer layer, int changes) {
+        Change change = pendingByLayer.get(layer);
+        if (change == null) {
+            change = obtain(layer);
+            pending.add(change);
+            pendingByLayer.put(layer, change);
+        }
+        change.changes |= changes;
+    }
+
+    /**
+     * Delivers the recorded changes, or queues them until the current EditTransaction commits
+     */
+    void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (transaction.isInProgress() || flushInProgress) {
+            // Flushed on commit, or, for changes made by listeners, once they have all heard of
+            // the current ones
+            return;
+        }
+
+        flushInProgress = true;
+        try {
+            while (!pending.isEmpty()) {
+                ArrayList<Change> changes = pending;
+                pending = flushing;
+                flushing = changes;
+                pendingByLayer.clear();
+                for (int i = 0, n = changes.size(); i < n; i++) {
+                    Change change = changes.get(i);
+                    Change.getBounds(change.layer, change.newBounds);
+                }
+                try {
+                    dispatch(changes);
+                } finally {
+                    recycle(changes);
+                }
+            }
+        } finally {
+            flushInProgress = false;
+        }
+    }
+
+    /**
+     * Reports a layer added to or removed from a group in the tree
+     */
+    void publishStructureChange(Layer layer, int changes) {
+        Change change = obtain(layer);
+        change.changes = changes;
+        change.newBounds.set(change.oldBounds);
+        dispatch(change);
+        change.layer = null;
+        pool.add(change);
+    }
+
+    /**
+     * Forgets a layer that has left the document
+     */
+    void detach(Layer layer) {
+        layerListeners.remove(layer);
+        Change change = pendingByLayer.remove(layer);
+        if (change != null) {
+            pending.remove(change);
+            change.layer = null;
+            pool.add(change);
+        }
+    }
+
+    private Change obtain(Layer layer) {
+        Change change = pool.isEmpty() ? new Change() : pool.remove(pool.size() - 1);
+        change.layer = layer;
+        change.changes = 0;
+        Change.getBounds(layer, change.oldBounds);
+        return change;
+    }
+
+    private void recycle(ArrayList<Change> changes) {
+        for (int i = 0, n = changes.size(); i < n; i++) {
+            Change change = changes.get(i);
+            change.layer = null;
+            pool.add(change);
+        }
+        changes.clear();
+    }
+
+    private void dispatch(List<Change> changes) {
+        dispatchDepth++;
+        try {
+            // Listeners subscribing or unsubscribing meanwhile replace the list rather than
+            // modify this one
+            ArrayList<Listener> list = listeners;
+            for (int i = 0, n = list.size(); i < n; i++) {
+                list.get(i).onLayersChanged(changes);
+            }
+
+            if (!layerListeners.isEmpty()) {
+                for (int i = 0, n = changes.size(); i < n; i++) {
+                    dispatchToLayerListeners(changes.get(i));
+                }
+            }
+        } finally {
+            dispatchDepth--;
+        }
+    }
+
+    private void dispatch(Change change) {
+        SingleChange single = getSingle();
+        single.change = change;
+        dispatchDepth++;
+        try {
+            ArrayList<Listener> list = listeners;
+            for (int i = 0, n = list.size(); i < n; i++) {
+                list.get(i).onLayersChanged(single);
+            }
+            dispatchToLayerListeners(change);
+        } finally {
+            dispatchDepth--;
+            single.change = null;
+        }
+    }
+
+    private void dispatchToLayerListeners(Change change) {
+        ArrayList<Listener> list = layerListeners.get(change.layer);
+        if (list == null) {
+            return;
+        }
+        SingleChange single = getSingle();
+        single.change = change;
+        dispatchDepth++;
+        try {
+            for (int i = 0, n = list.size(); i < n; i++) {
+                list.get(i).onLayersChanged(single);
+            }
+        } finally {
+            dispatchDepth--;
+            single.change = null;
+        }
+    }
+
+    /**
+     * @return the single change list for the current level of dispatch, which nested dispatches
+     * leave alone
+     */
+    private SingleChange getSingle() {
+        while (singles.size() <= dispatchDepth) {
+            singles.add(new SingleChange());
+        }
+        return singles.get(dispatchDepth);
+    }
+}
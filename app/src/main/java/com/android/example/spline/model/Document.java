@@ -35,6 +35,12 @@ public class Document implements Parcelable {
     private LayerGroup currentGroup;
     private float viewportX;
     private float viewportY;
+    private float viewportScale;
+    // Index of the layers under root, built on first use because both Parcel and Gson set root
+    // without going through setRoot
+    private transient LayerIdIndex idIndex;
+    private transient LayerGroup indexedRoot;
+    private transient ChangeBus changeBus;
 
     public Document() {
         setRoot(new LayerGroup());
@@ -42,6 +48,7 @@ public class Document implements Parcelable {
         // Offset the initial viewport somewhat so that the 0 points on both axis are visible
         viewportX = 30;
         viewportY = 30;
+        viewportScale = 1;
     }
 
     protected Document(Parcel in) {
@@ -49,9 +56,12 @@ public class Document implements Parcelable {
         currentLayer = in.readParcelable(Layer.class.getClassLoader());
         viewportX = in.readFloat();
         viewportY = in.readFloat();
+        viewportScale = in.readFloat();
     }
 
     public LayerGroup getRoot() {
+        // Attaches the change bus to a root set by Parcel or Gson before anyone observes it
+        getIdIndex();
         return root;
     }
 
@@ -62,6 +72,8 @@ public class Document implements Parcelable {
     }
 
     public void addLayer(Layer layer) {
+        // Index first, so the new layer's id can't collide with loaded ones
+        getIdIndex();
         if (currentGroup != null) {
             currentGroup.addLayer(layer);
         }
@@ -76,6 +88,60 @@ public class Document implements Parcelable {
         }
     }
 
+    /**
+     * Returns an immutable copy of the document's layer tree that other threads can read while
+     * the document is being edited. Must be called on the UI thread. Unchanged parts of the tree
+     * are shared with earlier snapshots, see LayerSnapshot.
+     */
+    public LayerSnapshot getSnapshot() {
+        return getRoot().getSnapshot();
+    }
+
+    /**
+     * Returns the layer in this document with the given id, or null if there is none
+     */
+    public Layer findLayerById(long id) {
+        return getIdIndex().get(id);
+    }
+
+    /**
+     * Returns the bus reporting changes to this document's layers
+     */
+    public ChangeBus getChangeBus() {
+        getIdIndex();
+        return changeBus;
+    }
+
+    private LayerIdIndex getIdIndex() {
+        if (idIndex == null || indexedRoot != root) {
+            if (idIndex != null && indexedRoot != null) {
+                idIndex.remove(indexedRoot);
+            }
+            if (changeBus == null) {
+                changeBus = new ChangeBus();
+                changeBus.addListener(LayerIndex.BOUNDS_LISTENER);
+            }
+            idIndex = new LayerIdIndex(changeBus);
+            indexedRoot = root;
+            if (root != null) {
+                idIndex.add(root);
+            }
+        }
+        return idIndex;
+    }
+
+    /**
+     * Starts an edit whose layer property notifications are held back and delivered together, one
+     * per changed layer, by the matching commitTransaction. Transactions may be nested.
+     */
+    public void beginTransaction() {
+        getChangeBus().getTransaction().begin();
+    }
+
+    public void commitTransaction() {
+        getChangeBus().getTransaction().commit();
+    }
+
     public Layer getCurrentLayer() {
         return currentLayer;
     }
@@ -118,6 +184,17 @@ public class Document implements Parcelable {
         this.viewportY = viewportY;
     }
 
+    /**
+     * The zoom factor, in view pixels per document pixel. The viewport offsets are in view pixels.
+     */
+    public float getViewportScale() {
+        return viewportScale;
+    }
+
+    public void setViewportScale(float viewportScale) {
+        this.viewportScale = viewportScale;
+    }
+
     public void setClipboardLayer(Layer clipboardLayer) {
         this.clipboardLayer = clipboardLayer;
     }
@@ -137,6 +214,7 @@ public class Document implements Parcelable {
         dest.writeParcelable(currentLayer, 0);
         dest.writeFloat(viewportX);
         dest.writeFloat(viewportY);
+        dest.writeFloat(viewportScale);
     }
 
     public static final Creator<Document> CREATOR = new Creator<Document>() {
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.model;
+
+import com.android.example.spline.BR;
+
+import java.util.ArrayList;
+
+/**
+ * Defers layer property change notifications while an edit made up of several steps is in
+ * progress, then delivers one notification per changed layer when the outermost transaction
+ * commits: the property's own id if only one of the layer's properties changed, or BR._all if
+ * several did. Transactions nest, and like the rest of the model are only used from the UI thread.
+ * <p>
+ * Each document has its own transaction, held by its ChangeBus, so that an edit of one document
+ * doesn't hold back the notifications of another. Layers outside of any document use NONE, which
+ * never defers anything.
+ * <p>
+ * Only property changes are deferred. Changes to a group's list of children are still reported
+ * as they happen. The document's ChangeBus also holds its property changes back until the commit.
+ */
+public final class EditTransaction {
+
+    static final EditTransaction NONE = new EditTransaction(null);
+
+    private final ChangeBus bus;
+    private int depth;
+    // Layers in the order they first changed. Each one holds the id of the property that changed,
+    // or BR._all if more than one did.
+    private ArrayList<Layer> changed = new ArrayList<>();
+    // The layers being notified by commit, swapped with changed
+    private ArrayList<Layer> delivering = new ArrayList<>();
+    private boolean deliveryInProgress;
+
+    EditTransaction(ChangeBus bus) {
+        this.bus = bus;
+    }
+
+    public void begin() {
+        if (bus != null) {
+            depth++;
+        }
+    }
+
+    /**
+     * Ends the innermost transaction, delivering the deferred notifications if it was the
+     * outermost one
+     */
+    public void commit() {
+        if (bus == null) {
+            return;
+        }
+        if (depth == 0) {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        if (--depth > 0) {
+            return;
+        }
+        deliver();
+        bus.flush();
+    }
+
+    public boolean isInProgress() {
+        return depth > 0;
+    }
+
+    /**
+     * Records a property change to be delivered on commit
+     *
+     * @return false if no transaction is in progress, in which case the caller should notify
+     * right away
+     */
+    boolean defer(Layer layer, int propertyId) {
+        if (depth == 0) {
+            return false;
+        }
+        if (!layer.propertyChangeDeferred) {
+            layer.propertyChangeDeferred = true;
+            layer.deferredPropertyId = propertyId;
+            changed.add(layer);
+        } else if (layer.deferredPropertyId != propertyId) {
+            layer.deferredPropertyId = BR._all;
+        }
+        return true;
+    }
+
+    private void deliver() {
+        if (deliveryInProgress) {
+            // Transactions committed by observers are delivered once the current one is
+            return;
+        }
+        deliveryInProgress = true;
+        try {
+            while (!changed.isEmpty()) {
+                ArrayList<Layer> layers = changed;
+                changed = delivering;
+                delivering = layers;
+                try {
+                    for (int i = 0, n = layers.size(); i < n; i++) {
+                        Layer layer = layers.get(i);
+                        if (layer.propertyChangeDeferred) {
+                            layer.propertyChangeDeferred = false;
+                            layer.deliverPropertyChanged(layer.deferredPropertyId);
+                        }
+                    }
+                } finally {
+                    // Left consistent if an observer throws
+                    for (int i = 0, n = layers.size(); i < n; i++) {
+                        layers.get(i).propertyChangeDeferred = false;
+                    }
+                    layers.clear();
+                }
+            }
+        } finally {
+            deliveryInProgress = false;
+        }
+    }
+}
@@ -23,10 +23,11 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import com.android.example.spline.BR;
+import com.android.example.spline.util.ShapeUtils;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Data object that represents a layer in a spline drawing. It's layering order in the document
@@ -39,7 +40,10 @@ public class Layer extends BaseObservable implements Parcelable {
 
     public static final int UNDEFINED = Integer.MIN_VALUE;
 
-    private UUID id;
+    // Next id handed out by generateId. 0 is never used, marking layers without an id.
+    private static final AtomicLong nextId = new AtomicLong(1);
+
+    private long id;
     private String name;
     private transient Observable parent;
     private boolean selected;
@@ -49,13 +53,31 @@ public class Layer extends BaseObservable implements Parcelable {
     private transient float startX, startY, startWidth, startHeight;
     private transient PointF topLeft, midTop, topRight, midLeft, midRight, bottomLeft, midBottom, bottomRight;
     private transient List<PointF> transformVertices;
+    // Change bus of the document this layer is in, if any
+    transient ChangeBus changeBus;
+    // Property change held back by the document's EditTransaction
+    transient boolean propertyChangeDeferred;
+    transient int deferredPropertyId;
+    // Current selections holding this layer, which don't become its parent
+    private transient ArrayList<SelectionGroup> selections;
+    // Values inherited from the ancestors, recomputed from the parent's own when inheritedValid is
+    // clear. Computing them validates the parent first, so a layer is only valid while its
+    // ancestors are.
+    private transient boolean inheritedValid;
+    private transient int parentDepth;
+    private transient boolean ancestorsVisible;
+    private transient float compOpacity;
+    private transient boolean visibleInLayerList;
+    // Last snapshot of this layer, cleared when it or one of its descendants changes
+    private transient LayerSnapshot snapshot;
 
     public Layer() {
         init();
     }
 
     public Layer(Parcel in) {
-        id = UUID.fromString(in.readString());
+        id = in.readLong();
+        reserveId(id);
         name = in.readString();
         selected = in.readByte() != 0;
         visible = in.readByte() != 0;
@@ -64,12 +86,11 @@ public class Layer extends BaseObservable implements Parcelable {
         y = in.readFloat();
         width = in.readFloat();
         height = in.readFloat();
-        initTransformVertices();
     }
 
     public Layer(Layer l) {
-        id = UUID.randomUUID();
-        name = new String(l.getName());
+        id = generateId();
+        name = l.getName();
         selected = l.isSelected();
         visible = l.isVisible();
         opacity = l.getOpacity();
@@ -77,7 +98,6 @@ public class Layer extends BaseObservable implements Parcelable {
         y = l.getY();
         width = l.getWidth();
         height = l.getHeight();
-        initTransformVertices();
     }
 
     public Layer copy() {
@@ -85,15 +105,20 @@ public class Layer extends BaseObservable implements Parcelable {
     }
 
     private void init() {
-        id = UUID.randomUUID();
+        id = generateId();
         x = UNDEFINED;
         y = UNDEFINED;
         setVisible(true);
         setOpacity(100);
-        initTransformVertices();
     }
 
+    /**
+     * Control points are only needed for the selected layer, so they're allocated on first use
+     */
     private void initTransformVertices() {
+        if (transformVertices != null) {
+            return;
+        }
         transformVertices = new ArrayList<PointF>();
         topLeft = new PointF();
         transformVertices.add(topLeft);
@@ -113,18 +138,49 @@ public class Layer extends BaseObservable implements Parcelable {
         transformVertices.add(bottomRight);
     }
 
-    public UUID getId() {
+    /**
+     * Returns the layer's id, unique among the layers of a document. Ids are handed out in
+     * sequence, so creating layers in bulk doesn't pay for random UUIDs.
+     */
+    public long getId() {
+        if (id == 0) {
+            // Layers read by Json deserialization may come without one
+            id = generateId();
+        }
         return id;
     }
 
+    /**
+     * Gives the layer a fresh id, for when its id is already used by another layer in the document
+     */
+    void assignNewId() {
+        id = generateId();
+    }
+
+    static long generateId() {
+        return nextId.getAndIncrement();
+    }
+
+    /**
+     * Makes sure ids generated from now on are greater than an id read from a saved document
+     */
+    public static void reserveId(long id) {
+        long next = nextId.get();
+        while (id >= next && !nextId.compareAndSet(next, id + 1)) {
+            next = nextId.get();
+        }
+    }
+
     @Bindable
     public String getName() {
         return name;
     }
 
     public void setName(String name) {
+        willChange(ChangeBus.CHANGE_NAME);
         this.name = name;
         notifyPropertyChanged(BR.name);
+        publishChanges();
     }
 
     @Bindable
@@ -134,41 +190,65 @@ public class Layer extends BaseObservable implements Parcelable {
 
     public void setParent(Observable parent) {
         this.parent = parent;
-        if (this.parent != null) {
-            this.parent.addOnPropertyChangedCallback(new OnPropertyChangedCallback() {
-
-                @Override
-                public void onPropertyChanged(Observable observable, int i) {
-                    if (i == BR.visible || i == BR.ancestorsVisible) {
-                        notifyPropertyChanged(BR.ancestorsVisible);
-                    }
-                }
-            });
-        }
+        invalidateInherited();
         notifyPropertyChanged(BR.parent);
         notifyPropertyChanged(BR.parentDepth);
     }
 
+    /**
+     * Called by the parent group when its own visibility or that of one of its ancestors changes
+     */
+    void onAncestorVisibilityChanged() {
+        willChange(ChangeBus.CHANGE_VISIBILITY);
+        notifyPropertyChanged(BR.ancestorsVisible);
+    }
+
     /**
      * Returns the number of LayerGroups between this layer and the root Document object
      */
     @Bindable
     public int getParentDepth() {
+        validateInherited();
+        return parentDepth;
+    }
 
-        if (this.parent instanceof Layer) {
-            Layer parentLayer = (Layer) this.parent;
-            return parentLayer.getParentDepth() + 1;
-        }
+    public boolean isVisibleInLayerList() {
+        validateInherited();
+        return visibleInLayerList;
+    }
 
-        return 0;
+    /**
+     * Marks the inherited values of this layer and its descendants as needing to be recomputed.
+     * Called when the layer's parent, visibility or opacity changes, or a group is twirled.
+     */
+    void invalidateInherited() {
+        inheritedValid = false;
     }
 
-    public boolean isVisibleInLayerList() {
-        if (getParent() == null || !(getParent() instanceof Layer)) {
-            return true;
+    boolean isInheritedValid() {
+        return inheritedValid;
+    }
+
+    private void validateInherited() {
+        if (inheritedValid) {
+            return;
+        }
+
+        if (parent instanceof Layer) {
+            Layer parentLayer = (Layer) parent;
+            parentLayer.validateInherited();
+            parentDepth = parentLayer.parentDepth + 1;
+            ancestorsVisible = parentLayer.isVisible() && parentLayer.ancestorsVisible;
+            compOpacity = getOpacity() * parentLayer.compOpacity / 100f;
+            visibleInLayerList = ((LayerGroup) parentLayer).isTwirledDown()
+                    && parentLayer.visibleInLayerList;
+        } else {
+            parentDepth = 0;
+            ancestorsVisible = true;
+            compOpacity = getOpacity();
+            visibleInLayerList = true;
         }
-        LayerGroup parentLayer = (LayerGroup) getParent();
-        return parentLayer.isTwirledDown() && parentLayer.isVisibleInLayerList();
+        inheritedValid = true;
     }
 
     @Bindable
@@ -177,8 +257,10 @@ public class Layer extends BaseObservable implements Parcelable {
     }
 
     public void setSelected(boolean selected) {
+        willChange(ChangeBus.CHANGE_SELECTION);
         this.selected = selected;
         notifyPropertyChanged(BR.selected);
+        publishChanges();
     }
 
     @Bindable
@@ -188,16 +270,16 @@ public class Layer extends BaseObservable implements Parcelable {
 
     @Bindable
     public boolean isAncestorsVisible() {
-        if (parent == null || !(parent instanceof Layer)) {
-            return true;
-        }
-        Layer parentLayer = (Layer) parent;
-        return parentLayer.isVisible() && parentLayer.isAncestorsVisible();
+        validateInherited();
+        return ancestorsVisible;
     }
 
     public void setVisible(boolean visible) {
+        willChange(ChangeBus.CHANGE_VISIBILITY);
         this.visible = visible;
+        invalidateInherited();
         notifyPropertyChanged(BR.visible);
+        publishChanges();
     }
 
     @Bindable
@@ -206,19 +288,17 @@ public class Layer extends BaseObservable implements Parcelable {
     }
 
     public void setOpacity(int opacity) {
+        willChange(ChangeBus.CHANGE_OPACITY);
         this.opacity = opacity;
+        invalidateInherited();
         notifyPropertyChanged(BR.opacity);
+        publishChanges();
     }
 
     @Bindable
     public float getCompOpacity() {
-        float o = this.opacity;
-        if (this.parent instanceof Layer) {
-            Layer parentLayer = (Layer) parent;
-            o *= parentLayer.getCompOpacity() / 100f;
-        }
-
-        return o;
+        validateInherited();
+        return compOpacity;
     }
 
     public void startDrag() {
@@ -247,10 +327,13 @@ public class Layer extends BaseObservable implements Parcelable {
     }
 
     public void setX(float x) {
+        willChange(ChangeBus.CHANGE_GEOMETRY);
         this.x = x;
+        onGeometryChanged();
         notifyPropertyChanged(BR.x);
         notifyPropertyChanged(BR.left);
         notifyPropertyChanged(BR.right);
+        publishChanges();
     }
 
     @Bindable
@@ -259,10 +342,13 @@ public class Layer extends BaseObservable implements Parcelable {
     }
 
     public void setY(float y) {
+        willChange(ChangeBus.CHANGE_GEOMETRY);
         this.y = y;
+        onGeometryChanged();
         notifyPropertyChanged(BR.y);
         notifyPropertyChanged(BR.top);
         notifyPropertyChanged(BR.bottom);
+        publishChanges();
     }
 
     @Bindable
@@ -271,9 +357,12 @@ public class Layer extends BaseObservable implements Parcelable {
     }
 
     public void setWidth(float width) {
+        willChange(ChangeBus.CHANGE_GEOMETRY);
         this.width = width;
+        onGeometryChanged();
         notifyPropertyChanged(BR.width);
         notifyPropertyChanged(BR.right);
+        publishChanges();
     }
 
     @Bindable
@@ -282,9 +371,131 @@ public class Layer extends BaseObservable implements Parcelable {
     }
 
     public void setHeight(float height) {
+        willChange(ChangeBus.CHANGE_GEOMETRY);
         this.height = height;
+        onGeometryChanged();
         notifyPropertyChanged(BR.height);
         notifyPropertyChanged(BR.bottom);
+        publishChanges();
+    }
+
+    /**
+     * @return the change bus of the document this layer is in, or null if it isn't in one
+     */
+    public ChangeBus getChangeBus() {
+        return changeBus;
+    }
+
+    /**
+     * Returns an immutable copy of the layer and its descendants that can be read from any thread.
+     * Must be called on the thread that owns the layer. The snapshot is reused until the layer or
+     * one of its descendants changes, see LayerSnapshot.
+     */
+    public LayerSnapshot getSnapshot() {
+        if (snapshot == null) {
+            snapshot = createSnapshot();
+        }
+        return snapshot;
+    }
+
+    LayerSnapshot createSnapshot() {
+        return new LayerSnapshot(this, LayerSnapshot.TYPE_LAYER, 0, null);
+    }
+
+    /**
+     * Drops the snapshots of this layer and its ancestors. A snapshot is built from those of the
+     * layer's children, so an ancestor of a layer without a snapshot never has one either, and
+     * the walk can stop at the first layer without one.
+     */
+    void invalidateSnapshot() {
+        Layer layer = this;
+        while (layer != null && layer.snapshot != null) {
+            layer.snapshot = null;
+            layer = layer.parent instanceof Layer ? (Layer) layer.parent : null;
+        }
+    }
+
+    /**
+     * Records on the change bus that the layer is about to change. Called before modifying the
+     * layer, so that the change keeps its old bounds.
+     */
+    void willChange(int changes) {
+        invalidateSnapshot();
+        if (changeBus != null) {
+            changeBus.willChange(this, changes);
+        }
+    }
+
+    /**
+     * Delivers the changes recorded by willChange, unless an EditTransaction is in progress
+     */
+    void publishChanges() {
+        if (changeBus != null) {
+            changeBus.flush();
+        }
+    }
+
+    /**
+     * Holds the notification until the current EditTransaction commits, if one is in progress
+     */
+    @Override
+    public void notifyPropertyChanged(int fieldId) {
+        if (!getTransaction().defer(this, fieldId)) {
+            super.notifyPropertyChanged(fieldId);
+        }
+    }
+
+    /**
+     * @return the transaction of the layer's document, which batches its notifications
+     */
+    public EditTransaction getTransaction() {
+        return changeBus != null ? changeBus.getTransaction() : EditTransaction.NONE;
+    }
+
+    /**
+     * Delivers a notification deferred by an EditTransaction
+     */
+    void deliverPropertyChanged(int fieldId) {
+        super.notifyPropertyChanged(fieldId);
+    }
+
+    /**
+     * Invalidates the cached bounds of the group containing this layer, and of its ancestors
+     */
+    private void onGeometryChanged() {
+        if (parent instanceof LayerGroup) {
+            LayerGroup group = (LayerGroup) parent;
+            group.invalidateBounds();
+            // Layers in a document report to the group's index through the change bus instead
+            if (changeBus == null) {
+                group.onChildBoundsChanged(this);
+            }
+        }
+        invalidateSelectionBounds();
+    }
+
+    void addSelection(SelectionGroup selection) {
+        if (selections == null) {
+            selections = new ArrayList<>(1);
+        }
+        selections.add(selection);
+    }
+
+    void removeSelection(SelectionGroup selection) {
+        if (selections != null) {
+            selections.remove(selection);
+        }
+    }
+
+    /**
+     * Invalidates the cached bounds of the selections holding this layer
+     */
+    void invalidateSelectionBounds() {
+        if (selections != null) {
+            for (int i = 0; i < selections.size(); i++) {
+                selections.get(i).invalidateBounds();
+            }
+        }
     }
 
     @Bindable
@@ -320,48 +531,56 @@ public class Layer extends BaseObservable implements Parcelable {
      */
 
     public PointF getTopLeft() {
+        initTransformVertices();
         topLeft.x = getLeft();
         topLeft.y = getTop();
         return topLeft;
     }
 
     public PointF getMidTop() {
+        initTransformVertices();
         midTop.x = getMidX();
         midTop.y = getTop();
         return midTop;
     }
 
     public PointF getTopRight() {
+        initTransformVertices();
         topRight.x = getRight();
         topRight.y = getTop();
         return topRight;
     }
 
     public PointF getMidLeft() {
+        initTransformVertices();
         midLeft.x = getLeft();
         midLeft.y = getMidY();
         return midLeft;
     }
 
     public PointF getMidRight() {
+        initTransformVertices();
         midRight.x = getRight();
         midRight.y = getMidY();
         return midRight;
     }
 
     public PointF getBottomLeft() {
+        initTransformVertices();
         bottomLeft.x = getLeft();
         bottomLeft.y = getBottom();
         return bottomLeft;
     }
 
     public PointF getMidBottom() {
+        initTransformVertices();
         midBottom.x = getMidX();
         midBottom.y = getBottom();
         return midBottom;
     }
 
     public PointF getBottomRight() {
+        initTransformVertices();
         bottomRight.x = getRight();
         bottomRight.y = getBottom();
         return bottomRight;
@@ -403,6 +622,16 @@ public class Layer extends BaseObservable implements Parcelable {
     }
 
     public void resize(PointF p, float dx, float dy) {
+        EditTransaction transaction = getTransaction();
+        transaction.begin();
+        try {
+            resizeEdges(p, dx, dy);
+        } finally {
+            transaction.commit();
+        }
+    }
+
+    private void resizeEdges(PointF p, float dx, float dy) {
         if (p == getTopLeft() || p == getMidLeft() || p == getBottomLeft()) {
             setX(getX() + dx);
             setWidth(getWidth() - dx);
@@ -445,8 +674,32 @@ public class Layer extends BaseObservable implements Parcelable {
         return x >= minX + inset && x <= maxX - inset && y >= minY + inset && y <= maxY - inset;
     }
 
-    public Layer findLayerById(UUID id) {
-        if (getId().equals(id)) {
+    /**
+     * Determines if the layer overlaps the polygon given by the first count points of points, stored
+     * as alternating x and y coordinates. Layers without a shape of their own are tested by their
+     * bounding box.
+     *
+     * @return true if the layer and the polygon overlap or touch, false otherwise
+     */
+    public boolean intersectsPolygon(float[] points, int count) {
+        return ShapeUtils.rectIntersectsPolygon(getLeft(), getTop(), getRight(), getBottom(),
+                points, count);
+    }
+
+    /**
+     * Same as intersectsPolygon(points, count), for callers testing many layers in a row. Groups
+     * collect the children to test at the end of scratch, and remove them again before returning.
+     */
+    public boolean intersectsPolygon(float[] points, int count, List<Layer> scratch) {
+        return intersectsPolygon(points, count);
+    }
+
+    /**
+     * Searches this layer and its descendants for a layer with the given id. Document's
+     * findLayerById is faster for layers in a document.
+     */
+    public Layer findLayerById(long id) {
+        if (getId() == id) {
             return this;
         } else {
             if (this instanceof LayerGroup) {
@@ -470,15 +723,15 @@ public class Layer extends BaseObservable implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeString(id.toString());
-        dest.writeString(name);
-        dest.writeByte((byte) (selected ? 1 : 0));
-        dest.writeByte((byte) (visible ? 1 : 0));
-        dest.writeInt(opacity);
-        dest.writeFloat(x);
-        dest.writeFloat(y);
-        dest.writeFloat(width);
-        dest.writeFloat(height);
+        dest.writeLong(getId());
+        dest.writeString(getName());
+        dest.writeByte((byte) (isSelected() ? 1 : 0));
+        dest.writeByte((byte) (isVisible() ? 1 : 0));
+        dest.writeInt(getOpacity());
+        dest.writeFloat(getX());
+        dest.writeFloat(getY());
+        dest.writeFloat(getWidth());
+        dest.writeFloat(getHeight());
     }
 
     public static final Creator<Layer> CREATOR = new Creator<Layer>() {
@@ -22,6 +22,9 @@ import android.os.Parcel;
 
 import com.android.example.spline.BR;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A data object that represents a layer with children. Has no visible properties itself, simply
  * acts as a container for its constituent layers.
@@ -29,6 +32,13 @@ import com.android.example.spline.BR;
 public class LayerGroup extends Layer {
     private ObservableList<Layer> layers;
     private boolean twirledDown;
+    private transient LayerIndex index;
+    // Id index of the document this group belongs to, if any
+    private transient LayerIdIndex idIndex;
+
+    // Bounds of the children, valid while boundsCached is set
+    private transient boolean boundsCached;
+    private transient float minX, minY, maxRight, maxBottom;
 
     public LayerGroup() {
         super();
@@ -40,6 +50,13 @@ public class LayerGroup extends Layer {
         init();
     }
 
+    /**
+     * Copies the group and all of its descendants. The copy is eager rather than sharing the
+     * unchanged subtrees: every copy made by duplicate, paste and grouping goes straight into a
+     * document, whose display list, spatial indexes and layer list then visit every layer of it
+     * anyway. Readers that only need a consistent view of the tree should use getSnapshot, which
+     * does share unchanged subtrees.
+     */
     public LayerGroup(LayerGroup group) {
         super(group);
         init();
@@ -56,22 +73,146 @@ public class LayerGroup extends Layer {
 
     private void init() {
         layers = new ObservableArrayList<>();
+        layers.addOnListChangedCallback(
+                new ObservableList.OnListChangedCallback<ObservableList<Layer>>() {
+                    @Override
+                    public void onChanged(ObservableList<Layer> layers) {
+                        invalidateBounds();
+                        invalidateSnapshot();
+                    }
+
+                    @Override
+                    public void onItemRangeChanged(ObservableList<Layer> layers, int start,
+                                                   int count) {
+                        invalidateBounds();
+                        invalidateSnapshot();
+                    }
+
+                    @Override
+                    public void onItemRangeInserted(ObservableList<Layer> layers, int start,
+                                                    int count) {
+                        invalidateBounds();
+                        invalidateSnapshot();
+                    }
+
+                    @Override
+                    public void onItemRangeMoved(ObservableList<Layer> layers, int from, int to,
+                                                 int count) {
+                        // The bounds don't depend on the order of the children
+                        invalidateSnapshot();
+                    }
+
+                    @Override
+                    public void onItemRangeRemoved(ObservableList<Layer> layers, int start,
+                                                   int count) {
+                        invalidateBounds();
+                        invalidateSnapshot();
+                    }
+                });
         setName("Group");
     }
 
     public void addLayer(Layer l) {
         l.setParent(this);
         layers.add(l);
+        if (idIndex != null) {
+            idIndex.add(l);
+            changeBus.publishStructureChange(l, ChangeBus.CHANGE_ADDED);
+        }
     }
 
     public void removeLayer(Layer l) {
-        layers.remove(l);
+        if (layers.remove(l) && idIndex != null) {
+            // Reported before the layer is detached, so its own listeners hear of it too
+            changeBus.publishStructureChange(l, ChangeBus.CHANGE_REMOVED);
+            idIndex.remove(l);
+        }
+    }
+
+    @Override
+    public void setVisible(boolean visible) {
+        super.setVisible(visible);
+        notifyChildrenOfVisibility();
+        publishChanges();
+    }
+
+    @Override
+    void onAncestorVisibilityChanged() {
+        super.onAncestorVisibilityChanged();
+        notifyChildrenOfVisibility();
+    }
+
+    private void notifyChildrenOfVisibility() {
+        // Layer's constructor sets the visibility before the list exists
+        if (layers == null) {
+            return;
+        }
+        for (int i = 0; i < layers.size(); i++) {
+            layers.get(i).onAncestorVisibilityChanged();
+        }
+    }
+
+    @Override
+    LayerSnapshot createSnapshot() {
+        LayerSnapshot[] children = new LayerSnapshot[layers.size()];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = layers.get(i).getSnapshot();
+        }
+        return new LayerSnapshot(this, LayerSnapshot.TYPE_GROUP, 0, children);
+    }
+
+    void setIdIndex(LayerIdIndex idIndex) {
+        this.idIndex = idIndex;
+        if (idIndex == null && index != null) {
+            // Changes still waiting on the bus of the document being left are dropped with it
+            index.invalidateAll();
+        }
     }
 
     public ObservableList<Layer> getLayers() {
         return layers;
     }
 
+    /**
+     * Collects the children whose bounding boxes contain the given point, topmost first. Uses a
+     * spatial index of the children that is built on first use and kept up to date from then on.
+     */
+    public void findLayersAt(float x, float y, List<Layer> out) {
+        getIndex().findLayersAt(x, y, out);
+    }
+
+    /**
+     * Collects the children whose bounding boxes intersect the given rectangle, bottommost first
+     */
+    public void findLayersIn(float left, float top, float right, float bottom, List<Layer> out) {
+        getIndex().findLayersIn(left, top, right, bottom, out);
+    }
+
+    LayerIndex getIndex() {
+        if (index == null) {
+            index = new LayerIndex(this);
+        }
+        return index;
+    }
+
+    /**
+     * Called by this group's index when its children move, resize, or are added or removed
+     */
+    void onBoundsChanged() {
+        if (getParent() instanceof LayerGroup) {
+            ((LayerGroup) getParent()).onChildBoundsChanged(this);
+        }
+    }
+
+    /**
+     * Called when one of the children moves or is resized
+     */
+    void onChildBoundsChanged(Layer child) {
+        if (index != null) {
+            index.onBoundsChanged(child);
+        }
+    }
+
     @Bindable
     public boolean isTwirledDown() {
         return twirledDown;
@@ -79,64 +220,123 @@ public class LayerGroup extends Layer {
 
     public void toggleTwirl() {
         twirledDown = !twirledDown;
+        invalidateInherited();
         notifyPropertyChanged(BR.twirledDown);
     }
 
     public void openTwirl() {
         twirledDown = true;
+        invalidateInherited();
         notifyPropertyChanged(BR.twirledDown);
     }
 
     /**
-     * LayerGroup x, y, width and height getters are based off min/max bounds of its child views
+     * Invalidates the children as well. A child can only be valid while its parent is, so there is
+     * nothing to do below a group that is already invalid.
      */
     @Override
-    public float getX() {
+    void invalidateInherited() {
+        if (!isInheritedValid()) {
+            return;
+        }
+        super.invalidateInherited();
+        for (int i = 0; i < layers.size(); i++) {
+            layers.get(i).invalidateInherited();
+        }
+    }
+
+    /**
+     * Marks the cached bounds as stale, along with those of every ancestor. Called when a child
+     * moves, is resized, or is added or removed. A group whose cache is already stale has stale
+     * ancestors too, since computing a group's bounds computes its children's first.
+     */
+    void invalidateBounds() {
+        if (boundsCached) {
+            boundsCached = false;
+            if (getParent() instanceof LayerGroup) {
+                ((LayerGroup) getParent()).invalidateBounds();
+            }
+            invalidateSelectionBounds();
+        }
+    }
+
+    /**
+     * @return true if the cached bounds are still those of the children
+     */
+    boolean isBoundsCached() {
+        return boundsCached;
+    }
+
+    private void updateBounds() {
+        if (isBoundsCached()) {
+            return;
+        }
+
         float minX = Float.MAX_VALUE;
-        for (Layer l : layers) {
+        float minY = Float.MAX_VALUE;
+        float maxRight = -Float.MAX_VALUE;
+        float maxBottom = -Float.MAX_VALUE;
+        for (int i = 0; i < layers.size(); i++) {
+            Layer l = layers.get(i);
             minX = Math.min(minX, l.getX());
+            minY = Math.min(minY, l.getY());
+            maxRight = Math.max(maxRight, l.getRight());
+            maxBottom = Math.max(maxBottom, l.getBottom());
         }
+        this.minX = minX;
+        this.minY = minY;
+        this.maxRight = maxRight;
+        this.maxBottom = maxBottom;
+        boundsCached = true;
+    }
+
+    /**
+     * LayerGroup x, y, width and height getters are based off min/max bounds of its child views,
+     * which are cached until one of them changes
+     */
+    @Override
+    public float getX() {
+        updateBounds();
         return minX;
     }
 
     @Override
     public float getY() {
-        float minY = Float.MAX_VALUE;
-        for (Layer l : layers) {
-            minY = Math.min(minY, l.getY());
-        }
+        updateBounds();
         return minY;
     }
 
     @Override
     public float getWidth() {
-        float maxRight = -Float.MAX_VALUE;
-        for (Layer l : layers) {
-            maxRight = Math.max(maxRight, l.getRight());
-        }
-        return maxRight - getLeft();
+        updateBounds();
+        return maxRight - minX;
     }
 
     @Override
     public float getHeight() {
-        float maxBottom = -Float.MAX_VALUE;
-        for (Layer l : layers) {
-            maxBottom = Math.max(maxBottom, l.getBottom());
-        }
-        return maxBottom - getTop();
+        updateBounds();
+        return maxBottom - minY;
     }
 
     /**
-     * LayerGroup x, y, width and height setters make modifications to their child layers
+     * LayerGroup x, y, width and height setters make modifications to their child layers, within an
+     * EditTransaction so that each descendant reports the change once
      */
     @Override
     public void setX(float x) {
         if (x != getX()) {
             float dX = x - getX();
-            for (Layer l : getLayers()) {
-                l.setX(l.getX() + dX);
+            willChange(ChangeBus.CHANGE_GEOMETRY);
+            EditTransaction transaction = getTransaction();
+            transaction.begin();
+            try {
+                for (Layer l : getLayers()) {
+                    l.setX(l.getX() + dX);
+                }
+                super.setX(x);
+            } finally {
+                transaction.commit();
             }
-            super.setX(x);
         }
     }
 
@@ -144,10 +344,17 @@ public class LayerGroup extends Layer {
     public void setY(float y) {
         if (y != getY()) {
             float dY = y - getY();
-            for (Layer l : getLayers()) {
-                l.setY(l.getY() + dY);
+            willChange(ChangeBus.CHANGE_GEOMETRY);
+            EditTransaction transaction = getTransaction();
+            transaction.begin();
+            try {
+                for (Layer l : getLayers()) {
+                    l.setY(l.getY() + dY);
+                }
+                super.setY(y);
+            } finally {
+                transaction.commit();
             }
-            super.setY(y);
         }
     }
 
@@ -155,11 +362,19 @@ public class LayerGroup extends Layer {
     public void setWidth(float width) {
         if (width != getWidth() && getStartWidth() != 0) {
             float scale = width / getStartWidth();
-            for (Layer l : getLayers()) {
-                l.setWidth(l.getStartWidth() * scale);
-                l.setX(getX() + (l.getStartX() - getStartX()) * scale);
+            float x = getX();
+            willChange(ChangeBus.CHANGE_GEOMETRY);
+            EditTransaction transaction = getTransaction();
+            transaction.begin();
+            try {
+                for (Layer l : getLayers()) {
+                    l.setWidth(l.getStartWidth() * scale);
+                    l.setX(x + (l.getStartX() - getStartX()) * scale);
+                }
+                super.setWidth(width);
+            } finally {
+                transaction.commit();
             }
-            super.setWidth(width);
         }
     }
 
@@ -167,11 +382,19 @@ public class LayerGroup extends Layer {
     public void setHeight(float height) {
         if (height != getHeight() && getStartHeight() != 0) {
             float scale = height / getStartHeight();
-            for (Layer l : getLayers()) {
-                l.setHeight(l.getStartHeight() * scale);
-                l.setY(getY() + (l.getStartY() - getStartY()) * scale);
+            float y = getY();
+            willChange(ChangeBus.CHANGE_GEOMETRY);
+            EditTransaction transaction = getTransaction();
+            transaction.begin();
+            try {
+                for (Layer l : getLayers()) {
+                    l.setHeight(l.getStartHeight() * scale);
+                    l.setY(y + (l.getStartY() - getStartY()) * scale);
+                }
+                super.setHeight(height);
+            } finally {
+                transaction.commit();
             }
-            super.setHeight(height);
         }
     }
 
@@ -191,6 +414,44 @@ public class LayerGroup extends Layer {
         }
     }
 
+    /**
+     * A group overlaps the polygon if any of its visible children do
+     */
+    @Override
+    public boolean intersectsPolygon(float[] points, int count) {
+        return intersectsPolygon(points, count, new ArrayList<Layer>());
+    }
+
+    @Override
+    public boolean intersectsPolygon(float[] points, int count, List<Layer> scratch) {
+        if (count == 0) {
+            return false;
+        }
+        float left = points[0];
+        float top = points[1];
+        float right = left;
+        float bottom = top;
+        for (int i = 1; i < count; i++) {
+            left = Math.min(left, points[i * 2]);
+            top = Math.min(top, points[i * 2 + 1]);
+            right = Math.max(right, points[i * 2]);
+            bottom = Math.max(bottom, points[i * 2 + 1]);
+        }
+
+        // Nested groups append their own candidates after these, and remove them once done
+        int start = scratch.size();
+        findLayersIn(left, top, right, bottom, scratch);
+        boolean hit = false;
+        for (int i = start; i < scratch.size() && !hit; i++) {
+            Layer l = scratch.get(i);
+            hit = l.isVisible() && l.intersectsPolygon(points, count, scratch);
+        }
+        for (int i = scratch.size() - 1; i >= start; i--) {
+            scratch.remove(i);
+        }
+        return hit;
+    }
+
     @Override
     public boolean inBounds(float x, float y) {
         if (getLayers().size() == 0) {
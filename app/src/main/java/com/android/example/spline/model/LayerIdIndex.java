@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.model;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Maps ids to the layers of a document's tree. Every LayerGroup in the tree points at the index,
+ * so adding or removing a layer through LayerGroup updates it for the layer and its descendants.
+ * The index also attaches the document's ChangeBus to the layers in the tree, and detaches it from
+ * those that leave.
+ */
+class LayerIdIndex {
+
+    private final HashMap<Long, Layer> layers = new HashMap<>();
+    private final ChangeBus changeBus;
+
+    LayerIdIndex(ChangeBus changeBus) {
+        this.changeBus = changeBus;
+    }
+
+    /**
+     * Indexes a layer and its descendants. A layer whose id is already used by another layer is
+     * given a new one.
+     */
+    void add(Layer layer) {
+        Layer existing = layers.get(layer.getId());
+        if (existing != null && existing != layer) {
+            layer.assignNewId();
+        } else {
+            Layer.reserveId(layer.getId());
+        }
+        layers.put(layer.getId(), layer);
+        layer.changeBus = changeBus;
+
+        if (layer instanceof LayerGroup) {
+            LayerGroup group = (LayerGroup) layer;
+            group.setIdIndex(this);
+            List<Layer> children = group.getLayers();
+            for (int i = 0; i < children.size(); i++) {
+                add(children.get(i));
+            }
+        }
+    }
+
+    /**
+     * Removes a layer and its descendants
+     */
+    void remove(Layer layer) {
+        if (layers.get(layer.getId()) == layer) {
+            layers.remove(layer.getId());
+        }
+        layer.changeBus = null;
+        changeBus.detach(layer);
+
+        if (layer instanceof LayerGroup) {
+            LayerGroup group = (LayerGroup) layer;
+            group.setIdIndex(null);
+            List<Layer> children = group.getLayers();
+            for (int i = 0; i < children.size(); i++) {
+                remove(children.get(i));
+            }
+        }
+    }
+
+    Layer get(long id) {
+        return layers.get(id);
+    }
+}
@@ -0,0 +1,666 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.model;
+
+import android.databinding.ObservableList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * An R-tree over the bounding boxes of a LayerGroup's children, used to answer point and rectangle
+ * queries without visiting every child. Entries hold a key that increases with their child's
+ * position in the group's list, so that results can be returned in z-order. Keys are spaced apart,
+ * so that children inserted anywhere in the list can usually be keyed without renumbering others.
+ * <p>
+ * The index follows the group's list of children as it changes, and learns of moved or resized
+ * children from the document's ChangeBus, through BOUNDS_LISTENER. Those are only marked dirty, and
+ * are reinserted the next time the index is queried, so a drag doesn't touch the tree on every
+ * move. Since a nested group's bounds are derived from its own children, a child group reports
+ * changes to its bounds through its own index. Children of a group outside of any document, which
+ * has no bus, report changes to their bounds directly from their setters.
+ */
+class LayerIndex {
+
+    // Maximum and minimum number of children of a tree node
+    private static final int MAX_ENTRIES = 8;
+    private static final int MIN_ENTRIES = 3;
+
+    // Gap left between the z-order keys of neighboring entries
+    private static final long ORDER_SPACING = 1L << 32;
+
+    private static final Comparator<Entry> TOP_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Long.compare(b.order, a.order);
+        }
+    };
+
+    private static final Comparator<Entry> BOTTOM_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Long.compare(a.order, b.order);
+        }
+    };
+
+    /**
+     * A child layer and the bounding box it was last indexed with
+     */
+    private static class Entry {
+        final Layer layer;
+        // Increases with the position in the group's list of children
+        long order;
+        float left, top, right, bottom;
+        // The leaf holding this entry, or null if the layer has no bounds (e.g. an empty group)
+        Node leaf;
+        boolean dirty;
+
+        Entry(Layer layer) {
+            this.layer = layer;
+        }
+    }
+
+    private static class Node {
+        boolean leaf;
+        Node parent;
+        // Entries for leaves, Nodes otherwise
+        final Object[] children = new Object[MAX_ENTRIES + 1];
+        int count;
+        float left, top, right, bottom;
+
+        Node(boolean leaf) {
+            this.leaf = leaf;
+        }
+    }
+
+    private final LayerGroup mGroup;
+    // One entry per child, in the same order as the group's list
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+    private final IdentityHashMap<Layer, Entry> mEntriesByLayer = new IdentityHashMap<>();
+    private final ArrayList<Entry> mDirty = new ArrayList<>();
+    private final ArrayList<Entry> mResults = new ArrayList<>();
+    private Node mRoot = new Node(true);
+
+    // Scratch space for splitting an overflowing node, and for the entries of dissolved nodes
+    private final Object[] mSplitItems = new Object[MAX_ENTRIES + 1];
+    private final float[] mSplitBounds = new float[(MAX_ENTRIES + 1) * 4];
+    private final boolean[] mSplitAssigned = new boolean[MAX_ENTRIES + 1];
+    private final ArrayList<Entry> mOrphans = new ArrayList<>();
+    // Nodes of dissolved parts of the tree, reused by splits
+    private final ArrayList<Node> mFreeNodes = new ArrayList<>();
+
+    private final ObservableList.OnListChangedCallback<ObservableList<Layer>> mOnListChangedCallback =
+            new ObservableList.OnListChangedCallback<ObservableList<Layer>>() {
+                @Override
+                public void onChanged(ObservableList<Layer> layers) {
+                    rebuild();
+                }
+
+                @Override
+                public void onItemRangeChanged(ObservableList<Layer> layers, int start,
+                                               int count) {
+                    removeEntries(start, count);
+                    insertEntries(start, count);
+                }
+
+                @Override
+                public void onItemRangeInserted(ObservableList<Layer> layers, int start,
+                                                int count) {
+                    insertEntries(start, count);
+                }
+
+                @Override
+                public void onItemRangeMoved(ObservableList<Layer> layers, int from, int to,
+                                             int count) {
+                    rebuild();
+                }
+
+                @Override
+                public void onItemRangeRemoved(ObservableList<Layer> layers, int start,
+                                               int count) {
+                    removeEntries(start, count);
+                }
+            };
+
+    /**
+     * Marks moved and resized layers dirty in the index of their group. Subscribed once to each
+     * document's bus, before anyone else, so that listeners querying the indexes find them up to
+     * date.
+     */
+    static final ChangeBus.Listener BOUNDS_LISTENER = new ChangeBus.Listener() {
+        @Override
+        public void onLayersChanged(List<ChangeBus.Change> changes) {
+            for (int i = 0, n = changes.size(); i < n; i++) {
+                ChangeBus.Change change = changes.get(i);
+                Layer layer = change.getLayer();
+                if (change.hasChanged(ChangeBus.CHANGE_GEOMETRY)
+                        && layer.getParent() instanceof LayerGroup) {
+                    ((LayerGroup) layer.getParent()).onChildBoundsChanged(layer);
+                }
+            }
+        }
+    };
+
+    LayerIndex(LayerGroup group) {
+        mGroup = group;
+        group.getLayers().addOnListChangedCallback(mOnListChangedCallback);
+        insertEntries(0, group.getLayers().size());
+    }
+
+    /**
+     * Marks the given child's entry for reinsertion, and lets the group's parent know that the
+     * group's bounds may have changed along with it. Does nothing if the layer isn't a child.
+     */
+    void onBoundsChanged(Layer layer) {
+        Entry entry = mEntriesByLayer.get(layer);
+        if (entry == null) {
+            return;
+        }
+        if (!entry.dirty) {
+            entry.dirty = true;
+            mDirty.add(entry);
+        }
+        // Reported even if the entry was already dirty, since the parent's index may have been
+        // queried, and the group reinserted, since then
+        mGroup.onBoundsChanged();
+    }
+
+    /**
+     * Marks every entry for reinsertion, for when changes to the children may have gone unreported
+     */
+    void invalidateAll() {
+        for (int i = 0, n = mEntries.size(); i < n; i++) {
+            Entry entry = mEntries.get(i);
+            if (!entry.dirty) {
+                entry.dirty = true;
+                mDirty.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Collects the children whose bounding boxes contain the given point, topmost first
+     */
+    void findLayersAt(float x, float y, List<Layer> out) {
+        query(x, y, x, y, TOP_FIRST, out);
+    }
+
+    /**
+     * Collects the children whose bounding boxes intersect the given rectangle, bottommost first
+     */
+    void findLayersIn(float left, float top, float right, float bottom, List<Layer> out) {
+        query(left, top, right, bottom, BOTTOM_FIRST, out);
+    }
+
+    private void query(float left, float top, float right, float bottom,
+                       Comparator<Entry> order, List<Layer> out) {
+        flush();
+        ArrayList<Entry> results = mResults;
+        search(mRoot, left, top, right, bottom, results);
+        Collections.sort(results, order);
+        for (int i = 0; i < results.size(); i++) {
+            out.add(results.get(i).layer);
+        }
+        results.clear();
+    }
+
+    private static void search(Node node, float left, float top, float right, float bottom,
+                               List<Entry> out) {
+        for (int i = 0; i < node.count; i++) {
+            if (node.leaf) {
+                Entry e = (Entry) node.children[i];
+                if (e.left <= right && e.right >= left && e.top <= bottom && e.bottom >= top) {
+                    out.add(e);
+                }
+            } else {
+                Node child = (Node) node.children[i];
+                if (child.left <= right && child.right >= left && child.top <= bottom
+                        && child.bottom >= top) {
+                    search(child, left, top, right, bottom, out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reinserts entries whose layers moved or were resized since the last query
+     */
+    private void flush() {
+        for (int i = 0; i < mDirty.size(); i++) {
+            Entry entry = mDirty.get(i);
+            entry.dirty = false;
+            if (entry.leaf != null) {
+                remove(entry);
+            }
+            index(entry);
+        }
+        mDirty.clear();
+    }
+
+    private void rebuild() {
+        removeEntries(0, mEntries.size());
+        insertEntries(0, mGroup.getLayers().size());
+    }
+
+    private void insertEntries(int start, int count) {
+        List<Layer> layers = mGroup.getLayers();
+        for (int i = start; i < start + count; i++) {
+            Layer layer = layers.get(i);
+            Entry entry = new Entry(layer);
+            mEntries.add(i, entry);
+            mEntriesByLayer.put(layer, entry);
+            if (layer instanceof LayerGroup) {
+                // Child groups report changes to their bounds through their own index
+                ((LayerGroup) layer).getIndex();
+            }
+            index(entry);
+        }
+        assignOrder(start, count);
+        mGroup.onBoundsChanged();
+    }
+
+    private void removeEntries(int start, int count) {
+        for (int i = start; i < start + count; i++) {
+            Entry entry = mEntries.get(i);
+            mEntriesByLayer.remove(entry.layer);
+            if (entry.leaf != null) {
+                remove(entry);
+            }
+            if (entry.dirty) {
+                mDirty.remove(entry);
+            }
+        }
+        // Removing entries leaves the keys of the others in order
+        mEntries.subList(start, start + count).clear();
+        mGroup.onBoundsChanged();
+    }
+
+    /**
+     * Keys the given range of newly inserted entries between their neighbors, or renumbers every
+     * entry if there isn't room
+     */
+    private void assignOrder(int start, int count) {
+        int end = start + count;
+        boolean hasPrevious = start > 0;
+        boolean hasNext = end < mEntries.size();
+        long gap = (count + 1) * ORDER_SPACING;
+        long before;
+        long after;
+        if (hasPrevious) {
+            before = mEntries.get(start - 1).order;
+            after = hasNext ? mEntries.get(end).order : before + gap;
+        } else {
+            after = hasNext ? mEntries.get(end).order : gap;
+            before = after - gap;
+        }
+
+        long step = (after - before) / (count + 1);
+        if (step == 0) {
+            for (int i = 0; i < mEntries.size(); i++) {
+                mEntries.get(i).order = i * ORDER_SPACING;
+            }
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            mEntries.get(start + i).order = before + step * (i + 1);
+        }
+    }
+
+    /**
+     * Reads the entry's bounds from its layer and inserts it into the tree if it has any
+     */
+    private void index(Entry entry) {
+        Layer layer = entry.layer;
+        if (layer instanceof LayerGroup && ((LayerGroup) layer).getLayers().isEmpty()) {
+            return;
+        }
+        float left = layer.getLeft();
+        float right = layer.getRight();
+        float top = layer.getTop();
+        float bottom = layer.getBottom();
+        entry.left = Math.min(left, right);
+        entry.right = Math.max(left, right);
+        entry.top = Math.min(top, bottom);
+        entry.bottom = Math.max(top, bottom);
+        insert(entry);
+    }
+
+    private void insert(Entry entry) {
+        Node leaf = mRoot;
+        while (!leaf.leaf) {
+            leaf = chooseChild(leaf, entry.left, entry.top, entry.right, entry.bottom);
+        }
+        entry.leaf = leaf;
+        leaf.children[leaf.count++] = entry;
+        adjust(leaf, entry.left, entry.top, entry.right, entry.bottom);
+    }
+
+    /**
+     * Picks the child needing the least enlargement to hold the given box, the smallest on ties
+     */
+    private static Node chooseChild(Node node, float left, float top, float right,
+                                    float bottom) {
+        Node best = null;
+        float bestGrowth = Float.POSITIVE_INFINITY;
+        float bestArea = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < node.count; i++) {
+            Node child = (Node) node.children[i];
+            float area = area(child.left, child.top, child.right, child.bottom);
+            float growth = area(Math.min(child.left, left), Math.min(child.top, top),
+                    Math.max(child.right, right), Math.max(child.bottom, bottom)) - area;
+            if (growth < bestGrowth || (growth == bestGrowth && area < bestArea)) {
+                best = child;
+                bestGrowth = growth;
+                bestArea = area;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Grows the node and its ancestors to include the given box, splitting nodes that overflowed
+     */
+    private void adjust(Node node, float left, float top, float right, float bottom) {
+        while (node != null) {
+            if (node.leaf && node.count == 1) {
+                node.left = left;
+                node.top = top;
+                node.right = right;
+                node.bottom = bottom;
+            } else {
+                node.left = Math.min(node.left, left);
+                node.top = Math.min(node.top, top);
+                node.right = Math.max(node.right, right);
+                node.bottom = Math.max(node.bottom, bottom);
+            }
+            if (node.count > MAX_ENTRIES) {
+                split(node);
+            }
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Quadratic split: seeds the two nodes with the pair of children that would waste the most area
+     * together, then hands out the rest one at a time to whichever node they enlarge the least.
+     */
+    private void split(Node node) {
+        int n = node.count;
+        Object[] items = mSplitItems;
+        System.arraycopy(node.children, 0, items, 0, n);
+        float[] bounds = mSplitBounds;
+        for (int i = 0; i < n; i++) {
+            getBounds(items[i], bounds, i * 4);
+        }
+
+        int seedA = 0;
+        int seedB = 1;
+        float worst = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                float waste = area(Math.min(bounds[i * 4], bounds[j * 4]),
+                        Math.min(bounds[i * 4 + 1], bounds[j * 4 + 1]),
+                        Math.max(bounds[i * 4 + 2], bounds[j * 4 + 2]),
+                        Math.max(bounds[i * 4 + 3], bounds[j * 4 + 3]))
+                        - area(bounds, i) - area(bounds, j);
+                if (waste > worst) {
+                    worst = waste;
+                    seedA = i;
+                    seedB = j;
+                }
+            }
+        }
+
+        Node sibling = obtainNode(node.leaf);
+        node.count = 0;
+        boolean[] assigned = mSplitAssigned;
+        Arrays.fill(assigned, false);
+        add(node, items[seedA], bounds, seedA);
+        add(sibling, items[seedB], bounds, seedB);
+        assigned[seedA] = true;
+        assigned[seedB] = true;
+
+        for (int remaining = n - 2; remaining > 0; remaining--) {
+            // Make sure each node ends up with at least the minimum number of children
+            Node target = null;
+            if (node.count + remaining == MIN_ENTRIES) {
+                target = node;
+            } else if (sibling.count + remaining == MIN_ENTRIES) {
+                target = sibling;
+            }
+
+            int next = -1;
+            float nextGrowthA = 0;
+            float nextGrowthB = 0;
+            float mostPreference = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                if (assigned[i]) {
+                    continue;
+                }
+                float growthA = growth(node, bounds, i);
+                float growthB = growth(sibling, bounds, i);
+                float preference = Math.abs(growthA - growthB);
+                if (preference > mostPreference) {
+                    mostPreference = preference;
+                    next = i;
+                    nextGrowthA = growthA;
+                    nextGrowthB = growthB;
+                }
+            }
+
+            if (target == null) {
+                if (nextGrowthA != nextGrowthB) {
+                    target = nextGrowthA < nextGrowthB ? node : sibling;
+                } else {
+                    target = node.count <= sibling.count ? node : sibling;
+                }
+            }
+            add(target, items[next], bounds, next);
+            assigned[next] = true;
+        }
+
+        for (int i = node.count; i < n; i++) {
+            node.children[i] = null;
+        }
+        Arrays.fill(items, 0, n, null);
+
+        if (node.parent == null) {
+            // Splitting the root grows the tree by a level
+            Node root = obtainNode(false);
+            root.children[0] = node;
+            root.children[1] = sibling;
+            root.count = 2;
+            node.parent = root;
+            sibling.parent = root;
+            root.left = Math.min(node.left, sibling.left);
+            root.top = Math.min(node.top, sibling.top);
+            root.right = Math.max(node.right, sibling.right);
+            root.bottom = Math.max(node.bottom, sibling.bottom);
+            mRoot = root;
+        } else {
+            Node parent = node.parent;
+            parent.children[parent.count++] = sibling;
+            sibling.parent = parent;
+            // The caller continues adjusting from the parent, which overflows in turn if need be
+        }
+    }
+
+    private static void add(Node node, Object item, float[] bounds, int i) {
+        float left = bounds[i * 4];
+        float top = bounds[i * 4 + 1];
+        float right = bounds[i * 4 + 2];
+        float bottom = bounds[i * 4 + 3];
+        if (node.count == 0) {
+            node.left = left;
+            node.top = top;
+            node.right = right;
+            node.bottom = bottom;
+        } else {
+            node.left = Math.min(node.left, left);
+            node.top = Math.min(node.top, top);
+            node.right = Math.max(node.right, right);
+            node.bottom = Math.max(node.bottom, bottom);
+        }
+        node.children[node.count++] = item;
+        if (node.leaf) {
+            ((Entry) item).leaf = node;
+        } else {
+            ((Node) item).parent = node;
+        }
+    }
+
+    private void remove(Entry entry) {
+        Node leaf = entry.leaf;
+        entry.leaf = null;
+        removeChild(leaf, entry);
+
+        // Dissolve nodes that underflowed, and reinsert the entries they held
+        ArrayList<Entry> orphans = mOrphans;
+        Node node = leaf;
+        while (node.parent != null) {
+            Node parent = node.parent;
+            if (node.count < MIN_ENTRIES) {
+                removeChild(parent, node);
+                collect(node, orphans);
+            } else {
+                recomputeBounds(node);
+            }
+            node = parent;
+        }
+        recomputeBounds(mRoot);
+
+        while (!mRoot.leaf && mRoot.count == 1) {
+            Node root = mRoot;
+            mRoot = (Node) root.children[0];
+            mRoot.parent = null;
+            recycleNode(root);
+        }
+        if (!mRoot.leaf && mRoot.count == 0) {
+            mRoot.leaf = true;
+        }
+
+        for (int i = 0; i < orphans.size(); i++) {
+            insert(orphans.get(i));
+        }
+        orphans.clear();
+    }
+
+    private static void removeChild(Node node, Object child) {
+        for (int i = 0; i < node.count; i++) {
+            if (node.children[i] == child) {
+                node.count--;
+                node.children[i] = node.children[node.count];
+                node.children[node.count] = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Collects the entries under a node that was taken out of the tree, recycling its nodes
+     */
+    private void collect(Node node, List<Entry> out) {
+        for (int i = 0; i < node.count; i++) {
+            if (node.leaf) {
+                out.add((Entry) node.children[i]);
+            } else {
+                collect((Node) node.children[i], out);
+            }
+        }
+        recycleNode(node);
+    }
+
+    private Node obtainNode(boolean leaf) {
+        if (mFreeNodes.isEmpty()) {
+            return new Node(leaf);
+        }
+        Node node = mFreeNodes.remove(mFreeNodes.size() - 1);
+        node.leaf = leaf;
+        return node;
+    }
+
+    private void recycleNode(Node node) {
+        Arrays.fill(node.children, 0, node.count, null);
+        node.count = 0;
+        node.parent = null;
+        mFreeNodes.add(node);
+    }
+
+    private static void recomputeBounds(Node node) {
+        for (int i = 0; i < node.count; i++) {
+            Object child = node.children[i];
+            float left, top, right, bottom;
+            if (child instanceof Entry) {
+                Entry e = (Entry) child;
+                left = e.left;
+                top = e.top;
+                right = e.right;
+                bottom = e.bottom;
+            } else {
+                Node n = (Node) child;
+                left = n.left;
+                top = n.top;
+                right = n.right;
+                bottom = n.bottom;
+            }
+            if (i == 0) {
+                node.left = left;
+                node.top = top;
+                node.right = right;
+                node.bottom = bottom;
+            } else {
+                node.left = Math.min(node.left, left);
+                node.top = Math.min(node.top, top);
+                node.right = Math.max(node.right, right);
+                node.bottom = Math.max(node.bottom, bottom);
+            }
+        }
+    }
+
+    private static void getBounds(Object item, float[] out, int offset) {
+        if (item instanceof Entry) {
+            Entry e = (Entry) item;
+            out[offset] = e.left;
+            out[offset + 1] = e.top;
+            out[offset + 2] = e.right;
+            out[offset + 3] = e.bottom;
+        } else {
+            Node n = (Node) item;
+            out[offset] = n.left;
+            out[offset + 1] = n.top;
+            out[offset + 2] = n.right;
+            out[offset + 3] = n.bottom;
+        }
+    }
+
+    private static float growth(Node node, float[] bounds, int i) {
+        return area(Math.min(node.left, bounds[i * 4]), Math.min(node.top, bounds[i * 4 + 1]),
+                Math.max(node.right, bounds[i * 4 + 2]), Math.max(node.bottom, bounds[i * 4 + 3]))
+                - area(node.left, node.top, node.right, node.bottom);
+    }
+
+    private static float area(float[] bounds, int i) {
+        return area(bounds[i * 4], bounds[i * 4 + 1], bounds[i * 4 + 2], bounds[i * 4 + 3]);
+    }
+
+    private static float area(float left, float top, float right, float bottom) {
+        return (right - left) * (bottom - top);
+    }
+}
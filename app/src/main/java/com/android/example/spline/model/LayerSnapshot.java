@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.model;
+
+/**
+ * An immutable copy of a layer and its descendants, as returned by Layer.getSnapshot. Snapshots
+ * can be read from any thread while the UI keeps editing the layers, which makes them suitable for
+ * saving, exporting or rendering in the background.
+ * <p>
+ * Each layer keeps its last snapshot until it or one of its descendants changes, so a new snapshot
+ * of a document only rebuilds the nodes on the paths from changed layers to the root, and shares
+ * every unchanged subtree with the snapshot before it. Taking a snapshot when nothing changed
+ * returns the same object.
+ */
+public final class LayerSnapshot {
+
+    public static final int TYPE_LAYER = 0;
+    public static final int TYPE_RECT = 1;
+    public static final int TYPE_TRIANGLE = 2;
+    public static final int TYPE_OVAL = 3;
+    public static final int TYPE_GROUP = 4;
+
+    private static final LayerSnapshot[] NO_CHILDREN = new LayerSnapshot[0];
+
+    private final int type;
+    private final long id;
+    private final String name;
+    private final boolean visible;
+    private final boolean selected;
+    private final int opacity;
+    private final float x, y, width, height;
+    private final int color;
+    private final LayerSnapshot[] children;
+
+    LayerSnapshot(Layer layer, int type, int color, LayerSnapshot[] children) {
+        this.type = type;
+        this.id = layer.getId();
+        this.name = layer.getName();
+        this.visible = layer.isVisible();
+        this.selected = layer.isSelected();
+        this.opacity = layer.getOpacity();
+        this.x = layer.getX();
+        this.y = layer.getY();
+        this.width = layer.getWidth();
+        this.height = layer.getHeight();
+        this.color = color;
+        this.children = children != null ? children : NO_CHILDREN;
+    }
+
+    /**
+     * @return one of the TYPE_ constants
+     */
+    public int getType() {
+        return type;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public boolean isSelected() {
+        return selected;
+    }
+
+    public int getOpacity() {
+        return opacity;
+    }
+
+    public float getX() {
+        return x;
+    }
+
+    public float getY() {
+        return y;
+    }
+
+    public float getWidth() {
+        return width;
+    }
+
+    public float getHeight() {
+        return height;
+    }
+
+    public float getLeft() {
+        return x;
+    }
+
+    public float getTop() {
+        return y;
+    }
+
+    public float getRight() {
+        return x + width;
+    }
+
+    public float getBottom() {
+        return y + height;
+    }
+
+    /**
+     * @return the ARGB color of a shape, or 0 for groups and plain layers
+     */
+    public int getColor() {
+        return color;
+    }
+
+    public int getChildCount() {
+        return children.length;
+    }
+
+    /**
+     * Children are in the same order as in the group's layer list, bottommost first
+     */
+    public LayerSnapshot getChild(int index) {
+        return children[index];
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.android.example.spline.model;
 
+import com.android.example.spline.util.ShapeUtils;
+
 /**
  * A data object representing an oval shape. Has corresponding inShapeBounds hit-testing method
  */
@@ -44,11 +46,12 @@ public class OvalLayer extends ShapeLayer {
      * @return true if the x, y coordinates fall within the layer's shape, false otherwise
      */
     public boolean inShapeBounds(float x, float y) {
-        float rx = getWidth() / 2;
-        float ry = getHeight() / 2;
-        float h = getLeft() + rx;
-        float k = getTop() + ry;
-        float val = ((x - h) * (x - h)) / (rx * rx) + ((y - k) * (y - k)) / (ry * ry);
-        return val <= 1;
+        return ShapeUtils.inOval(getLeft(), getTop(), getRight(), getBottom(), x, y);
+    }
+
+    @Override
+    public boolean intersectsPolygon(float[] points, int count) {
+        return ShapeUtils.ovalIntersectsPolygon(getLeft(), getTop(), getRight(), getBottom(),
+                points, count);
     }
 }
@@ -15,12 +15,18 @@
  */
 package com.android.example.spline.model;
 
+import java.util.List;
+
 /**
  * A LayerGroup representing a temporary selection of objects. Children added to this group to not
  * have their parent property changes so that they remain in their current tree until operated upon.
  */
 public class SelectionGroup extends LayerGroup {
 
+    // Set while the selection is selected, during which its layers invalidate its cached bounds
+    // when they move. Layers don't hold on to selections that were deselected, and so dropped.
+    private boolean tracking;
+
     public SelectionGroup() {
         super();
     }
@@ -30,18 +36,63 @@ public class SelectionGroup extends LayerGroup {
     public void addLayer(Layer l) {
         getLayers().add(l);
         l.setSelected(true);
+        if (tracking) {
+            l.addSelection(this);
+        }
     }
 
     @Override
     public void removeLayer(Layer l) {
         getLayers().remove(l);
         l.setSelected(false);
+        l.removeSelection(this);
+    }
+
+    /**
+     * The selection isn't part of a document itself, but its layers are, and their document's
+     * transaction batches their changes
+     */
+    @Override
+    public EditTransaction getTransaction() {
+        // Layer's constructor notifies before the list exists
+        List<Layer> layers = getLayers();
+        return layers == null || layers.isEmpty()
+                ? super.getTransaction() : layers.get(0).getTransaction();
+    }
+
+    /**
+     * The cached bounds are only trusted while the layers report their changes to the selection
+     */
+    @Override
+    boolean isBoundsCached() {
+        return tracking && super.isBoundsCached();
+    }
+
+    /**
+     * Selected layers don't report changes to the selection either, so its snapshot is rebuilt
+     * every time from those of the layers
+     */
+    @Override
+    public LayerSnapshot getSnapshot() {
+        return createSnapshot();
     }
 
     @Override
     public void setSelected(boolean selected) {
-        for (Layer l : getLayers()) {
+        List<Layer> layers = getLayers();
+        for (int i = 0; i < layers.size(); i++) {
+            Layer l = layers.get(i);
             l.setSelected(selected);
+            if (selected && !tracking) {
+                l.addSelection(this);
+            } else if (!selected && tracking) {
+                l.removeSelection(this);
+            }
+        }
+        if (selected && !tracking) {
+            // Layers may have moved while untracked
+            invalidateBounds();
         }
+        tracking = selected;
     }
 }
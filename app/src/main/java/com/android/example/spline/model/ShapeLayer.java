@@ -61,9 +61,11 @@ public abstract class ShapeLayer extends Layer {
     }
 
     public void setColor(Color color) {
+        willChange(ChangeBus.CHANGE_COLOR);
         this.color = color;
         addOnColorChangeListener();
         notifyPropertyChanged(BR.color);
+        publishChanges();
     }
 
     /**
@@ -74,11 +76,28 @@ public abstract class ShapeLayer extends Layer {
         this.color.addOnPropertyChangedCallback(new OnPropertyChangedCallback() {
             @Override
             public void onPropertyChanged(Observable sender, int propertyId) {
+                willChange(ChangeBus.CHANGE_COLOR);
                 ShapeLayer.this.notifyPropertyChanged(BR.color);
+                publishChanges();
             }
         });
     }
 
+    @Override
+    LayerSnapshot createSnapshot() {
+        int type;
+        if (this instanceof RectLayer) {
+            type = LayerSnapshot.TYPE_RECT;
+        } else if (this instanceof TriangleLayer) {
+            type = LayerSnapshot.TYPE_TRIANGLE;
+        } else if (this instanceof OvalLayer) {
+            type = LayerSnapshot.TYPE_OVAL;
+        } else {
+            type = LayerSnapshot.TYPE_LAYER;
+        }
+        return new LayerSnapshot(this, type, getColorInt(), null);
+    }
+
     /**
      * Determines if the point given by the x and y parameters falls within the shape represented
      * by this layer's shape type, assuming the shape is stretched across the layer's bounding box.
@@ -15,6 +15,8 @@
  */
 package com.android.example.spline.model;
 
+import com.android.example.spline.util.ShapeUtils;
+
 /**
  * A data object representing an oval shape. Has corresponding inShapeBounds hit-testing method
  */
@@ -45,27 +47,12 @@ public class TriangleLayer extends ShapeLayer {
      */
     @Override
     public boolean inShapeBounds(float x, float y) {
-        boolean inBounds = inBounds(x, y);
-        if (inBounds) {
-            float w = Math.abs(getWidth() / 2);
-            float h = Math.abs(getHeight());
-            if (getWidth() > 0) {
-                x -= getLeft();
-            } else {
-                x -= getRight();
-            }
-
-            if (getHeight() > 0) {
-                y = getBottom() - y;
-            } else {
-                y = y - getBottom();
-            }
+        return ShapeUtils.inTriangle(getLeft(), getTop(), getRight(), getBottom(), x, y);
+    }
 
-            if (x > w) {
-                x = Math.abs(getWidth()) - x;
-            }
-            return y / x <= h / w;
-        }
-        return inBounds;
+    @Override
+    public boolean intersectsPolygon(float[] points, int count) {
+        return ShapeUtils.triangleIntersectsPolygon(getLeft(), getTop(), getRight(), getBottom(),
+                points, count);
     }
 }
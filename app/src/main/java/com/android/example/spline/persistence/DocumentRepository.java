@@ -43,7 +43,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.reflect.Type;
-import java.util.UUID;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A singleton class for loading and persisting documents to the local file system or cloud storage
@@ -53,6 +54,7 @@ import java.util.UUID;
 public class DocumentRepository {
 
     private static final String TYPE = "type";
+    private static final String ID = "id";
     private static final String CURRENT_LAYER = "currentLayer";
     private static final String CLIPBOARD_LAYER = "clipboardLayer";
     private static final String LAYERS = "layers";
@@ -119,15 +121,19 @@ public class DocumentRepository {
      * the serialization/deserialization of the currently selected layer with the layer's UUID or a
      * list of UUIDs of a SelectionGroup's layers to persist the current layer as a reference to a
      * layer in the layer tree, rather than it's own layer.
+     * <p>
+     * Older files identify layers by UUID strings rather than numbers. Those layers are given new
+     * ids on load, and references to them are resolved through the UUIDs read from the tree.
      */
     private class DocumentTypeAdapter implements
             JsonSerializer<Document>, JsonDeserializer<Document> {
 
         private Gson g;
+        private LayerTypeAdapter layerAdapter;
 
         public DocumentTypeAdapter() {
             GsonBuilder builder = new GsonBuilder();
-            LayerTypeAdapter layerAdapter = new LayerTypeAdapter();
+            layerAdapter = new LayerTypeAdapter();
             builder.registerTypeAdapter(Layer.class, layerAdapter);
             builder.registerTypeAdapter(LayerGroup.class, layerAdapter);
             g = builder.create();
@@ -146,11 +152,11 @@ public class DocumentRepository {
                     SelectionGroup sg = (SelectionGroup) current;
                     JsonArray jsonIds = new JsonArray();
                     for (Layer l : sg.getLayers()) {
-                        jsonIds.add(l.getId().toString());
+                        jsonIds.add(l.getId());
                     }
                     obj.add(CURRENT_LAYER, jsonIds);
                 } else {
-                    obj.addProperty(CURRENT_LAYER, src.getCurrentLayer().getId().toString());
+                    obj.addProperty(CURRENT_LAYER, src.getCurrentLayer().getId());
                 }
             }
 
@@ -164,6 +170,7 @@ public class DocumentRepository {
             JsonObject obj = json.getAsJsonObject();
             JsonElement currentLayerEl = obj.remove(CURRENT_LAYER);
 
+            layerAdapter.legacyIds.clear();
             Document document = g.fromJson(obj, Document.class);
             LayerGroup root = document.getRoot();
 
@@ -174,22 +181,28 @@ public class DocumentRepository {
 
                     SelectionGroup selection = new SelectionGroup();
                     for (JsonElement el : jsonIds) {
-                        UUID id = UUID.fromString(el.getAsString());
-                        Layer l = root.findLayerById(id);
+                        Layer l = findLayer(document, el);
                         if (l != null) {
                             selection.addLayer(l);
                         }
                     }
                     currentLayer = selection;
                 } else {
-                    UUID currentLayerId = UUID.fromString(currentLayerEl.getAsString());
-                    currentLayer = root.findLayerById(currentLayerId);
+                    currentLayer = findLayer(document, currentLayerEl);
                 }
 
                 document.setCurrentLayer(currentLayer);
             }
+            layerAdapter.legacyIds.clear();
             return document;
         }
+
+        private Layer findLayer(Document document, JsonElement idEl) {
+            if (idEl.getAsJsonPrimitive().isNumber()) {
+                return document.findLayerById(idEl.getAsLong());
+            }
+            return layerAdapter.legacyIds.get(idEl.getAsString());
+        }
     }
 
     /**
@@ -198,6 +211,9 @@ public class DocumentRepository {
      */
     private class LayerTypeAdapter implements JsonSerializer<Layer>, JsonDeserializer<Layer> {
 
+        // Layers read with a UUID string id, by that string
+        final Map<String, Layer> legacyIds = new HashMap<>();
+
         @Override
         public JsonElement serialize(Layer src, Type typeOfSrc, JsonSerializationContext context) {
             Gson g = new Gson();
@@ -228,6 +244,16 @@ public class DocumentRepository {
             JsonObject obj = json.getAsJsonObject();
             JsonElement typeEl = obj.get(TYPE);
 
+            // Layers from older files keep the id generated by their constructor instead
+            String legacyId = null;
+            JsonElement idEl = obj.get(ID);
+            if (idEl != null && idEl.isJsonPrimitive() && !idEl.getAsJsonPrimitive().isNumber()) {
+                legacyId = idEl.getAsString();
+                obj.remove(ID);
+            } else if (idEl != null) {
+                Layer.reserveId(idEl.getAsLong());
+            }
+
             if (typeEl != null && typeEl.getAsString() != null) {
                 String t = typeEl.getAsString();
                 if (t.equals(LAYER_GROUP) || t.equals(SELECTION_GROUP)) {
@@ -269,6 +295,9 @@ public class DocumentRepository {
                 }
             }
 
+            if (layer != null && legacyId != null) {
+                legacyIds.put(legacyId, layer);
+            }
             return layer;
         }
     }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.render;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a 32 bit RGBA PNG image to a stream, a band of rows at a time, so that images far larger
+ * than what fits in memory can be encoded as they are rendered. Rows must be written top to
+ * bottom, and the image is complete once all of its rows have been written and finish() called.
+ */
+public class PngEncoder {
+
+    private static final byte[] SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+
+    private static final int COLOR_TYPE_RGBA = 6;
+    private static final int FILTER_SUB = 1;
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final Deflater mDeflater = new Deflater();
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mRow;
+    private final byte[] mBuffer = new byte[64 * 1024];
+    private int mRowsWritten;
+
+    public PngEncoder(OutputStream out, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+        }
+
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mRow = new byte[1 + width * 4];
+
+        mOut.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = COLOR_TYPE_RGBA;
+        // Compression, filter and interlace methods are all the defaults
+        writeChunk("IHDR", header, header.length);
+    }
+
+    /**
+     * Encodes the given number of rows of non-premultiplied ARGB pixels
+     *
+     * @param offset index in pixels of the first row's first pixel
+     * @param stride distance in pixels between rows
+     */
+    public void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+        if (mRowsWritten + rows > mHeight) {
+            throw new IllegalStateException("Image only has " + mHeight + " rows");
+        }
+
+        byte[] row = mRow;
+        for (int r = 0; r < rows; r++) {
+            // Each byte is stored as its difference from the same channel of the pixel to its left,
+            // which compresses flat areas of color very well
+            row[0] = FILTER_SUB;
+            int previous = 0;
+            int start = offset + r * stride;
+            for (int x = 0; x < mWidth; x++) {
+                int argb = pixels[start + x];
+                int i = 1 + x * 4;
+                row[i] = (byte) ((argb >> 16) - (previous >> 16));
+                row[i + 1] = (byte) ((argb >> 8) - (previous >> 8));
+                row[i + 2] = (byte) (argb - previous);
+                row[i + 3] = (byte) ((argb >>> 24) - (previous >>> 24));
+                previous = argb;
+            }
+
+            mDeflater.setInput(row);
+            while (!mDeflater.needsInput()) {
+                deflate();
+            }
+        }
+        mRowsWritten += rows;
+    }
+
+    /**
+     * Writes the end of the image. Does not close the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (mRowsWritten != mHeight) {
+            throw new IllegalStateException(
+                    "Only " + mRowsWritten + " of " + mHeight + " rows were written");
+        }
+
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            deflate();
+        }
+        mDeflater.end();
+        writeChunk("IEND", mBuffer, 0);
+        mOut.flush();
+    }
+
+    private void deflate() throws IOException {
+        int length = mDeflater.deflate(mBuffer);
+        if (length > 0) {
+            writeChunk("IDAT", mBuffer, length);
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] header = new byte[8];
+        putInt(header, 0, length);
+        for (int i = 0; i < 4; i++) {
+            header[4 + i] = (byte) type.charAt(i);
+        }
+        mOut.write(header);
+        mOut.write(data, 0, length);
+
+        mCrc.reset();
+        mCrc.update(header, 4, 4);
+        mCrc.update(data, 0, length);
+        byte[] crc = new byte[4];
+        putInt(crc, 0, (int) mCrc.getValue());
+        mOut.write(crc);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
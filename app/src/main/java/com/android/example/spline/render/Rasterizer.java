@@ -0,0 +1,291 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.render;
+
+import com.android.example.spline.util.ShapeUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Draws a Scene into an int[] ARGB buffer in plain Java. Shapes are scan converted with the span
+ * methods of ShapeUtils, so a pixel is covered exactly where the shape layers' hit tests say the
+ * shape is. Edges are anti-aliased by sampling each pixel row at several heights and computing the
+ * horizontal coverage of every span exactly. Groups are composited with their opacity as a whole,
+ * as DocumentView draws them.
+ * <p>
+ * A Rasterizer keeps scratch buffers between calls and isn't thread safe. Use one per thread.
+ */
+public class Rasterizer {
+
+    // Samples per pixel row
+    private static final int SUBSAMPLES = 4;
+
+    private final float[] mSpan = new float[2];
+    private float[] mCoverage = new float[0];
+    // Premultiplied buffers, one for the output and one per level of nested translucent groups
+    private final ArrayList<int[]> mLayers = new ArrayList<>();
+
+    private Scene mScene;
+    private float mOriginX;
+    private float mOriginY;
+    private float mScale;
+    private int mX;
+    private int mY;
+    private int mWidth;
+    private int mHeight;
+
+    /**
+     * Renders part of an image of the scene. The image maps document coordinates to pixels by
+     * subtracting originX and originY and then multiplying by scale.
+     *
+     * @param x the left edge of the area of the image to render, in pixels
+     * @param y the top edge of the area of the image to render, in pixels
+     * @param out receives the area's pixels as non-premultiplied ARGB, on a transparent background
+     * @param offset index in out of the area's top left pixel
+     * @param stride distance in out between rows
+     */
+    public void render(Scene scene, float originX, float originY, float scale, int x, int y,
+                       int width, int height, int[] out, int offset, int stride) {
+        mScene = scene;
+        mOriginX = originX;
+        mOriginY = originY;
+        mScale = scale;
+        mX = x;
+        mY = y;
+        mWidth = width;
+        mHeight = height;
+        if (mCoverage.length < width + 1) {
+            mCoverage = new float[width + 1];
+        }
+
+        int[] target = obtainLayer(0);
+        Arrays.fill(target, 0, width * height, 0);
+        drawRange(0, scene.size, 0);
+
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                out[offset + row * stride + col] = unpremultiply(target[row * width + col]);
+            }
+        }
+        mScene = null;
+    }
+
+    private void drawRange(int start, int end, int depth) {
+        Scene scene = mScene;
+        float left = mOriginX + mX / mScale;
+        float top = mOriginY + mY / mScale;
+        float right = mOriginX + (mX + mWidth) / mScale;
+        float bottom = mOriginY + (mY + mHeight) / mScale;
+
+        for (int i = start; i < end; i++) {
+            int b = i * 8;
+            float[] bounds = scene.bounds;
+            if (bounds[b + 6] < left || bounds[b + 4] > right || bounds[b + 7] < top
+                    || bounds[b + 5] > bottom) {
+                i = scene.ends[i] - 1;
+                continue;
+            }
+
+            int type = scene.types[i];
+            if (type == Scene.TYPE_GROUP) {
+                int alpha = scene.colors[i] >>> 24;
+                if (alpha == 255) {
+                    drawRange(i + 1, scene.ends[i], depth);
+                } else if (alpha > 0) {
+                    drawGroup(i, alpha, depth);
+                }
+                i = scene.ends[i] - 1;
+            } else {
+                fill(obtainLayer(depth), type, b, scene.colors[i]);
+            }
+        }
+    }
+
+    /**
+     * Draws a translucent group's children into a layer of their own, then composites the layer
+     * with the group's alpha.
+     */
+    private void drawGroup(int group, int alpha, int depth) {
+        int b = group * 8;
+        int col0 = Math.max(0, toColumn(mScene.bounds[b + 4]));
+        int col1 = Math.min(mWidth, toColumn(mScene.bounds[b + 6]) + 1);
+        int row0 = Math.max(0, toRow(mScene.bounds[b + 5]));
+        int row1 = Math.min(mHeight, toRow(mScene.bounds[b + 7]) + 1);
+        if (col0 >= col1 || row0 >= row1) {
+            return;
+        }
+
+        int[] layer = obtainLayer(depth + 1);
+        for (int row = row0; row < row1; row++) {
+            Arrays.fill(layer, row * mWidth + col0, row * mWidth + col1, 0);
+        }
+
+        drawRange(group + 1, mScene.ends[group], depth + 1);
+
+        int[] target = obtainLayer(depth);
+        for (int row = row0; row < row1; row++) {
+            for (int i = row * mWidth + col0, n = row * mWidth + col1; i < n; i++) {
+                int src = layer[i];
+                if (src != 0) {
+                    target[i] = srcOver(scale(src, alpha), target[i]);
+                }
+            }
+        }
+    }
+
+    private void fill(int[] target, int type, int b, int color) {
+        float[] bounds = mScene.bounds;
+        float left = bounds[b];
+        float top = bounds[b + 1];
+        float right = bounds[b + 2];
+        float bottom = bounds[b + 3];
+
+        int col0 = Math.max(0, toColumn(bounds[b + 4]));
+        int col1 = Math.min(mWidth, toColumn(bounds[b + 6]) + 1);
+        int row0 = Math.max(0, toRow(bounds[b + 5]));
+        int row1 = Math.min(mHeight, toRow(bounds[b + 7]) + 1);
+        if (col0 >= col1) {
+            return;
+        }
+
+        float[] coverage = mCoverage;
+        float[] span = mSpan;
+        float sampleWeight = 1f / SUBSAMPLES;
+        int alpha = color >>> 24;
+
+        for (int row = row0; row < row1; row++) {
+            Arrays.fill(coverage, col0, col1, 0);
+            boolean covered = false;
+
+            for (int s = 0; s < SUBSAMPLES; s++) {
+                float y = mOriginY + (mY + row + (s + 0.5f) / SUBSAMPLES) / mScale;
+                boolean hit;
+                switch (type) {
+                    case Scene.TYPE_RECT:
+                        hit = ShapeUtils.rectSpan(left, top, right, bottom, y, span);
+                        break;
+                    case Scene.TYPE_TRIANGLE:
+                        hit = ShapeUtils.triangleSpan(left, top, right, bottom, y, span);
+                        break;
+                    default:
+                        hit = ShapeUtils.ovalSpan(left, top, right, bottom, y, span);
+                        break;
+                }
+                if (!hit) {
+                    continue;
+                }
+
+                // Exact horizontal coverage of the span within each pixel it touches
+                float x0 = Math.max(col0, (span[0] - mOriginX) * mScale - mX);
+                float x1 = Math.min(col1, (span[1] - mOriginX) * mScale - mX);
+                if (x0 >= x1) {
+                    continue;
+                }
+                covered = true;
+                int first = (int) x0;
+                int last = Math.min(col1 - 1, (int) Math.ceil(x1) - 1);
+                if (first == last) {
+                    coverage[first] += (x1 - x0) * sampleWeight;
+                } else {
+                    coverage[first] += (first + 1 - x0) * sampleWeight;
+                    for (int col = first + 1; col < last; col++) {
+                        coverage[col] += sampleWeight;
+                    }
+                    coverage[last] += (x1 - last) * sampleWeight;
+                }
+            }
+
+            if (!covered) {
+                continue;
+            }
+
+            int rowOffset = row * mWidth;
+            for (int col = col0; col < col1; col++) {
+                int a = Math.round(Math.min(1, coverage[col]) * alpha);
+                if (a > 0) {
+                    int src = premultiply((color & 0xffffff) | (a << 24));
+                    target[rowOffset + col] = srcOver(src, target[rowOffset + col]);
+                }
+            }
+        }
+    }
+
+    private int toColumn(float x) {
+        return (int) Math.floor((x - mOriginX) * mScale) - mX;
+    }
+
+    private int toRow(float y) {
+        return (int) Math.floor((y - mOriginY) * mScale) - mY;
+    }
+
+    private int[] obtainLayer(int depth) {
+        while (mLayers.size() <= depth) {
+            mLayers.add(null);
+        }
+        int[] layer = mLayers.get(depth);
+        if (layer == null || layer.length < mWidth * mHeight) {
+            layer = new int[mWidth * mHeight];
+            mLayers.set(depth, layer);
+        }
+        return layer;
+    }
+
+    private static int div255(int v) {
+        v += 128;
+        return (v + (v >> 8)) >> 8;
+    }
+
+    private static int premultiply(int color) {
+        int a = color >>> 24;
+        return (a << 24)
+                | (div255(((color >> 16) & 0xff) * a) << 16)
+                | (div255(((color >> 8) & 0xff) * a) << 8)
+                | div255((color & 0xff) * a);
+    }
+
+    private static int unpremultiply(int color) {
+        int a = color >>> 24;
+        if (a == 0 || a == 255) {
+            return color;
+        }
+        return (a << 24)
+                | (Math.min(255, (((color >> 16) & 0xff) * 255 + a / 2) / a) << 16)
+                | (Math.min(255, (((color >> 8) & 0xff) * 255 + a / 2) / a) << 8)
+                | Math.min(255, ((color & 0xff) * 255 + a / 2) / a);
+    }
+
+    /**
+     * Scales all channels of a premultiplied color by the given alpha
+     */
+    private static int scale(int color, int alpha) {
+        return (div255((color >>> 24) * alpha) << 24)
+                | (div255(((color >> 16) & 0xff) * alpha) << 16)
+                | (div255(((color >> 8) & 0xff) * alpha) << 8)
+                | div255((color & 0xff) * alpha);
+    }
+
+    /**
+     * Composites premultiplied src over premultiplied dst
+     */
+    private static int srcOver(int src, int dst) {
+        int inverse = 255 - (src >>> 24);
+        return ((((src >>> 24) + div255((dst >>> 24) * inverse))) << 24)
+                | ((((src >> 16) & 0xff) + div255(((dst >> 16) & 0xff) * inverse)) << 16)
+                | ((((src >> 8) & 0xff) + div255(((dst >> 8) & 0xff) * inverse)) << 8)
+                | ((src & 0xff) + div255((dst & 0xff) * inverse));
+    }
+}
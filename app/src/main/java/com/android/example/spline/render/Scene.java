@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.render;
+
+import com.android.example.spline.model.Layer;
+import com.android.example.spline.model.LayerGroup;
+import com.android.example.spline.model.LayerSnapshot;
+import com.android.example.spline.model.OvalLayer;
+import com.android.example.spline.model.RectLayer;
+import com.android.example.spline.model.ShapeLayer;
+import com.android.example.spline.model.TriangleLayer;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable, flattened copy of a layer tree for the Rasterizer. Nodes are stored in pre-order
+ * in plain arrays, with each group followed by its descendants, so a scene can be shared by any
+ * number of render threads and needs nothing from the Android framework to draw.
+ * <p>
+ * Scenes are normally captured from a LayerGroup or a LayerSnapshot with from(), but can also be
+ * assembled directly with a Builder. Drawing a scene never needs Android, but capturing one can.
+ * LayerGroups, and the LayerSnapshots taken of them, are built from layer classes that depend on
+ * data binding and android.graphics.Color. On a plain JVM, such as in unit tests, use a Builder
+ * instead.
+ */
+public class Scene {
+
+    public static final int TYPE_GROUP = 0;
+    public static final int TYPE_RECT = 1;
+    public static final int TYPE_TRIANGLE = 2;
+    public static final int TYPE_OVAL = 3;
+
+    final int size;
+    final int[] types;
+    // Index just past each node's subtree
+    final int[] ends;
+    // ARGB colors for shapes. Groups only use the alpha, applied to their children as a whole.
+    final int[] colors;
+    // Per node: left, top, right, bottom of the box the shape is stretched across, followed by
+    // the normalized bounds used for culling (for groups, the union of their descendants)
+    final float[] bounds;
+
+    private Scene(Builder builder) {
+        size = builder.size;
+        types = Arrays.copyOf(builder.types, size);
+        ends = Arrays.copyOf(builder.ends, size);
+        colors = Arrays.copyOf(builder.colors, size);
+        bounds = Arrays.copyOf(builder.bounds, size * 8);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the union of the bounds of all shapes in the scene as left, top, right, bottom, or
+     * null if the scene is empty.
+     */
+    public float[] getBounds() {
+        float left = Float.POSITIVE_INFINITY;
+        float top = Float.POSITIVE_INFINITY;
+        float right = Float.NEGATIVE_INFINITY;
+        float bottom = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i = ends[i]) {
+            int b = i * 8;
+            left = Math.min(left, bounds[b + 4]);
+            top = Math.min(top, bounds[b + 5]);
+            right = Math.max(right, bounds[b + 6]);
+            bottom = Math.max(bottom, bounds[b + 7]);
+        }
+        return left <= right ? new float[] {left, top, right, bottom} : null;
+    }
+
+    /**
+     * Captures the visible shapes of the given layer tree. Must be called on the thread that owns
+     * the layers, the resulting scene can be used from any thread.
+     */
+    public static Scene from(LayerGroup root) {
+        Builder builder = new Builder();
+        add(builder, root.getLayers());
+        return builder.build();
+    }
+
+    /**
+     * Captures the visible shapes of a layer tree snapshot. Unlike from(LayerGroup), this can be
+     * called on any thread.
+     */
+    public static Scene from(LayerSnapshot root) {
+        Builder builder = new Builder();
+        add(builder, root);
+        return builder.build();
+    }
+
+    private static void add(Builder builder, LayerSnapshot group) {
+        for (int i = 0, n = group.getChildCount(); i < n; i++) {
+            LayerSnapshot layer = group.getChild(i);
+            if (!layer.isVisible()) {
+                continue;
+            }
+
+            int alpha = Math.round(layer.getOpacity() / 100f * 255);
+            int type;
+            switch (layer.getType()) {
+                case LayerSnapshot.TYPE_GROUP:
+                    builder.beginGroup(alpha);
+                    add(builder, layer);
+                    builder.endGroup();
+                    continue;
+                case LayerSnapshot.TYPE_RECT:
+                    type = TYPE_RECT;
+                    break;
+                case LayerSnapshot.TYPE_TRIANGLE:
+                    type = TYPE_TRIANGLE;
+                    break;
+                case LayerSnapshot.TYPE_OVAL:
+                    type = TYPE_OVAL;
+                    break;
+                default:
+                    continue;
+            }
+
+            int color = layer.getColor();
+            builder.addShape(type, layer.getLeft(), layer.getTop(), layer.getRight(),
+                    layer.getBottom(), (color & 0xffffff) | (alpha << 24));
+        }
+    }
+
+    private static void add(Builder builder, List<Layer> layers) {
+        for (int i = 0, n = layers.size(); i < n; i++) {
+            Layer layer = layers.get(i);
+            if (!layer.isVisible()) {
+                continue;
+            }
+
+            int alpha = Math.round(layer.getOpacity() / 100f * 255);
+            if (layer instanceof LayerGroup) {
+                builder.beginGroup(alpha);
+                add(builder, ((LayerGroup) layer).getLayers());
+                builder.endGroup();
+            } else if (layer instanceof ShapeLayer) {
+                int type;
+                if (layer instanceof RectLayer) {
+                    type = TYPE_RECT;
+                } else if (layer instanceof TriangleLayer) {
+                    type = TYPE_TRIANGLE;
+                } else if (layer instanceof OvalLayer) {
+                    type = TYPE_OVAL;
+                } else {
+                    continue;
+                }
+
+                // As on screen, the layer's opacity takes the place of its color's alpha
+                int color = ((ShapeLayer) layer).getColorInt();
+                builder.addShape(type, layer.getLeft(), layer.getTop(), layer.getRight(),
+                        layer.getBottom(), (color & 0xffffff) | (alpha << 24));
+            }
+        }
+    }
+
+    /**
+     * Assembles a scene in painting order. Groups are opened and closed around their children.
+     */
+    public static class Builder {
+        private int size;
+        private int[] types = new int[64];
+        private int[] ends = new int[64];
+        private int[] colors = new int[64];
+        private float[] bounds = new float[64 * 8];
+        private int[] openGroups = new int[8];
+        private int depth;
+
+        public Builder beginGroup(int alpha) {
+            int i = append(TYPE_GROUP, (alpha & 0xff) << 24);
+            int b = i * 8;
+            bounds[b + 4] = Float.POSITIVE_INFINITY;
+            bounds[b + 5] = Float.POSITIVE_INFINITY;
+            bounds[b + 6] = Float.NEGATIVE_INFINITY;
+            bounds[b + 7] = Float.NEGATIVE_INFINITY;
+
+            if (depth == openGroups.length) {
+                openGroups = Arrays.copyOf(openGroups, depth * 2);
+            }
+            openGroups[depth++] = i;
+            return this;
+        }
+
+        public Builder endGroup() {
+            if (depth == 0) {
+                throw new IllegalStateException("No group to end");
+            }
+
+            int group = openGroups[--depth];
+            ends[group] = size;
+            if (depth > 0) {
+                unionBounds(openGroups[depth - 1], group);
+            }
+            return this;
+        }
+
+        /**
+         * @param type one of TYPE_RECT, TYPE_TRIANGLE or TYPE_OVAL
+         */
+        public Builder addShape(int type, float left, float top, float right, float bottom,
+                                int color) {
+            if (type != TYPE_RECT && type != TYPE_TRIANGLE && type != TYPE_OVAL) {
+                throw new IllegalArgumentException("Not a shape type: " + type);
+            }
+
+            int i = append(type, color);
+            ends[i] = i + 1;
+            int b = i * 8;
+            bounds[b] = left;
+            bounds[b + 1] = top;
+            bounds[b + 2] = right;
+            bounds[b + 3] = bottom;
+            bounds[b + 4] = Math.min(left, right);
+            bounds[b + 5] = Math.min(top, bottom);
+            bounds[b + 6] = Math.max(left, right);
+            bounds[b + 7] = Math.max(top, bottom);
+
+            if (depth > 0) {
+                unionBounds(openGroups[depth - 1], i);
+            }
+            return this;
+        }
+
+        public Scene build() {
+            if (depth != 0) {
+                throw new IllegalStateException(depth + " groups were not ended");
+            }
+            return new Scene(this);
+        }
+
+        private int append(int type, int color) {
+            if (size == types.length) {
+                types = Arrays.copyOf(types, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                colors = Arrays.copyOf(colors, size * 2);
+                bounds = Arrays.copyOf(bounds, size * 16);
+            }
+            types[size] = type;
+            colors[size] = color;
+            return size++;
+        }
+
+        private void unionBounds(int group, int child) {
+            int g = group * 8;
+            int c = child * 8;
+            bounds[g + 4] = Math.min(bounds[g + 4], bounds[c + 4]);
+            bounds[g + 5] = Math.min(bounds[g + 5], bounds[c + 5]);
+            bounds[g + 6] = Math.max(bounds[g + 6], bounds[c + 6]);
+            bounds[g + 7] = Math.max(bounds[g + 7], bounds[c + 7]);
+        }
+    }
+}
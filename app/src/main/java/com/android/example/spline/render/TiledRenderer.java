@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.render;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Renders images of a Scene by splitting them into square tiles that are rasterized in parallel on
+ * a fork/join pool. PNG exports are rendered a band of tiles at a time, and each band is encoded
+ * while the next one renders, so memory use stays at two bands regardless of the image's height.
+ */
+public class TiledRenderer {
+
+    public static final int TILE_SIZE = 256;
+
+    // Rasterizers keep their scratch buffers between calls, so each worker thread reuses its own.
+    // Tiles never fork, so a thread can't start a tile while another one is rendering on it.
+    private static final ThreadLocal<Rasterizer> RASTERIZER = new ThreadLocal<Rasterizer>() {
+        @Override
+        protected Rasterizer initialValue() {
+            return new Rasterizer();
+        }
+    };
+
+    private final ForkJoinPool mPool;
+
+    public TiledRenderer() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public TiledRenderer(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Renders a whole image, e.g. a thumbnail. See Rasterizer.render for how document coordinates
+     * map to the image.
+     *
+     * @return the image's non-premultiplied ARGB pixels, row by row
+     */
+    public int[] render(Scene scene, float originX, float originY, float scale, int width,
+                        int height) {
+        int[] pixels = new int[width * height];
+        mPool.invoke(new Band(scene, originX, originY, scale, width, 0, height, pixels));
+        return pixels;
+    }
+
+    /**
+     * Renders an image of the given size and streams it to out as a PNG. Does not close out.
+     */
+    public void exportPng(Scene scene, float originX, float originY, float scale, int width,
+                          int height, OutputStream out) throws IOException {
+        PngEncoder encoder = new PngEncoder(out, width, height);
+        int bandHeight = Math.min(TILE_SIZE, height);
+        int[][] buffers = {new int[width * bandHeight], new int[width * bandHeight]};
+
+        ForkJoinTask<Void> next = mPool.submit(
+                new Band(scene, originX, originY, scale, width, 0, bandHeight, buffers[0]));
+        for (int y = 0, band = 0; y < height; y += bandHeight, band++) {
+            ForkJoinTask<Void> current = next;
+            current.join();
+
+            int rows = Math.min(bandHeight, height - y);
+            int nextY = y + bandHeight;
+            if (nextY < height) {
+                next = mPool.submit(new Band(scene, originX, originY, scale, width, nextY,
+                        Math.min(bandHeight, height - nextY), buffers[(band + 1) % 2]));
+            }
+
+            try {
+                encoder.writeRows(buffers[band % 2], 0, width, rows);
+            } catch (IOException e) {
+                if (nextY < height) {
+                    next.cancel(true);
+                }
+                throw e;
+            }
+        }
+        encoder.finish();
+    }
+
+    /**
+     * Renders a horizontal band of the image by forking one task per tile
+     */
+    private static class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Scene mScene;
+        private final float mOriginX;
+        private final float mOriginY;
+        private final float mScale;
+        private final int mWidth;
+        private final int mY;
+        private final int mHeight;
+        private final int[] mPixels;
+
+        Band(Scene scene, float originX, float originY, float scale, int width, int y,
+             int height, int[] pixels) {
+            mScene = scene;
+            mOriginX = originX;
+            mOriginY = originY;
+            mScale = scale;
+            mWidth = width;
+            mY = y;
+            mHeight = height;
+            mPixels = pixels;
+        }
+
+        @Override
+        protected void compute() {
+            List<Tile> tiles = new ArrayList<>();
+            for (int row = 0; row < mHeight; row += TILE_SIZE) {
+                for (int col = 0; col < mWidth; col += TILE_SIZE) {
+                    tiles.add(new Tile(this, col, row, Math.min(TILE_SIZE, mWidth - col),
+                            Math.min(TILE_SIZE, mHeight - row)));
+                }
+            }
+            invokeAll(tiles);
+        }
+    }
+
+    private static class Tile extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Band mBand;
+        private final int mX;
+        private final int mRow;
+        private final int mWidth;
+        private final int mHeight;
+
+        Tile(Band band, int x, int row, int width, int height) {
+            mBand = band;
+            mX = x;
+            mRow = row;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        protected void compute() {
+            Band band = mBand;
+            RASTERIZER.get().render(band.mScene, band.mOriginX, band.mOriginY, band.mScale, mX,
+                    band.mY + mRow, mWidth, mHeight, band.mPixels, mRow * band.mWidth + mX,
+                    band.mWidth);
+        }
+    }
+}
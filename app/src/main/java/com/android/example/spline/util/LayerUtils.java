@@ -18,6 +18,10 @@ package com.android.example.spline.util;
 import com.android.example.spline.model.Layer;
 import com.android.example.spline.model.SelectionGroup;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * Static utility methods for sharing common Layer operations across components.
  */
@@ -60,4 +64,45 @@ public class LayerUtils {
             return newLayer;
         }
     }
+
+    /**
+     * Determines the selection that results from selecting all of newLayers at once, e.g. with a
+     * marquee. In multi-selection mode they are added to the current selection, otherwise they
+     * replace it.
+     * @param currentLayer
+     * @param newLayers the layers to select, in z-order
+     * @param multi whether we are in multi-selection mode.
+     * @return
+     */
+    public static Layer selectionFrom(Layer currentLayer, List<Layer> newLayers, boolean multi) {
+        if (multi && currentLayer != null) {
+            if (newLayers.isEmpty()) {
+                return currentLayer;
+            }
+
+            SelectionGroup sg;
+            if (currentLayer instanceof SelectionGroup) {
+                sg = (SelectionGroup) currentLayer;
+            } else {
+                sg = new SelectionGroup();
+                sg.addLayer(currentLayer);
+            }
+
+            Set<Layer> selected = new HashSet<>(sg.getLayers());
+            for (Layer l : newLayers) {
+                if (selected.add(l)) {
+                    sg.addLayer(l);
+                }
+            }
+            return sg;
+        } else if (newLayers.size() > 1) {
+            SelectionGroup sg = new SelectionGroup();
+            for (Layer l : newLayers) {
+                sg.addLayer(l);
+            }
+            return sg;
+        } else {
+            return newLayers.isEmpty() ? null : newLayers.get(0);
+        }
+    }
 }
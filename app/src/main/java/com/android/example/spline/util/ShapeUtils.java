@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.util;
+
+/**
+ * Static geometry for the rect, oval and triangle shape types, shared by the shape layers' hit
+ * tests and by renderers that need to agree with them. All shapes are given by the left, top,
+ * right and bottom edges of the box they are stretched across, which may be flipped. Triangles
+ * point towards the top edge.
+ * <p>
+ * The span methods return the horizontal extent of a shape along a given y coordinate, i.e. the
+ * range of x for which the corresponding hit test is true.
+ * <p>
+ * The polygon methods test shapes against a region such as a lasso, given as count points stored
+ * as alternating x and y coordinates. The polygon is implicitly closed and may intersect itself,
+ * in which case its inside follows the even-odd rule.
+ */
+public class ShapeUtils {
+
+    public static boolean inRect(float left, float top, float right, float bottom, float x,
+                                 float y) {
+        return x >= Math.min(left, right) && x <= Math.max(left, right)
+                && y >= Math.min(top, bottom) && y <= Math.max(top, bottom);
+    }
+
+    public static boolean inOval(float left, float top, float right, float bottom, float x,
+                                 float y) {
+        float rx = (right - left) / 2;
+        float ry = (bottom - top) / 2;
+        float h = left + rx;
+        float k = top + ry;
+        float val = ((x - h) * (x - h)) / (rx * rx) + ((y - k) * (y - k)) / (ry * ry);
+        return val <= 1;
+    }
+
+    public static boolean inTriangle(float left, float top, float right, float bottom, float x,
+                                     float y) {
+        if (!inRect(left, top, right, bottom, x, y)) {
+            return false;
+        }
+
+        float w = Math.abs((right - left) / 2);
+        float h = Math.abs(bottom - top);
+        x -= Math.min(left, right);
+
+        // Distance from the base of the triangle
+        if (bottom > top) {
+            y = bottom - y;
+        } else {
+            y = y - bottom;
+        }
+
+        if (x > w) {
+            x = Math.abs(right - left) - x;
+        }
+        return y / x <= h / w;
+    }
+
+    /**
+     * @param out receives the left and right ends of the span
+     * @return false if the given y doesn't intersect the shape
+     */
+    public static boolean rectSpan(float left, float top, float right, float bottom, float y,
+                                   float[] out) {
+        if (y < Math.min(top, bottom) || y > Math.max(top, bottom)) {
+            return false;
+        }
+        out[0] = Math.min(left, right);
+        out[1] = Math.max(left, right);
+        return true;
+    }
+
+    /**
+     * @param out receives the left and right ends of the span
+     * @return false if the given y doesn't intersect the shape
+     */
+    public static boolean ovalSpan(float left, float top, float right, float bottom, float y,
+                                   float[] out) {
+        float rx = (right - left) / 2;
+        float ry = (bottom - top) / 2;
+        float dy = y - (top + ry);
+        float t = 1 - (dy * dy) / (ry * ry);
+        if (!(t >= 0)) {
+            return false;
+        }
+
+        float half = Math.abs(rx) * (float) Math.sqrt(t);
+        out[0] = left + rx - half;
+        out[1] = left + rx + half;
+        return true;
+    }
+
+    /**
+     * @param out receives the left and right ends of the span
+     * @return false if the given y doesn't intersect the shape
+     */
+    public static boolean triangleSpan(float left, float top, float right, float bottom, float y,
+                                       float[] out) {
+        if (y < Math.min(top, bottom) || y > Math.max(top, bottom) || top == bottom) {
+            return false;
+        }
+
+        float w = Math.abs((right - left) / 2);
+        float h = Math.abs(bottom - top);
+        float d = bottom > top ? bottom - y : y - bottom;
+
+        // Each side moves inwards by w / h for every unit away from the base
+        float inset = d * w / h;
+        out[0] = Math.min(left, right) + inset;
+        out[1] = Math.max(left, right) - inset;
+        return out[0] <= out[1];
+    }
+
+    public static boolean inPolygon(float[] points, int count, float x, float y) {
+        boolean inside = false;
+        for (int i = 0, j = count - 1; i < count; j = i++) {
+            float xi = points[i * 2];
+            float yi = points[i * 2 + 1];
+            float xj = points[j * 2];
+            float yj = points[j * 2 + 1];
+            if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * @return true if the rect shape and the polygon overlap or touch
+     */
+    public static boolean rectIntersectsPolygon(float left, float top, float right, float bottom,
+                                                float[] points, int count) {
+        if (count > 0 && inRect(left, top, right, bottom, points[0], points[1])) {
+            return true;
+        }
+        if (inPolygon(points, count, left, top)) {
+            return true;
+        }
+
+        // Neither contains the other, so they can only overlap if their edges cross
+        return edgeIntersectsPolygon(left, top, right, top, points, count)
+                || edgeIntersectsPolygon(right, top, right, bottom, points, count)
+                || edgeIntersectsPolygon(right, bottom, left, bottom, points, count)
+                || edgeIntersectsPolygon(left, bottom, left, top, points, count);
+    }
+
+    /**
+     * @return true if the triangle shape and the polygon overlap or touch
+     */
+    public static boolean triangleIntersectsPolygon(float left, float top, float right,
+                                                    float bottom, float[] points, int count) {
+        float apexX = (left + right) / 2;
+        if (count > 0 && inTriangle(apexX, top, right, bottom, left, bottom, points[0],
+                points[1])) {
+            return true;
+        }
+        if (inPolygon(points, count, apexX, top)) {
+            return true;
+        }
+
+        // Neither contains the other, so they can only overlap if their edges cross
+        return edgeIntersectsPolygon(apexX, top, right, bottom, points, count)
+                || edgeIntersectsPolygon(right, bottom, left, bottom, points, count)
+                || edgeIntersectsPolygon(left, bottom, apexX, top, points, count);
+    }
+
+    /**
+     * @return true if the oval shape and the polygon overlap or touch
+     */
+    public static boolean ovalIntersectsPolygon(float left, float top, float right, float bottom,
+                                                float[] points, int count) {
+        float rx = (right - left) / 2;
+        float ry = (bottom - top) / 2;
+        if (rx == 0 || ry == 0) {
+            // Degenerates to a line
+            return rectIntersectsPolygon(left, top, right, bottom, points, count);
+        }
+        float h = left + rx;
+        float k = top + ry;
+
+        // Scaled so that the oval becomes the unit circle, an edge touches the oval if it comes
+        // within a distance of 1 of its center
+        for (int i = 0, j = count - 1; i < count; j = i++) {
+            float ax = (points[j * 2] - h) / rx;
+            float ay = (points[j * 2 + 1] - k) / ry;
+            float bx = (points[i * 2] - h) / rx;
+            float by = (points[i * 2 + 1] - k) / ry;
+            float ex = bx - ax;
+            float ey = by - ay;
+            float lengthSquared = ex * ex + ey * ey;
+            float t = lengthSquared == 0 ? 0 : -(ax * ex + ay * ey) / lengthSquared;
+            t = Math.max(0, Math.min(1, t));
+            float cx = ax + ex * t;
+            float cy = ay + ey * t;
+            if (cx * cx + cy * cy <= 1) {
+                return true;
+            }
+        }
+
+        // Otherwise the oval is either entirely inside or entirely outside of the polygon
+        return inPolygon(points, count, h, k);
+    }
+
+    /**
+     * @return true if the point lies within or on the triangle with the given corners, in either
+     * winding order
+     */
+    private static boolean inTriangle(float ax, float ay, float bx, float by, float cx, float cy,
+                                      float x, float y) {
+        float d1 = cross(ax, ay, bx, by, x, y);
+        float d2 = cross(bx, by, cx, cy, x, y);
+        float d3 = cross(cx, cy, ax, ay, x, y);
+        return !((d1 < 0 || d2 < 0 || d3 < 0) && (d1 > 0 || d2 > 0 || d3 > 0));
+    }
+
+    private static boolean edgeIntersectsPolygon(float ax, float ay, float bx, float by,
+                                                 float[] points, int count) {
+        for (int m = 0, n = count - 1; m < count; n = m++) {
+            if (segmentsIntersect(ax, ay, bx, by, points[n * 2], points[n * 2 + 1],
+                    points[m * 2], points[m * 2 + 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean segmentsIntersect(float ax, float ay, float bx, float by, float cx,
+                                             float cy, float dx, float dy) {
+        float d1 = cross(cx, cy, dx, dy, ax, ay);
+        float d2 = cross(cx, cy, dx, dy, bx, by);
+        float d3 = cross(ax, ay, bx, by, cx, cy);
+        float d4 = cross(ax, ay, bx, by, dx, dy);
+        if (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0))
+                && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0))) {
+            return true;
+        }
+
+        // An end point lying on the other segment
+        return (d1 == 0 && inRect(cx, cy, dx, dy, ax, ay))
+                || (d2 == 0 && inRect(cx, cy, dx, dy, bx, by))
+                || (d3 == 0 && inRect(ax, ay, bx, by, cx, cy))
+                || (d4 == 0 && inRect(ax, ay, bx, by, dx, dy));
+    }
+
+    /**
+     * @return the z component of the cross product of (b - a) and (p - a)
+     */
+    private static float cross(float ax, float ay, float bx, float by, float px, float py) {
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+}
@@ -0,0 +1,1184 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+
+import com.android.example.spline.model.ChangeBus;
+import com.android.example.spline.model.Layer;
+import com.android.example.spline.model.LayerGroup;
+import com.android.example.spline.model.OvalLayer;
+import com.android.example.spline.model.RectLayer;
+import com.android.example.spline.model.ShapeLayer;
+import com.android.example.spline.model.TriangleLayer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A retained, flattened copy of a layer tree's draw commands. The tree is walked once to build a
+ * pre-order list of nodes, each of which caches the Paint (and Path for triangles) needed to draw
+ * its layer. Afterwards only the nodes whose layers report a property change are updated, and
+ * drawing a frame is a single allocation-free pass over the list.
+ * <p>
+ * Group nodes are kept in the list so that a hidden group can skip its whole subtree. Each group
+ * node also caches the union of its descendants' bounds, which lets draw skip entire subtrees that
+ * fall outside of the cull rectangle. When a layer changes, only the bounds of its ancestor groups
+ * are recomputed.
+ * <p>
+ * A group's opacity is applied once to the composited result of its children rather than being
+ * multiplied into each child, so overlapping children of a translucent group blend correctly.
+ * Groups with many descendants can additionally be rasterized into an offscreen bitmap that is
+ * reused, and drawn with a single call, until one of their descendants changes.
+ * <p>
+ * Shapes that lie entirely within a fully opaque rectangle drawn above them are skipped, see
+ * updateOcclusion. The set of occluding rectangles is kept up to date incrementally as layers
+ * change.
+ */
+public class DisplayList {
+
+    static final int TYPE_GROUP = 0;
+    static final int TYPE_RECT = 1;
+    static final int TYPE_TRIANGLE = 2;
+    static final int TYPE_OVAL = 3;
+    static final int TYPE_OTHER = 4;
+
+    /**
+     * Groups with at least this many descendants are cached as bitmaps by default
+     */
+    public static final int DEFAULT_GROUP_CACHE_THRESHOLD = 32;
+
+    // Caches larger than this in either dimension cost more memory than they save in draw calls
+    private static final int MAX_GROUP_CACHE_SIZE = 2048;
+
+    // A group is only cached once it has been drawn unchanged for this many frames, so that groups
+    // being actively edited aren't re-rasterized on every frame
+    private static final int GROUP_CACHE_STABLE_FRAMES = 2;
+
+    // The ChangeBus changes that affect what the list draws
+    private static final int DRAWN_CHANGES = ChangeBus.CHANGE_GEOMETRY
+            | ChangeBus.CHANGE_VISIBILITY | ChangeBus.CHANGE_OPACITY | ChangeBus.CHANGE_COLOR;
+
+    // Opaque rectangles smaller than this in either dimension aren't used to cull other shapes, they
+    // would rarely cover anything
+    private static final float MIN_OCCLUDER_SIZE = 32;
+
+    // Bounds the cost of testing a shape for occlusion. Only the topmost occluders are kept.
+    private static final int MAX_OCCLUDERS = 64;
+
+    // Shapes smaller than this many pixels on screen in both dimensions aren't drawn at all at
+    // reduced quality
+    private static final float REDUCED_QUALITY_MIN_SIZE = 2;
+
+    /**
+     * A single entry in the display list. Bounds are stored in document coordinates, the canvas is
+     * transformed by the viewport offset and scale when the list is drawn.
+     */
+    static class Node {
+        Layer layer;
+        Node parent;
+        int type;
+        int index;
+        // Index one past this node's last descendant. Equal to index + 1 for leaves.
+        int end;
+        int generation;
+        boolean dirty;
+        // ChangeBus mask of what changed about the layer while the node was dirty
+        int changes;
+        boolean boundsDirty;
+        boolean visible;
+        // Layer edges as drawn, which may be flipped if the layer has a negative width or height
+        float left, top, right, bottom;
+        // Normalized bounds used for culling. For groups, the union of all descendants.
+        float minX, minY, maxX, maxY;
+        // The layer's own opacity as a paint alpha
+        int alpha;
+        Paint paint;
+        Path path;
+        // Whether this is a fully opaque rectangle that hides whatever lies within it, and whether
+        // this shape is hidden by such a rectangle above it
+        boolean occluder;
+        boolean occluded;
+
+        // Offscreen cache of a group's composited children, positioned at cacheLeft, cacheTop
+        Bitmap cache;
+        Canvas cacheCanvas;
+        int cacheLeft, cacheTop;
+        boolean cacheDirty = true;
+        int stableFrames;
+    }
+
+    // Orders dirty groups so that descendants are recomputed before their ancestors
+    private static final Comparator<Node> DESCENDING_INDEX = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            return b.index - a.index;
+        }
+    };
+
+    private final ArrayList<Node> mNodes = new ArrayList<>();
+    private final HashMap<Layer, Node> mNodesByLayer = new HashMap<>();
+    // Group nodes keyed by their child list, which is what list change notifications report
+    private final IdentityHashMap<List<Layer>, Node> mNodesByList = new IdentityHashMap<>();
+    private final ArrayList<Node> mDirtyNodes = new ArrayList<>();
+    private final ArrayList<Node> mDirtyGroups = new ArrayList<>();
+    // Occluders that aren't occluded themselves, from the top of the stack down
+    private final ArrayList<Node> mOccluders = new ArrayList<>();
+
+    private LayerGroup mRoot;
+    private Snapshot mSnapshot;
+    // Chunks of the list whose nodes changed since mSnapshot was taken, see snapshot()
+    private final BitSet mChangedChunks = new BitSet();
+    private boolean mSnapshotStale = true;
+    private int mVersion;
+    private boolean mStructureDirty = true;
+    private int mGeneration;
+    private int mDrawCount;
+    private int mGroupCacheThreshold = DEFAULT_GROUP_CACHE_THRESHOLD;
+    private final LodAggregator mLod = new LodAggregator();
+    private boolean mLevelOfDetailEnabled = true;
+    private MeshBatch mMesh;
+    private boolean mReducedQuality;
+    private float mScale = 1;
+    private boolean mOcclusionCullingEnabled = true;
+    private boolean mOcclusionDirty = true;
+    // Cleared while drawing spans, whose layers may be drawn apart from those occluding them
+    private boolean mOcclusionCulling = true;
+
+    public void setRoot(LayerGroup root) {
+        mRoot = root;
+        mNodes.clear();
+        mNodesByLayer.clear();
+        mNodesByList.clear();
+        mDirtyNodes.clear();
+        mDirtyGroups.clear();
+        invalidateStructure();
+    }
+
+    /**
+     * Sets the minimum number of descendants a group needs to be cached as a bitmap, or 0 to
+     * disable group caching entirely.
+     */
+    public void setGroupCacheThreshold(int threshold) {
+        mGroupCacheThreshold = threshold;
+        if (threshold <= 0) {
+            for (int i = 0, n = mNodes.size(); i < n; i++) {
+                releaseGroupCache(mNodes.get(i));
+            }
+        }
+    }
+
+    public int getGroupCacheThreshold() {
+        return mGroupCacheThreshold;
+    }
+
+    /**
+     * Sets whether shapes too small to make out are drawn with less detail: ovals and triangles
+     * only a few pixels across as rectangles, and sub-pixel shapes aggregated into small cells.
+     */
+    public void setLevelOfDetailEnabled(boolean enabled) {
+        if (mLevelOfDetailEnabled != enabled) {
+            mLevelOfDetailEnabled = enabled;
+            mVersion++;
+            mSnapshotStale = true;
+            for (int i = 0, n = mNodes.size(); i < n; i++) {
+                invalidateGroupCaches(mNodes.get(i));
+            }
+        }
+    }
+
+    public boolean isLevelOfDetailEnabled() {
+        return mLevelOfDetailEnabled;
+    }
+
+    /**
+     * Sets whether shapes lying entirely within a fully opaque rectangle above them are skipped
+     */
+    public void setOcclusionCullingEnabled(boolean enabled) {
+        if (mOcclusionCullingEnabled != enabled) {
+            mOcclusionCullingEnabled = enabled;
+            mOcclusionCulling = enabled;
+            mVersion++;
+            mSnapshotStale = true;
+            for (int i = 0, n = mNodes.size(); i < n; i++) {
+                invalidateGroupCaches(mNodes.get(i));
+            }
+        }
+    }
+
+    public boolean isOcclusionCullingEnabled() {
+        return mOcclusionCullingEnabled;
+    }
+
+    /**
+     * Sets whether runs of consecutive shapes are tessellated into a single mesh and drawn with
+     * one Canvas.drawVertices call, rather than with one canvas call per shape. Meshes aren't
+     * anti-aliased, and need a software canvas before API 29.
+     */
+    public void setMeshRenderingEnabled(boolean enabled) {
+        if (enabled == isMeshRenderingEnabled()) {
+            return;
+        }
+        if (enabled) {
+            mMesh = new MeshBatch();
+        } else {
+            mMesh = null;
+        }
+        for (int i = 0, n = mNodes.size(); i < n; i++) {
+            invalidateGroupCaches(mNodes.get(i));
+        }
+    }
+
+    public boolean isMeshRenderingEnabled() {
+        return mMesh != null;
+    }
+
+    /**
+     * Sets whether to draw faster at the expense of quality: without anti-aliasing, without the
+     * smallest shapes, and without building new group caches. Meant to be used only for the
+     * duration of an interaction. Snapshots are always taken at full quality.
+     */
+    public void setReducedQuality(boolean reducedQuality) {
+        mReducedQuality = reducedQuality;
+    }
+
+    public boolean isReducedQuality() {
+        return mReducedQuality;
+    }
+
+    /**
+     * Sets the number of pixels per document pixel the list is drawn at, so that level of detail
+     * decisions are made in screen pixels. Group caches are rasterized at 1:1 and only used at that
+     * scale.
+     */
+    public void setScale(float scale) {
+        mScale = scale;
+    }
+
+    public float getScale() {
+        return mScale;
+    }
+
+    /**
+     * Marks the list for a rebuild before the next draw. Called when layers are added, removed or
+     * moved within the tree. Existing nodes (and their paints and paths) are reused by the rebuild.
+     */
+    public void invalidateStructure() {
+        mStructureDirty = true;
+        mVersion++;
+    }
+
+    /**
+     * Same as invalidateStructure(), additionally invalidating the cache of the group that owns the
+     * given child list, and those of its ancestors.
+     */
+    public void invalidateStructure(List<Layer> changedLayers) {
+        invalidateStructure();
+        Node group = mNodesByList.get(changedLayers);
+        if (group != null) {
+            invalidateGroupCaches(group);
+        } else if (mRoot == null || changedLayers != mRoot.getLayers()) {
+            // We don't know which group changed, so none of the caches can be trusted
+            for (int i = 0, n = mNodes.size(); i < n; i++) {
+                invalidateGroupCaches(mNodes.get(i));
+            }
+        }
+    }
+
+    private void invalidateGroupCaches(Node group) {
+        while (group != null) {
+            group.cacheDirty = true;
+            group.stableFrames = 0;
+            group = group.parent;
+        }
+    }
+
+    /**
+     * Marks the node belonging to the given layer as needing an update before the next draw.
+     *
+     * @param layer   the layer that changed
+     * @param changes the ChangeBus mask of what changed. Changes that aren't drawn, such as to the
+     *                name or selection, are ignored, and color changes skip the bounds and
+     *                occlusion updates.
+     */
+    public void invalidateLayer(Layer layer, int changes) {
+        if ((changes & DRAWN_CHANGES) == 0) {
+            return;
+        }
+        Node node = mNodesByLayer.get(layer);
+        if (node == null) {
+            invalidateStructure();
+            return;
+        }
+
+        mVersion++;
+        if (mStructureDirty) {
+            // The rebuild refreshes every node anyway
+            return;
+        }
+
+        node.changes |= changes;
+        markDirty(node);
+    }
+
+    private void markDirty(Node node) {
+        if (!node.dirty) {
+            node.dirty = true;
+            mDirtyNodes.add(node);
+        }
+    }
+
+    /**
+     * Returns an immutable copy of the list's draw commands that can be rendered from any thread.
+     * The same snapshot is returned until a layer changes. The copy is made of fixed size chunks
+     * of nodes, and a new snapshot only copies the chunks holding nodes that changed, sharing the
+     * others with the previous one. Dragging a layer thus costs the same whatever the size of the
+     * document, unless the structure changed, which copies every chunk.
+     */
+    public Snapshot snapshot() {
+        prepare();
+        if (mSnapshot == null || mSnapshot.version != mVersion) {
+            Snapshot previous = mSnapshotStale ? null : mSnapshot;
+            mSnapshot = new Snapshot(mNodes, previous, mChangedChunks, mVersion,
+                    mLevelOfDetailEnabled, mOcclusionCullingEnabled);
+            mChangedChunks.clear();
+            mSnapshotStale = false;
+        }
+        return mSnapshot;
+    }
+
+    /**
+     * Records that a node's snapshot data changed, so that the next snapshot copies its chunk
+     */
+    private void markChanged(Node node) {
+        mChangedChunks.set(node.index >> Snapshot.CHUNK_SHIFT);
+    }
+
+    /**
+     * Copies the normalized bounds the given layer had when the list was last prepared, which is
+     * where it was last drawn. For groups this is the union of their descendants' bounds.
+     *
+     * @return false if the layer is not (yet) part of the list, in which case out is not modified
+     */
+    public boolean getBounds(Layer layer, RectF out) {
+        Node node = mStructureDirty ? null : mNodesByLayer.get(layer);
+        if (node == null || node.minX > node.maxX) {
+            return false;
+        }
+        out.set(node.minX, node.minY, node.maxX, node.maxY);
+        return true;
+    }
+
+    /**
+     * Returns the number of shapes and group caches issued to the canvas by the most recent call to
+     * draw, including shapes drawn into group caches that had to be refreshed.
+     */
+    public int getDrawCount() {
+        return mDrawCount;
+    }
+
+    public int size() {
+        prepare();
+        return mNodes.size();
+    }
+
+    /**
+     * Brings every node up to date with its layer. Rebuilds the list if its structure changed,
+     * otherwise updates only the dirty nodes and the cached bounds of their ancestor groups.
+     */
+    public void prepare() {
+        if (mStructureDirty) {
+            rebuild();
+            updateOcclusion();
+            return;
+        }
+
+        if (mDirtyNodes.isEmpty()) {
+            return;
+        }
+
+        for (int i = 0, n = mDirtyNodes.size(); i < n; i++) {
+            Node node = mDirtyNodes.get(i);
+            update(node);
+            // A group's own opacity is applied when compositing, so its own cache stays valid
+            invalidateGroupCaches(node.parent);
+            if (node.changes == ChangeBus.CHANGE_COLOR) {
+                // The paint's alpha comes from the opacity, so a new color neither moves the node
+                // nor changes what it hides
+                continue;
+            }
+            markBoundsDirty(node.parent);
+
+            // Changes to an occluder, or to a group's visibility or opacity, which decides whether
+            // the rectangles within it are occluders, can uncover or hide anything below. Other
+            // shapes only need to be tested again themselves.
+            if (node.occluder || node.type == TYPE_GROUP || isOccluder(node)) {
+                mOcclusionDirty = true;
+            }
+        }
+
+        for (int i = 0, n = mDirtyNodes.size(); i < n; i++) {
+            Node node = mDirtyNodes.get(i);
+            if (!mOcclusionDirty && node.changes != ChangeBus.CHANGE_COLOR) {
+                setOccluded(node, isOccluded(node));
+            }
+            node.changes = 0;
+        }
+        mDirtyNodes.clear();
+
+        Collections.sort(mDirtyGroups, DESCENDING_INDEX);
+        for (int i = 0, n = mDirtyGroups.size(); i < n; i++) {
+            updateGroupBounds(mDirtyGroups.get(i));
+        }
+        mDirtyGroups.clear();
+
+        if (mOcclusionDirty) {
+            updateOcclusion();
+        }
+    }
+
+    /**
+     * Finds the occluders, fully opaque rectangles that are drawn as they are (every ancestor is
+     * visible and fully opaque), and marks every shape that lies entirely within one drawn above it
+     * as occluded. Walks the list from the top of the stack down, so the occluders found so far are
+     * exactly those above the current node.
+     */
+    private void updateOcclusion() {
+        mOccluders.clear();
+        for (int i = mNodes.size() - 1; i >= 0; i--) {
+            Node node = mNodes.get(i);
+            if (node.type == TYPE_GROUP || node.type == TYPE_OTHER) {
+                continue;
+            }
+
+            boolean occluded = isOccluded(node);
+            setOccluded(node, occluded);
+            node.occluder = isOccluder(node);
+            // An occluded occluder can only hide what the one above it already hides
+            if (node.occluder && !occluded && mOccluders.size() < MAX_OCCLUDERS) {
+                mOccluders.add(node);
+            }
+        }
+        mOcclusionDirty = false;
+    }
+
+    private boolean isOccluder(Node node) {
+        if (node.type != TYPE_RECT || !node.visible || node.alpha < 255
+                || node.paint.getAlpha() < 255 || node.maxX - node.minX < MIN_OCCLUDER_SIZE
+                || node.maxY - node.minY < MIN_OCCLUDER_SIZE) {
+            return false;
+        }
+        for (Node parent = node.parent; parent != null; parent = parent.parent) {
+            if (!parent.visible || parent.alpha < 255) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isOccluded(Node node) {
+        // Occluders are ordered from the top down, so only those before the node's index are above
+        for (int i = 0, n = mOccluders.size(); i < n; i++) {
+            Node occluder = mOccluders.get(i);
+            if (occluder.index <= node.index) {
+                break;
+            }
+            if (occluder.minX <= node.minX && occluder.minY <= node.minY
+                    && occluder.maxX >= node.maxX && occluder.maxY >= node.maxY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void setOccluded(Node node, boolean occluded) {
+        if (node.occluded != occluded) {
+            node.occluded = occluded;
+            markChanged(node);
+            // Group caches only hold what was drawn
+            invalidateGroupCaches(node.parent);
+        }
+    }
+
+    private void markBoundsDirty(Node group) {
+        // Stop at the first ancestor that is already queued, since its own ancestors are as well
+        while (group != null && !group.boundsDirty) {
+            group.boundsDirty = true;
+            mDirtyGroups.add(group);
+            group = group.parent;
+        }
+    }
+
+    /**
+     * Draws every visible shape in the list that intersects the given cull rectangle, skipping any
+     * group whose bounds fall entirely outside of it. The caller is expected to have translated the
+     * canvas so that document coordinates map to view coordinates.
+     *
+     * @param left   the left edge of the visible area in document coordinates
+     * @param top    the top edge of the visible area in document coordinates
+     * @param right  the right edge of the visible area in document coordinates
+     * @param bottom the bottom edge of the visible area in document coordinates
+     */
+    public void draw(Canvas canvas, float left, float top, float right, float bottom) {
+        prepare();
+        mDrawCount = 0;
+        mLod.setScale(mScale);
+        drawRange(canvas, 0, mNodes.size(), left, top, right, bottom);
+    }
+
+    private void drawRange(Canvas canvas, int start, int end, float left, float top, float right,
+                           float bottom) {
+        float reducedQualityMinSize = REDUCED_QUALITY_MIN_SIZE / mScale;
+        float pointSize = LodAggregator.POINT_SIZE / mScale;
+        float rectSize = LodAggregator.RECT_SIZE / mScale;
+        for (int i = start; i < end; i++) {
+            Node node = mNodes.get(i);
+
+            if (!node.visible || node.maxX < left || node.minX > right || node.maxY < top
+                    || node.minY > bottom) {
+                // Skip the node's subtree, the loop increment moves on to node.end
+                i = node.end - 1;
+                continue;
+            }
+
+            if (node.occluded && mOcclusionCulling) {
+                continue;
+            }
+
+            boolean leaf = node.type != TYPE_GROUP && node.type != TYPE_OTHER;
+            boolean small = false;
+            if (mReducedQuality && leaf && node.maxX - node.minX < reducedQualityMinSize
+                    && node.maxY - node.minY < reducedQualityMinSize) {
+                continue;
+            }
+
+            if (mLevelOfDetailEnabled && leaf) {
+                float width = node.maxX - node.minX;
+                float height = node.maxY - node.minY;
+                if (width < pointSize && height < pointSize) {
+                    if (mMesh != null && !mMesh.isEmpty()) {
+                        mDrawCount += mMesh.flush(canvas);
+                    }
+                    mLod.add(node.minX, node.minY, node.maxX, node.maxY, node.paint.getColor());
+                    continue;
+                }
+                small = width < rectSize && height < rectSize;
+            }
+
+            // Anything else drawn has to go on top of the shapes aggregated so far
+            if (!mLod.isEmpty()) {
+                mDrawCount += mLod.flush(canvas);
+            }
+
+            if (mMesh != null) {
+                if (leaf) {
+                    addToMesh(canvas, node, small);
+                    continue;
+                } else if (!mMesh.isEmpty()) {
+                    mDrawCount += mMesh.flush(canvas);
+                }
+            }
+
+            switch (node.type) {
+                case TYPE_GROUP:
+                    drawGroup(canvas, node, left, top, right, bottom);
+                    i = node.end - 1;
+                    break;
+                case TYPE_RECT:
+                    canvas.drawRect(node.left, node.top, node.right, node.bottom, node.paint);
+                    mDrawCount++;
+                    break;
+                case TYPE_TRIANGLE:
+                    if (small) {
+                        canvas.drawRect(node.minX, node.minY, node.maxX, node.maxY, node.paint);
+                    } else {
+                        updateAntiAlias(node.paint);
+                        canvas.drawPath(node.path, node.paint);
+                    }
+                    mDrawCount++;
+                    break;
+                case TYPE_OVAL:
+                    if (small) {
+                        canvas.drawRect(node.minX, node.minY, node.maxX, node.maxY, node.paint);
+                    } else {
+                        updateAntiAlias(node.paint);
+                        canvas.drawOval(node.left, node.top, node.right, node.bottom, node.paint);
+                    }
+                    mDrawCount++;
+                    break;
+            }
+        }
+
+        if (!mLod.isEmpty()) {
+            mDrawCount += mLod.flush(canvas);
+        }
+        if (mMesh != null && !mMesh.isEmpty()) {
+            mDrawCount += mMesh.flush(canvas);
+        }
+    }
+
+    private void updateAntiAlias(Paint paint) {
+        if (paint.isAntiAlias() == mReducedQuality) {
+            paint.setAntiAlias(!mReducedQuality);
+        }
+    }
+
+    private void addToMesh(Canvas canvas, Node node, boolean small) {
+        int color = node.paint.getColor();
+        if (small || node.type == TYPE_RECT) {
+            mMesh.addRect(canvas, node.minX, node.minY, node.maxX, node.maxY, color);
+        } else if (node.type == TYPE_TRIANGLE) {
+            // Same vertices as the triangle's path
+            mMesh.addTriangle(canvas, node.left, node.bottom, node.right, node.bottom,
+                    (node.left + node.right) / 2, node.top, color);
+        } else {
+            mMesh.addOval(canvas, node.left, node.top, node.right, node.bottom, color);
+        }
+    }
+
+    /**
+     * Draws a group's children composited as one: from the group's bitmap cache if it has one,
+     * otherwise into a temporary layer when the group is translucent, otherwise directly.
+     */
+    private void drawGroup(Canvas canvas, Node group, float left, float top, float right,
+                           float bottom) {
+        // Caches leave out occluded children, which spans may need
+        boolean cacheUsable = mScale == 1 && mOcclusionCulling == mOcclusionCullingEnabled;
+        if (cacheUsable && shouldCacheGroup(group)) {
+            if (mReducedQuality) {
+                // Keep using an up to date cache, but don't spend time on building one
+                if (group.cache != null && !group.cacheDirty) {
+                    canvas.drawBitmap(group.cache, group.cacheLeft, group.cacheTop, group.paint);
+                    mDrawCount++;
+                    return;
+                }
+            } else if (group.stableFrames < GROUP_CACHE_STABLE_FRAMES) {
+                group.stableFrames++;
+            } else if (!group.cacheDirty || renderGroupCache(group)) {
+                canvas.drawBitmap(group.cache, group.cacheLeft, group.cacheTop, group.paint);
+                mDrawCount++;
+                return;
+            }
+        }
+
+        if (group.alpha < 255) {
+            int count = canvas.saveLayerAlpha(
+                    Math.max(left, group.minX),
+                    Math.max(top, group.minY),
+                    Math.min(right, group.maxX),
+                    Math.min(bottom, group.maxY),
+                    group.alpha);
+            drawRange(canvas, group.index + 1, group.end, left, top, right, bottom);
+            canvas.restoreToCount(count);
+        } else {
+            drawRange(canvas, group.index + 1, group.end, left, top, right, bottom);
+        }
+    }
+
+    /**
+     * Returns the index of the given layer's node as of the last prepare, or -1 if the layer isn't
+     * in the list or the structure has changed since.
+     */
+    int indexOf(Layer layer) {
+        Node node = mStructureDirty ? null : mNodesByLayer.get(layer);
+        return node != null ? node.index : -1;
+    }
+
+    /**
+     * Returns the index of the first node that has to be redrawn when the given layer changes, or
+     * -1 if the layer isn't in the list. This is the layer's own node unless one of its ancestors
+     * is translucent, in which case it is the outermost such ancestor, since that group can only be
+     * composited as a whole. The span ends at getSpanEnd of the returned index.
+     */
+    int getSpanStart(Layer layer) {
+        prepare();
+        Node node = mNodesByLayer.get(layer);
+        if (node == null) {
+            return -1;
+        }
+
+        Node start = node;
+        for (Node parent = node.parent; parent != null; parent = parent.parent) {
+            if (parent.alpha < 255) {
+                start = parent;
+            }
+        }
+        return start.index;
+    }
+
+    int getSpanEnd(int start) {
+        return mNodes.get(start).end;
+    }
+
+    /**
+     * Draws only the nodes with indices in [from, to), as they would appear if the rest of the
+     * list were drawn separately above or below them. Groups that straddle either end of the span
+     * are expected to be opaque, which holds for spans bounded by getSpanStart.
+     */
+    void drawSpan(Canvas canvas, int from, int to, float left, float top, float right,
+                  float bottom) {
+        prepare();
+        mDrawCount = 0;
+        mLod.setScale(mScale);
+        // What occludes a layer may be drawn separately, e.g. a dragged layer over frozen ones
+        mOcclusionCulling = false;
+        for (int i = 0; i < to; i++) {
+            Node node = mNodes.get(i);
+            if (node.end <= from || !node.visible || node.maxX < left || node.minX > right
+                    || node.maxY < top || node.minY > bottom) {
+                i = node.end - 1;
+            } else if (node.index >= from && node.end <= to) {
+                // Entirely within the span
+                drawRange(canvas, i, node.end, left, top, right, bottom);
+                i = node.end - 1;
+            }
+            // Otherwise this is a group straddling the span, descend into it
+        }
+        mOcclusionCulling = mOcclusionCullingEnabled;
+    }
+
+    private boolean shouldCacheGroup(Node group) {
+        return mGroupCacheThreshold > 0 && group.end - group.index - 1 >= mGroupCacheThreshold;
+    }
+
+    /**
+     * Rasterizes a group's children, at full opacity, into the group's cache bitmap. The group's
+     * own opacity is applied when the cache is drawn.
+     *
+     * @return false if the group is too large to be cached
+     */
+    private boolean renderGroupCache(Node group) {
+        int cacheLeft = (int) Math.floor(group.minX);
+        int cacheTop = (int) Math.floor(group.minY);
+        int width = (int) Math.ceil(group.maxX) - cacheLeft;
+        int height = (int) Math.ceil(group.maxY) - cacheTop;
+
+        if (width <= 0 || height <= 0 || width > MAX_GROUP_CACHE_SIZE
+                || height > MAX_GROUP_CACHE_SIZE) {
+            releaseGroupCache(group);
+            return false;
+        }
+
+        if (group.cache == null || group.cache.getWidth() != width
+                || group.cache.getHeight() != height) {
+            group.cache = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            group.cacheCanvas = new Canvas(group.cache);
+        } else {
+            group.cache.eraseColor(Color.TRANSPARENT);
+        }
+
+        if (group.paint == null) {
+            group.paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            group.paint.setAlpha(group.alpha);
+        }
+
+        Canvas canvas = group.cacheCanvas;
+        canvas.save();
+        canvas.translate(-cacheLeft, -cacheTop);
+        drawRange(canvas, group.index + 1, group.end, cacheLeft, cacheTop, cacheLeft + width,
+                cacheTop + height);
+        canvas.restore();
+
+        group.cacheLeft = cacheLeft;
+        group.cacheTop = cacheTop;
+        group.cacheDirty = false;
+        return true;
+    }
+
+    private void releaseGroupCache(Node group) {
+        group.cache = null;
+        group.cacheCanvas = null;
+        group.cacheDirty = true;
+    }
+
+    private void rebuild() {
+        mStructureDirty = false;
+        // Nodes move to other indices, so no chunk of the last snapshot can be reused
+        mSnapshotStale = true;
+        mGeneration++;
+        mNodes.clear();
+        mDirtyNodes.clear();
+        mDirtyGroups.clear();
+
+        if (mRoot != null) {
+            addNodes(mRoot.getLayers(), null);
+        }
+
+        // Every node is refreshed after a rebuild. Walking backwards visits children before their
+        // parent, so each group's bounds can be built from its already updated children.
+        for (int i = mNodes.size() - 1; i >= 0; i--) {
+            Node node = mNodes.get(i);
+            update(node);
+            node.changes = 0;
+            if (node.type == TYPE_GROUP) {
+                updateGroupBounds(node);
+            }
+        }
+
+        // Drop nodes for layers that are no longer part of the tree
+        Iterator<Node> it = mNodesByLayer.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().generation != mGeneration) {
+                it.remove();
+            }
+        }
+
+        it = mNodesByList.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().generation != mGeneration) {
+                it.remove();
+            }
+        }
+    }
+
+    private void addNodes(List<Layer> layers, Node parent) {
+        for (int i = 0, n = layers.size(); i < n; i++) {
+            Layer layer = layers.get(i);
+            Node node = mNodesByLayer.get(layer);
+            if (node == null) {
+                node = createNode(layer);
+                mNodesByLayer.put(layer, node);
+            }
+
+            node.generation = mGeneration;
+            node.parent = parent;
+            node.index = mNodes.size();
+            mNodes.add(node);
+
+            if (layer instanceof LayerGroup) {
+                List<Layer> children = ((LayerGroup) layer).getLayers();
+                mNodesByList.put(children, node);
+                addNodes(children, node);
+            }
+            node.end = mNodes.size();
+        }
+    }
+
+    private Node createNode(Layer layer) {
+        Node node = new Node();
+        node.layer = layer;
+
+        if (layer instanceof LayerGroup) {
+            node.type = TYPE_GROUP;
+        } else if (layer instanceof RectLayer) {
+            node.type = TYPE_RECT;
+        } else if (layer instanceof TriangleLayer) {
+            node.type = TYPE_TRIANGLE;
+            node.path = new Path();
+        } else if (layer instanceof OvalLayer) {
+            node.type = TYPE_OVAL;
+        } else {
+            node.type = TYPE_OTHER;
+        }
+
+        if (layer instanceof ShapeLayer) {
+            node.paint = new Paint();
+            node.paint.setAntiAlias(node.type != TYPE_RECT);
+        }
+
+        return node;
+    }
+
+    private void update(Node node) {
+        Layer layer = node.layer;
+        node.dirty = false;
+        markChanged(node);
+        node.visible = layer.isVisible();
+        node.alpha = Math.round(layer.getOpacity() / 100f * 255);
+
+        // Group geometry is derived from the children, see updateGroupBounds
+        if (node.type == TYPE_GROUP) {
+            if (node.paint != null) {
+                node.paint.setAlpha(node.alpha);
+            }
+            return;
+        }
+
+        node.left = layer.getLeft();
+        node.top = layer.getTop();
+        node.right = layer.getRight();
+        node.bottom = layer.getBottom();
+
+        if (node.paint != null) {
+            node.paint.setColor(((ShapeLayer) layer).getColorInt());
+            node.paint.setAlpha(node.alpha);
+        }
+
+        if (node.type == TYPE_TRIANGLE) {
+            Path path = node.path;
+            path.rewind();
+            path.moveTo(node.left, node.bottom);
+            path.lineTo(node.right, node.bottom);
+            path.lineTo(layer.getMidX(), node.top);
+        }
+
+        node.minX = Math.min(node.left, node.right);
+        node.maxX = Math.max(node.left, node.right);
+        node.minY = Math.min(node.top, node.bottom);
+        node.maxY = Math.max(node.top, node.bottom);
+    }
+
+    private void updateGroupBounds(Node group) {
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+
+        // Direct children start right after the group, each one followed by its own subtree
+        for (int i = group.index + 1; i < group.end; i = mNodes.get(i).end) {
+            Node child = mNodes.get(i);
+            minX = Math.min(minX, child.minX);
+            minY = Math.min(minY, child.minY);
+            maxX = Math.max(maxX, child.maxX);
+            maxY = Math.max(maxY, child.maxY);
+        }
+
+        // An empty group is left with inverted bounds, which never intersect a cull rectangle
+        group.minX = minX;
+        group.minY = minY;
+        group.maxX = maxX;
+        group.maxY = maxY;
+        group.boundsDirty = false;
+        markChanged(group);
+    }
+
+    /**
+     * A point-in-time copy of a display list held in primitive arrays. Holds no references to
+     * layers, paints or paths, so it can be drawn on a background thread while the layer tree
+     * continues to be edited on the UI thread.
+     * <p>
+     * Nodes are stored in chunks of CHUNK_SIZE, which are never modified once built, so that
+     * successive snapshots can share the chunks in which nothing changed.
+     */
+    public static class Snapshot {
+        static final int CHUNK_SHIFT = 8;
+        static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+        private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+        // Snapshots are drawn by whichever thread holds them, each with its own aggregator
+        private static final ThreadLocal<LodAggregator> LOD = new ThreadLocal<LodAggregator>() {
+            @Override
+            protected LodAggregator initialValue() {
+                return new LodAggregator();
+            }
+        };
+
+        /**
+         * The nodes with indices from start to start + CHUNK_SIZE - 1, or up to the end of the list
+         */
+        private static class Chunk {
+            final int[] types;
+            final int[] ends;
+            final int[] colors;
+            final boolean[] visible;
+            // Per node: left, top, right, bottom as drawn, followed by minX, minY, maxX, maxY
+            final float[] bounds;
+
+            Chunk(List<Node> nodes, int start, boolean occlusionCulling) {
+                int count = Math.min(CHUNK_SIZE, nodes.size() - start);
+                types = new int[count];
+                ends = new int[count];
+                colors = new int[count];
+                visible = new boolean[count];
+                bounds = new float[count * 8];
+
+                for (int i = 0; i < count; i++) {
+                    Node node = nodes.get(start + i);
+                    types[i] = node.type;
+                    ends[i] = node.end;
+                    // Occluded shapes are simply left out
+                    visible[i] = node.visible && !(occlusionCulling && node.occluded);
+                    if (node.type == TYPE_GROUP) {
+                        // Groups only need their alpha, which is applied when compositing
+                        colors[i] = node.alpha << 24;
+                    } else if (node.paint != null) {
+                        colors[i] = node.paint.getColor();
+                    }
+
+                    int b = i * 8;
+                    bounds[b] = node.left;
+                    bounds[b + 1] = node.top;
+                    bounds[b + 2] = node.right;
+                    bounds[b + 3] = node.bottom;
+                    bounds[b + 4] = node.minX;
+                    bounds[b + 5] = node.minY;
+                    bounds[b + 6] = node.maxX;
+                    bounds[b + 7] = node.maxY;
+                }
+            }
+        }
+
+        final int version;
+        final int size;
+        private final Chunk[] chunks;
+        final boolean levelOfDetail;
+
+        /**
+         * @param previous a snapshot of the same nodes to share unchanged chunks with, or null
+         * @param changed  the chunks whose nodes changed since previous was taken
+         */
+        Snapshot(List<Node> nodes, Snapshot previous, BitSet changed, int version,
+                 boolean levelOfDetail, boolean occlusionCulling) {
+            this.version = version;
+            this.levelOfDetail = levelOfDetail;
+            size = nodes.size();
+            chunks = new Chunk[(size + CHUNK_SIZE - 1) >> CHUNK_SHIFT];
+            for (int c = 0; c < chunks.length; c++) {
+                if (previous != null && c < previous.chunks.length && !changed.get(c)
+                        && previous.chunks[c].types.length
+                        == Math.min(CHUNK_SIZE, size - (c << CHUNK_SHIFT))) {
+                    chunks[c] = previous.chunks[c];
+                } else {
+                    chunks[c] = new Chunk(nodes, c << CHUNK_SHIFT, occlusionCulling);
+                }
+            }
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * Returns the number of chunks this snapshot shares with the given one
+         */
+        int getSharedChunkCount(Snapshot other) {
+            int shared = 0;
+            for (int c = 0; c < Math.min(chunks.length, other.chunks.length); c++) {
+                if (chunks[c] == other.chunks[c]) {
+                    shared++;
+                }
+            }
+            return shared;
+        }
+
+        /**
+         * Draws the snapshot's shapes that intersect the given rectangle, exactly as
+         * DisplayList.draw would have at the time the snapshot was taken. The paint and path are
+         * scratch objects owned by the calling thread.
+         *
+         * @param scale the number of pixels per document pixel the canvas draws at
+         */
+        public void draw(Canvas canvas, float left, float top, float right, float bottom,
+                         float scale, Paint paint, Path path) {
+            if (!levelOfDetail) {
+                drawRange(canvas, 0, size, left, top, right, bottom, scale, paint, path, null);
+                return;
+            }
+            LodAggregator lod = LOD.get();
+            lod.setScale(scale);
+            try {
+                drawRange(canvas, 0, size, left, top, right, bottom, scale, paint, path, lod);
+            } finally {
+                // Cells collected by a draw that threw must not turn up in the next one
+                lod.clear();
+            }
+        }
+
+        private void drawRange(Canvas canvas, int start, int end, float left, float top,
+                               float right, float bottom, float scale, Paint paint, Path path,
+                               LodAggregator lod) {
+            float pointSize = LodAggregator.POINT_SIZE / scale;
+            float rectSize = LodAggregator.RECT_SIZE / scale;
+            for (int i = start; i < end; i++) {
+                Chunk chunk = chunks[i >> CHUNK_SHIFT];
+                int j = i & CHUNK_MASK;
+                float[] bounds = chunk.bounds;
+                int b = j * 8;
+                if (!chunk.visible[j] || bounds[b + 6] < left || bounds[b + 4] > right
+                        || bounds[b + 7] < top || bounds[b + 5] > bottom) {
+                    i = chunk.ends[j] - 1;
+                    continue;
+                }
+
+                int type = chunk.types[j];
+                boolean small = false;
+                if (lod != null && type != TYPE_GROUP && type != TYPE_OTHER) {
+                    float width = bounds[b + 6] - bounds[b + 4];
+                    float height = bounds[b + 7] - bounds[b + 5];
+                    if (width < pointSize && height < pointSize) {
+                        lod.add(bounds[b + 4], bounds[b + 5], bounds[b + 6], bounds[b + 7],
+                                chunk.colors[j]);
+                        continue;
+                    }
+                    small = width < rectSize && height < rectSize;
+                }
+
+                if (lod != null && !lod.isEmpty()) {
+                    lod.flush(canvas);
+                }
+
+                if (type == TYPE_GROUP) {
+                    int alpha = chunk.colors[j] >>> 24;
+                    if (alpha < 255) {
+                        int count = canvas.saveLayerAlpha(
+                                Math.max(left, bounds[b + 4]),
+                                Math.max(top, bounds[b + 5]),
+                                Math.min(right, bounds[b + 6]),
+                                Math.min(bottom, bounds[b + 7]),
+                                alpha);
+                        drawRange(canvas, i + 1, chunk.ends[j], left, top, right, bottom, scale,
+                                paint, path, lod);
+                        canvas.restoreToCount(count);
+                        i = chunk.ends[j] - 1;
+                    }
+                    continue;
+                } else if (type == TYPE_OTHER) {
+                    continue;
+                }
+
+                paint.setColor(chunk.colors[j]);
+                paint.setAntiAlias(type != TYPE_RECT);
+                if (small) {
+                    canvas.drawRect(bounds[b + 4], bounds[b + 5], bounds[b + 6], bounds[b + 7],
+                            paint);
+                    continue;
+                }
+                switch (type) {
+                    case TYPE_RECT:
+                        canvas.drawRect(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3],
+                                paint);
+                        break;
+                    case TYPE_TRIANGLE:
+                        path.rewind();
+                        path.moveTo(bounds[b], bounds[b + 3]);
+                        path.lineTo(bounds[b + 2], bounds[b + 3]);
+                        path.lineTo((bounds[b] + bounds[b + 2]) / 2, bounds[b + 1]);
+                        canvas.drawPath(path, paint);
+                        break;
+                    case TYPE_OVAL:
+                        canvas.drawOval(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3],
+                                paint);
+                        break;
+                }
+            }
+
+            if (lod != null && !lod.isEmpty()) {
+                lod.flush(canvas);
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.view.Surface;
+import android.view.TextureView;
+
+import java.util.ArrayList;
+
+/**
+ * A surface that draws the document on a dedicated render thread instead of the UI thread. Placed
+ * behind a DocumentView and attached with DocumentView.setRenderSurface, it receives a Frame (a
+ * display list snapshot along with the viewport and selection) every time the document view would
+ * have redrawn. Frames posted faster than they can be drawn are coalesced, and only the most recent
+ * one is drawn. Frames are obtained from and returned to a small pool, so posting them doesn't
+ * allocate.
+ * <p>
+ * This keeps long frames on complex documents from delaying touch handling and data binding on the
+ * UI thread.
+ */
+public class DocumentSurfaceView extends TextureView implements TextureView.SurfaceTextureListener {
+
+    /**
+     * Everything the render thread needs to draw one frame. Obtained with obtainFrame, filled in
+     * with set and handed over with postFrame, after which it must no longer be touched.
+     */
+    public static class Frame {
+        DisplayList.Snapshot snapshot;
+        float viewportX;
+        float viewportY;
+        float viewportScale;
+        // Selection bounding box and control points as cached by DocumentView, if hasHandles
+        float[] handles;
+        boolean hasHandles;
+
+        Frame() {
+        }
+
+        /**
+         * @param handles copied into the frame, or null if nothing is selected
+         */
+        public void set(DisplayList.Snapshot snapshot, float viewportX, float viewportY,
+                        float viewportScale, float[] handles) {
+            this.snapshot = snapshot;
+            this.viewportX = viewportX;
+            this.viewportY = viewportY;
+            this.viewportScale = viewportScale;
+            hasHandles = handles != null;
+            if (hasHandles) {
+                if (this.handles == null || this.handles.length != handles.length) {
+                    this.handles = new float[handles.length];
+                }
+                System.arraycopy(handles, 0, this.handles, 0, handles.length);
+            }
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private Handler mHandler;
+    private Frame mPendingFrame;
+    private boolean mRenderPosted;
+    // At most three frames are in use: the one being filled, the pending one and the last drawn
+    private final ArrayList<Frame> mFreeFrames = new ArrayList<>();
+
+    // Owned by the render thread once it has started
+    private HandlerThread mThread;
+    private Surface mSurface;
+    private int mWidth;
+    private int mHeight;
+    private Frame mLastFrame;
+    private final Paint mShapePaint = new Paint();
+    private final Path mShapePath = new Path();
+    private Paint mEditStrokePaint = new Paint();
+    private Paint mEditPointPaint = new Paint();
+    private float mVertexWidth;
+
+    private final Runnable mRender = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                if (mPendingFrame != null) {
+                    recycleFrame(mLastFrame);
+                    mLastFrame = mPendingFrame;
+                    mPendingFrame = null;
+                }
+                mRenderPosted = false;
+            }
+            render(mLastFrame);
+        }
+    };
+
+    public DocumentSurfaceView(Context context) {
+        super(context);
+        init();
+    }
+
+    public DocumentSurfaceView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    private void init() {
+        setOpaque(false);
+        setSurfaceTextureListener(this);
+    }
+
+    /**
+     * Sets the paints and control point size used for the selection, copied so that the render
+     * thread has its own. Called by DocumentView when attaching.
+     */
+    void setEditStyle(Paint strokePaint, Paint pointPaint, float vertexWidth) {
+        final Paint stroke = new Paint(strokePaint);
+        final Paint point = new Paint(pointPaint);
+        final float width = vertexWidth;
+        runOnRenderThread(new Runnable() {
+            @Override
+            public void run() {
+                mEditStrokePaint = stroke;
+                mEditPointPaint = point;
+                mVertexWidth = width;
+            }
+        });
+    }
+
+    /**
+     * Returns a frame to be filled in and passed to postFrame. May be called from any thread.
+     */
+    public Frame obtainFrame() {
+        synchronized (mLock) {
+            int last = mFreeFrames.size() - 1;
+            return last >= 0 ? mFreeFrames.remove(last) : new Frame();
+        }
+    }
+
+    /**
+     * Queues a frame to be drawn. May be called from any thread.
+     */
+    public void postFrame(Frame frame) {
+        synchronized (mLock) {
+            // Replaced before it was ever drawn
+            recycleFrame(mPendingFrame);
+            mPendingFrame = frame;
+            if (!mRenderPosted && mHandler != null) {
+                mRenderPosted = true;
+                mHandler.post(mRender);
+            }
+        }
+    }
+
+    /**
+     * Must be called with mLock held
+     */
+    private void recycleFrame(Frame frame) {
+        if (frame != null) {
+            // Lets go of the snapshot, which may be large
+            frame.snapshot = null;
+            mFreeFrames.add(frame);
+        }
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture, final int width,
+                                          final int height) {
+        final Surface surface = new Surface(surfaceTexture);
+        mThread = new HandlerThread("DocumentRenderer", Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+
+        synchronized (mLock) {
+            mHandler = new Handler(mThread.getLooper());
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mSurface = surface;
+                    mWidth = width;
+                    mHeight = height;
+                }
+            });
+            // Draw whatever was posted before the surface was ready
+            mRenderPosted = true;
+            mHandler.post(mRender);
+        }
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surfaceTexture, final int width,
+                                            final int height) {
+        runOnRenderThread(new Runnable() {
+            @Override
+            public void run() {
+                mWidth = width;
+                mHeight = height;
+                render(mLastFrame);
+            }
+        });
+    }
+
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surfaceTexture) {
+        synchronized (mLock) {
+            mHandler = null;
+            mRenderPosted = false;
+        }
+
+        // Let the render thread finish the frame it may be drawing before releasing the surface
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+        }
+        return true;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {
+    }
+
+    private void runOnRenderThread(Runnable runnable) {
+        synchronized (mLock) {
+            if (mHandler != null) {
+                mHandler.post(runnable);
+                return;
+            }
+        }
+        // No render thread yet, so nothing else can be touching its state
+        runnable.run();
+    }
+
+    /**
+     * Runs on the render thread
+     */
+    private void render(Frame frame) {
+        if (mSurface == null || !mSurface.isValid()) {
+            return;
+        }
+
+        Canvas canvas = mSurface.lockHardwareCanvas();
+        try {
+            canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+            if (frame == null) {
+                return;
+            }
+
+            float vx = frame.viewportX;
+            float vy = frame.viewportY;
+            float scale = frame.viewportScale;
+            if (frame.snapshot != null) {
+                canvas.save();
+                canvas.translate(vx, vy);
+                canvas.scale(scale, scale);
+                frame.snapshot.draw(canvas, -vx / scale, -vy / scale, (mWidth - vx) / scale,
+                        (mHeight - vy) / scale, scale, mShapePaint, mShapePath);
+                canvas.restore();
+            }
+
+            float[] h = frame.handles;
+            if (frame.hasHandles) {
+                canvas.drawRect(h[0] * scale + vx, h[1] * scale + vy, h[2] * scale + vx,
+                        h[3] * scale + vy, mEditStrokePaint);
+                float w = mVertexWidth / 2;
+                for (int i = 4; i < h.length; i += 2) {
+                    float x = h[i] * scale + vx;
+                    float y = h[i + 1] * scale + vy;
+                    canvas.drawRoundRect(x - w, y - w, x + w, y + w, w / 4, w / 4,
+                            mEditPointPaint);
+                }
+            }
+        } finally {
+            mSurface.unlockCanvasAndPost(canvas);
+        }
+    }
+}
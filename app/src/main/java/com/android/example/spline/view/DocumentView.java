@@ -17,34 +17,42 @@ package com.android.example.spline.view;
 
 import android.content.Context;
 import android.databinding.InverseBindingListener;
-import android.databinding.Observable;
-import android.databinding.ObservableList;
 import android.graphics.Canvas;
+import android.graphics.DashPathEffect;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PointF;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v4.view.VelocityTrackerCompat;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.InputDevice;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.PointerIcon;
+import android.view.ScaleGestureDetector;
 import android.view.VelocityTracker;
 import android.view.View;
 import android.view.ViewConfiguration;
 import android.widget.OverScroller;
 
 import com.android.example.spline.R;
+import com.android.example.spline.model.ChangeBus;
+import com.android.example.spline.model.EditTransaction;
 import com.android.example.spline.model.Layer;
 import com.android.example.spline.model.LayerGroup;
-import com.android.example.spline.model.OvalLayer;
-import com.android.example.spline.model.RectLayer;
 import com.android.example.spline.model.SelectionGroup;
 import com.android.example.spline.model.ShapeLayer;
-import com.android.example.spline.model.TriangleLayer;
 import com.android.example.spline.util.LayerUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -64,20 +72,81 @@ public class DocumentView extends View {
     private static final int MODE_LAYER_DRAG = 3;
     private static final int MODE_LAYER_TRANSFORM_DRAG = 4;
     private static final int MODE_VIEWPORT_DRAG = 5;
+    private static final int MODE_VIEWPORT_ZOOM = 6;
+    private static final int MODE_REGION_SELECTION = 7;
+
+    // What a drag that doesn't start on the current layer does, see setRegionSelectionTool
+    public static final int REGION_SELECTION_NONE = 0;
+    public static final int REGION_SELECTION_MARQUEE = 1;
+    public static final int REGION_SELECTION_LASSO = 2;
+
+    // Minimum distance between consecutive lasso points
+    private static final int LASSO_POINT_SPACING_DP = 4;
+
+    // How close a dragged edge or center has to come to another layer's to snap to it
+    private static final int SNAP_DISTANCE_DP = 8;
+
+    public static final float MIN_SCALE = 1 / 32f;
+    public static final float MAX_SCALE = 32;
+
+    // Zoom factor per step of a ctrl-scroll
+    private static final float SCROLL_ZOOM_FACTOR = 1.1f;
+
+    // How far ahead of the latest touch event a predicted drag position may be
+    private static final int MAX_PREDICTION_MILLIS = 50;
 
     private VelocityTracker mVelocityTracker = null;
     private OverScroller mScroller;
+    private ScaleGestureDetector mScaleDetector;
+    private float mPrevFocusX;
+    private float mPrevFocusY;
     private float mDensity;
     private float mTouchSlop;
     private int mLongPressTimeout;
     private float mTouchRadius;
     private float mEditCtrlStrokeWidth;
+    private float mHandleMargin;
     private int mEditColor;
+    private Paint mEditStrokePaint;
+    private Paint mEditPointPaint;
+    private Paint mRegionPaint;
+    private Paint mGuidePaint;
+
+    // Bounding box and control point centers of the current layer, refreshed only when dirty
+    private final float[] mHandles = new float[20];
+    private boolean mHandlesDirty = true;
+
+    private final RectF mDamage = new RectF();
+    private final Rect mClipBounds = new Rect();
+    private final List<Layer> mHitCandidates = new ArrayList<>();
+    // Reused by every region selection, which can test tens of thousands of layers
+    private final List<Layer> mRegionHits = new ArrayList<>();
+    private final List<Layer> mRegionScratch = new ArrayList<>();
+
+    // The marquee or lasso being dragged out, in document coordinates
+    private int mRegionSelectionTool = REGION_SELECTION_NONE;
+    private boolean mMouseRegionSelectionEnabled;
+    private int mRegionTool;
+    private float[] mRegionPoints = new float[64];
+    private int mRegionPointCount;
+    private final Path mRegionPath = new Path();
+
+    // Snap positions for the current drag, and how far snapping has moved the edges being resized
+    // away from the pointer
+    private final SnapIndex mSnapIndex = new SnapIndex();
+    private boolean mSnappingEnabled = true;
+    private boolean mSnapping;
+    private float mSnapOffsetX;
+    private float mSnapOffsetY;
+    private boolean mGuidesDrawn;
 
     private int mMode;
     private PointF mCurrentPoint;
     private float mViewportX;
     private float mViewportY;
+    // View pixels per document pixel. A document point (x, y) is drawn at
+    // (x * mViewportScale + mViewportX, y * mViewportScale + mViewportY).
+    private float mViewportScale = 1;
     private int mViewportWidth;
     private int mViewportHeight;
     private float mTouchDownX;
@@ -86,16 +155,53 @@ public class DocumentView extends View {
     private float mPrevY;
     private float mPrevRawX;
     private float mPrevRawY;
+
+    // Moves are accumulated between frames and applied to the model once per frame
+    private boolean mMovePending;
+    private float mPendingX;
+    private float mPendingY;
+    private float mPendingRawX;
+    private float mPendingRawY;
+    private int mPendingMetaState;
+    // The pointer position the model was last updated for, which is a predicted one while motion
+    // prediction is on. Transform drags apply whole pixel deltas relative to it, so these keep the
+    // sub-pixel remainder of every move, and the next unpredicted move undoes any overshoot.
+    private float mAppliedX;
+    private float mAppliedY;
+    private float mAppliedRawX;
+    private float mAppliedRawY;
+    private Choreographer.FrameCallback mApplyMoveCallback;
+    private boolean mMotionPredictionEnabled;
+
+    // Event times of the touch samples, historical ones included, behind the pending move, and of
+    // those behind the last applied move until it is drawn
+    private long[] mPendingSampleTimes = new long[16];
+    private int mPendingSampleCount;
+    private long mPendingEventTime;
+    private long[] mAppliedSampleTimes = new long[16];
+    private int mAppliedSampleCount;
+    private int mAppliedMode;
+    private long mAppliedTime;
+    private final LatencyHistogram mLayerDragLatency = new LatencyHistogram();
+    private final LatencyHistogram mTransformDragLatency = new LatencyHistogram();
+    private final LatencyHistogram mViewportDragLatency = new LatencyHistogram();
     private boolean mTouchDownInCurrentLayerBounds;
+    private boolean mTouchDownWithMouse;
 
     private LayerGroup mRoot;
+    private DisplayList mDisplayList;
+    private TileCache mTileCache;
+    private DragCompositor mDragCompositor;
+    private QualityGovernor mQualityGovernor;
+    private DocumentSurfaceView mRenderSurface;
     private Layer mCurrentLayer;
     private Layer mLayerDown;
-    private ObservableList.OnListChangedCallback<ObservableList<Layer>> mOnListChangedCallback;
-    private Observable.OnPropertyChangedCallback mOnPropertyChangedCallback;
+    private ChangeBus mChangeBus;
+    private ChangeBus.Listener mChangeListener;
     private InverseBindingListener mCurrentLayerAttrChangedListener;
     private InverseBindingListener mViewportXAttrChangedListener;
     private InverseBindingListener mViewportYAttrChangedListener;
+    private InverseBindingListener mViewportScaleAttrChangedListener;
     private InverseBindingListener mViewportWidthAttrChangedListener;
     private InverseBindingListener mViewportHeightAttrChangedListener;
 
@@ -118,73 +224,186 @@ public class DocumentView extends View {
         mLongPressTimeout = vc.getLongPressTimeout();
 
         mScroller = new OverScroller(context);
+        mScaleDetector = new ScaleGestureDetector(context,
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                    @Override
+                    public boolean onScaleBegin(ScaleGestureDetector detector) {
+                        // A pinch can take over the touch until a layer starts moving
+                        if (mMode == MODE_LAYER_DRAG || mMode == MODE_LAYER_TRANSFORM_DRAG) {
+                            return false;
+                        }
+                        cancelPendingMove();
+                        clearRegion();
+                        mMode = MODE_VIEWPORT_ZOOM;
+                        mQualityGovernor.setInteracting(true);
+                        mPrevFocusX = detector.getFocusX();
+                        mPrevFocusY = detector.getFocusY();
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onScale(ScaleGestureDetector detector) {
+                        // The document follows the fingers' midpoint as well as their spread
+                        float focusX = detector.getFocusX();
+                        float focusY = detector.getFocusY();
+                        setViewportX(getViewportX() + focusX - mPrevFocusX);
+                        setViewportY(getViewportY() + focusY - mPrevFocusY);
+                        zoomBy(detector.getScaleFactor(), focusX, focusY);
+                        mPrevFocusX = focusX;
+                        mPrevFocusY = focusY;
+                        return true;
+                    }
+                });
 
         mTouchRadius = TOUCH_RADIUS_DP * mDensity;
         mEditCtrlStrokeWidth = EDIT_CTRL_STROKE_DP * mDensity;
+        // How far the control points (and anti-aliasing) reach outside of a layer's bounds
+        mHandleMargin = EDIT_VERTEX_WIDTH_DP / 2 + mEditCtrlStrokeWidth + 1;
         mEditColor = getResources().getColor(R.color.colorAccent, context.getTheme());
 
-        mOnListChangedCallback = new ObservableList
-                .OnListChangedCallback<ObservableList<Layer>>() {
-            @Override
-            public void onChanged(ObservableList<Layer> layers) {
-                invalidate();
-            }
+        mEditStrokePaint = new Paint();
+        mEditStrokePaint.setColor(mEditColor);
+        mEditStrokePaint.setStyle(Paint.Style.STROKE);
+        mEditStrokePaint.setStrokeWidth(mEditCtrlStrokeWidth);
 
-            @Override
-            public void onItemRangeChanged(ObservableList<Layer> layers, int i, int i1) {
-                invalidate();
-            }
+        mEditPointPaint = new Paint();
+        mEditPointPaint.setColor(mEditColor);
+        mEditPointPaint.setStrokeWidth(mEditCtrlStrokeWidth);
+        mEditPointPaint.setAntiAlias(true);
 
-            @Override
-            public void onItemRangeInserted(ObservableList<Layer> layers, int start, int count) {
-                invalidate();
-                addPropertyChangedCallbacks(layers, start, start + count);
-            }
+        mRegionPaint = new Paint(mEditStrokePaint);
+        mRegionPaint.setStrokeWidth(mEditCtrlStrokeWidth / 2);
+        mRegionPaint.setPathEffect(new DashPathEffect(
+                new float[]{4 * mDensity, 4 * mDensity}, 0));
+        mRegionPaint.setAntiAlias(true);
 
-            @Override
-            public void onItemRangeMoved(ObservableList<Layer> layers, int i, int i1, int i2) {
-                invalidate();
-            }
+        mGuidePaint = new Paint(mEditStrokePaint);
+        mGuidePaint.setStrokeWidth(mDensity);
+
+        mDisplayList = new DisplayList();
+        mDragCompositor = new DragCompositor(mDisplayList);
+        mQualityGovernor = new QualityGovernor();
 
+        mApplyMoveCallback = new Choreographer.FrameCallback() {
             @Override
-            public void onItemRangeRemoved(ObservableList<Layer> layers, int i, int i1) {
-                invalidate();
+            public void doFrame(long frameTimeNanos) {
+                applyPendingMove(mMotionPredictionEnabled);
             }
         };
 
-        mOnPropertyChangedCallback = new Observable.OnPropertyChangedCallback() {
+        mChangeListener = new ChangeBus.Listener() {
             @Override
-            public void onPropertyChanged(Observable observable, int i) {
-                invalidate();
+            public void onLayersChanged(List<ChangeBus.Change> changes) {
+                for (int i = 0, n = changes.size(); i < n; i++) {
+                    ChangeBus.Change change = changes.get(i);
+                    Layer layer = change.getLayer();
+                    if (change.hasChanged(ChangeBus.CHANGE_ADDED | ChangeBus.CHANGE_REMOVED)) {
+                        // Removed layers still point at the group they were removed from
+                        onStructureChanged(layer.getParent() instanceof LayerGroup
+                                ? ((LayerGroup) layer.getParent()).getLayers() : null);
+                    } else {
+                        invalidateLayer(layer, change.getChanges());
+                    }
+                }
             }
         };
     }
 
-    private void addPropertyChangedCallbacks(List<Layer> layers) {
-        addPropertyChangedCallbacks(layers, 0, layers.size());
-    }
+    /**
+     * Invalidates only the area affected by a change to the given layer: the union of where the
+     * layer was last drawn and where it is now, padded to include its control points.
+     */
+    private void invalidateLayer(Layer layer, int changes) {
+        // Layers frozen for a drag can't change without ending the drag compositing
+        if (mDragCompositor.isActive() && layer != mCurrentLayer
+                && !mDragCompositor.isDragged(layer)) {
+            mDragCompositor.end();
+        }
 
-    private void addPropertyChangedCallbacks(List<Layer> layers, int start, int end) {
-        for (int i = start; i < end; i++) {
-            Layer l = layers.get(i);
-            l.addOnPropertyChangedCallback(mOnPropertyChangedCallback);
-            if (l instanceof LayerGroup) {
-                LayerGroup lg = (LayerGroup) l;
-                ObservableList<Layer> childLayers = lg.getLayers();
-                // Add list listener for future changes to the layer group's list of children
-                childLayers.addOnListChangedCallback(mOnListChangedCallback);
-
-                // Recursive call to add property listeners to each child layer
-                addPropertyChangedCallbacks(childLayers);
+        RectF damage = mDamage;
+        boolean drawn = mDisplayList.getBounds(layer, damage);
+        mDisplayList.invalidateLayer(layer, changes);
+        mHandlesDirty = true;
+
+        if (!drawn) {
+            if (mTileCache != null) {
+                mTileCache.invalidateAll();
             }
+            invalidate();
+            return;
+        }
+
+        // A group's bounds are derived from its children, which report their own changes
+        if (!(layer instanceof LayerGroup)) {
+            float left = layer.getLeft();
+            float right = layer.getRight();
+            float top = layer.getTop();
+            float bottom = layer.getBottom();
+            damage.union(Math.min(left, right), Math.min(top, bottom), Math.max(left, right),
+                    Math.max(top, bottom));
+        }
+
+        if (mTileCache != null) {
+            // Pad by a pixel to cover anti-aliased edges
+            mTileCache.invalidate(damage.left - 1, damage.top - 1, damage.right + 1,
+                    damage.bottom + 1);
+        }
+
+        // The bounding box of a group selection can change along any edge when one of its
+        // descendants moves, so also cover where it was last drawn and where it is now
+        if (mCurrentLayer instanceof LayerGroup) {
+            float[] h = mHandles;
+            Layer group = mCurrentLayer;
+            damage.union(Math.min(h[0], h[2]), Math.min(h[1], h[3]), Math.max(h[0], h[2]),
+                    Math.max(h[1], h[3]));
+            damage.union(Math.min(group.getLeft(), group.getRight()),
+                    Math.min(group.getTop(), group.getBottom()),
+                    Math.max(group.getLeft(), group.getRight()),
+                    Math.max(group.getTop(), group.getBottom()));
+        }
+
+        float vx = getViewportX();
+        float vy = getViewportY();
+        float scale = mViewportScale;
+        invalidate(
+                (int) Math.floor(damage.left * scale + vx - mHandleMargin),
+                (int) Math.floor(damage.top * scale + vy - mHandleMargin),
+                (int) Math.ceil(damage.right * scale + vx + mHandleMargin),
+                (int) Math.ceil(damage.bottom * scale + vy + mHandleMargin)
+        );
+    }
+
+    private void onStructureChanged(List<Layer> layers) {
+        if (layers != null) {
+            mDisplayList.invalidateStructure(layers);
+        } else {
+            mDisplayList.invalidateStructure();
+        }
+        mDragCompositor.end();
+        if (mTileCache != null) {
+            mTileCache.invalidateAll();
         }
+        mHandlesDirty = true;
+        invalidate();
     }
 
+    /**
+     * Sets the layer tree to draw, which should be the root of a Document so that the view hears
+     * of changes to it through the document's ChangeBus
+     */
     public void setRoot(LayerGroup root) {
+        if (mChangeBus != null) {
+            mChangeBus.removeListener(mChangeListener);
+        }
         mRoot = root;
-        if (root != null) {
-            mRoot.getLayers().addOnListChangedCallback(mOnListChangedCallback);
-            addPropertyChangedCallbacks(mRoot.getLayers());
+        mChangeBus = root != null ? root.getChangeBus() : null;
+        mDisplayList.setRoot(root);
+        mDragCompositor.end();
+        if (mTileCache != null) {
+            mTileCache.invalidateAll();
+        }
+        if (mChangeBus != null) {
+            mChangeBus.addListener(mChangeListener);
         }
     }
 
@@ -195,6 +414,8 @@ public class DocumentView extends View {
     public void setCurrentLayer(Layer layer) {
         if (mCurrentLayer != layer) {
             mCurrentLayer = layer;
+            mHandlesDirty = true;
+            mDragCompositor.end();
 
             if (mCurrentLayerAttrChangedListener != null) {
                 mCurrentLayerAttrChangedListener.onChange();
@@ -243,6 +464,51 @@ public class DocumentView extends View {
         mViewportYAttrChangedListener = listener;
     }
 
+    public float getViewportScale() {
+        return mViewportScale;
+    }
+
+    /**
+     * Sets the zoom factor, in view pixels per document pixel. The viewport offsets are in view
+     * pixels, so zooming around a point other than the view's top left corner also moves them, see
+     * zoomBy.
+     */
+    public void setViewportScale(float viewportScale) {
+        if (viewportScale != mViewportScale) {
+            mViewportScale = viewportScale;
+            // The frozen layers were drawn at the previous scale
+            mDragCompositor.end();
+            if (mViewportScaleAttrChangedListener != null) {
+                mViewportScaleAttrChangedListener.onChange();
+            }
+            invalidate();
+        }
+    }
+
+    public void setViewportScaleAttrChanged(InverseBindingListener listener) {
+        mViewportScaleAttrChangedListener = listener;
+    }
+
+    /**
+     * Multiplies the viewport scale by the given factor, within MIN_SCALE and MAX_SCALE, keeping the
+     * document point at the given view coordinates in place
+     */
+    public void zoomBy(float factor, float focusX, float focusY) {
+        float scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, mViewportScale * factor));
+        float ratio = scale / mViewportScale;
+        setViewportX(focusX - (focusX - getViewportX()) * ratio);
+        setViewportY(focusY - (focusY - getViewportY()) * ratio);
+        setViewportScale(scale);
+    }
+
+    private float toDocumentX(float viewX) {
+        return (viewX - getViewportX()) / mViewportScale;
+    }
+
+    private float toDocumentY(float viewY) {
+        return (viewY - getViewportY()) / mViewportScale;
+    }
+
     public float getViewportWidth() {
         return mViewportWidth;
     }
@@ -284,96 +550,256 @@ public class DocumentView extends View {
         super.onSizeChanged(width, height, oldWidth, oldHeight);
     }
 
+    /**
+     * Returns the retained display list used to render the document, mainly so that its
+     * allocation count can be sampled across frames.
+     */
+    public DisplayList getDisplayList() {
+        return mDisplayList;
+    }
+
+    public boolean isTiledRenderingEnabled() {
+        return mTileCache != null;
+    }
+
+    /**
+     * Switches between drawing the display list directly every frame and drawing the document from
+     * tiles that are rasterized on background threads and cached between frames. Tiled rendering
+     * makes panning and flinging over large, mostly static documents considerably cheaper.
+     */
+    public void setTiledRenderingEnabled(boolean enabled) {
+        if (enabled == isTiledRenderingEnabled()) {
+            return;
+        }
+
+        if (enabled) {
+            mTileCache = new TileCache(mDisplayList);
+            mTileCache.setOnTileReadyListener(new TileCache.OnTileReadyListener() {
+                @Override
+                public void onTileReady(float left, float top, float right, float bottom) {
+                    float vx = getViewportX();
+                    float vy = getViewportY();
+                    float scale = mViewportScale;
+                    invalidate((int) Math.floor(left * scale + vx),
+                            (int) Math.floor(top * scale + vy),
+                            (int) Math.ceil(right * scale + vx),
+                            (int) Math.ceil(bottom * scale + vy));
+                }
+            });
+        } else {
+            mTileCache.release();
+            mTileCache = null;
+        }
+        invalidate();
+    }
+
+    public DocumentSurfaceView getRenderSurface() {
+        return mRenderSurface;
+    }
+
+    /**
+     * Moves drawing of the document off of the UI thread and onto the given surface's render
+     * thread, or back onto this view if surface is null. While a surface is set, this view draws
+     * nothing itself. Instead, every redraw posts a snapshot of the display list, the viewport and
+     * the selection to the surface, which is expected to be laid out directly behind this view.
+     */
+    public void setRenderSurface(DocumentSurfaceView surface) {
+        if (mRenderSurface == surface) {
+            return;
+        }
+
+        if (mRenderSurface != null) {
+            DocumentSurfaceView.Frame frame = mRenderSurface.obtainFrame();
+            frame.set(null, 0, 0, 1, null);
+            mRenderSurface.postFrame(frame);
+        }
+        mRenderSurface = surface;
+        if (surface != null) {
+            surface.setEditStyle(mEditStrokePaint, mEditPointPaint, EDIT_VERTEX_WIDTH_DP);
+        }
+        invalidate();
+    }
+
+    public boolean isMeshRenderingEnabled() {
+        return mDisplayList.isMeshRenderingEnabled();
+    }
+
+    /**
+     * Switches between drawing each shape with its own canvas call and drawing runs of shapes as
+     * batched triangle meshes. Hardware accelerated canvases only support meshes from API 29, so
+     * on older devices the view falls back to a software layer while meshes are enabled.
+     */
+    public void setMeshRenderingEnabled(boolean enabled) {
+        if (enabled == isMeshRenderingEnabled()) {
+            return;
+        }
+
+        mDisplayList.setMeshRenderingEnabled(enabled);
+        if (Build.VERSION.SDK_INT < 29) {
+            setLayerType(enabled ? LAYER_TYPE_SOFTWARE : LAYER_TYPE_NONE, null);
+        }
+        invalidate();
+    }
+
+    /**
+     * Times the current viewport's content drawn by each renderer, see RenderBenchmark
+     */
+    public RenderBenchmark.Result benchmarkRenderers(int frames) {
+        return RenderBenchmark.run(mDisplayList, toDocumentX(0), toDocumentY(0),
+                toDocumentX(mViewportWidth), toDocumentY(mViewportHeight), frames);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        Display display = getDisplay();
+        if (display != null) {
+            mQualityGovernor.setRefreshRate(display.getRefreshRate());
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mTileCache != null) {
+            mTileCache.release();
+        }
+        mDragCompositor.release();
+        cancelPendingMove();
+    }
+
     /**
      * View contents are entirely custom drawn
      */
     @Override
     protected void onDraw(Canvas canvas) {
+        long start = System.nanoTime();
+        boolean reducedQuality = mQualityGovernor.isReducedQuality();
+        mDisplayList.setReducedQuality(reducedQuality);
+
         float vx = getViewportX();
         float vy = getViewportY();
+        float scale = mViewportScale;
+        mDisplayList.setScale(scale);
+
+        if (mRenderSurface != null) {
+            postFrame(vx, vy, scale);
+            // The selection region and guides are cheap enough to draw here
+            drawRegion(canvas, vx, vy, scale);
+            drawGuides(canvas, vx, vy, scale);
+            recordInputLatency();
+            return;
+        }
 
         if (mRoot != null) {
-            drawLayers(canvas, vx, vy, mRoot.getLayers());
+            // Only layers within the clip need to be drawn. For software rendering this is the
+            // union of the regions invalidated since the last frame. Hardware accelerated views
+            // re-record the whole view, so the clip covers the full viewport.
+            Rect clip = mClipBounds;
+            if (!canvas.getClipBounds(clip)) {
+                clip.set(0, 0, mViewportWidth, mViewportHeight);
+            }
+
+            float left = toDocumentX(clip.left);
+            float top = toDocumentY(clip.top);
+            float right = toDocumentX(clip.right);
+            float bottom = toDocumentY(clip.bottom);
+
+            canvas.save();
+            canvas.translate(vx, vy);
+            canvas.scale(scale, scale);
+            if (mDragCompositor.draw(canvas, left, top, right, bottom)) {
+                // Only the dragged layers were drawn live
+            } else if (mTileCache != null) {
+                mTileCache.draw(canvas, left, top, right, bottom, scale);
+            } else {
+                mDisplayList.draw(canvas, left, top, right, bottom);
+            }
+            canvas.restore();
         }
 
+        drawRegion(canvas, vx, vy, scale);
+        drawGuides(canvas, vx, vy, scale);
+
         // Drag current layer bounding box and control points afterwards to draw on top
         if (mCurrentLayer != null) {
-            Layer l = mCurrentLayer;
-            Paint strokePaint = new Paint();
-            strokePaint.setColor(mEditColor);
-            strokePaint.setStyle(Paint.Style.STROKE);
-            strokePaint.setStrokeWidth(mEditCtrlStrokeWidth);
-
-            // Draw bounding box
-            canvas.drawRect(
-                    l.getLeft() + vx,
-                    l.getTop() + vy,
-                    l.getRight() + vx,
-                    l.getBottom() + vy,
-                    strokePaint
-            );
-
-            Paint pointPaint = new Paint();
-            pointPaint.setColor(mEditColor);
-            pointPaint.setStrokeWidth(mEditCtrlStrokeWidth);
-            pointPaint.setAntiAlias(true);
-
-            // Draw control points
-            drawRoundRect(canvas, l.getLeft() + vx, l.getTop() + vy, pointPaint);
-            drawRoundRect(canvas, l.getMidX() + vx, l.getTop() + vy, pointPaint);
-            drawRoundRect(canvas, l.getRight() + vx, l.getTop() + vy, pointPaint);
-            drawRoundRect(canvas, l.getLeft() + vx, l.getMidY() + vy, pointPaint);
-            drawRoundRect(canvas, l.getRight() + vx, l.getMidY() + vy, pointPaint);
-            drawRoundRect(canvas, l.getLeft() + vx, l.getBottom() + vy, pointPaint);
-            drawRoundRect(canvas, l.getMidX() + vx, l.getBottom() + vy, pointPaint);
-            drawRoundRect(canvas, l.getRight() + vx, l.getBottom() + vy, pointPaint);
-        }
-    }
-
-    private void drawLayers(Canvas canvas, float vx, float vy, List<Layer> layers) {
-        if (layers != null) {
-            Paint p = new Paint();
-            for (Layer layer : layers) {
-                if (layer.isVisible()) {
-                    if (layer instanceof LayerGroup) {
-                        LayerGroup group = (LayerGroup) layer;
-                        drawLayers(canvas, vx, vy, group.getLayers());
-                    } else if (layer instanceof ShapeLayer) {
-                        ShapeLayer shapeLayer = (ShapeLayer) layer;
-                        p.setColor(shapeLayer.getColorInt());
-                        p.setAlpha(Math.round(layer.getCompOpacity() / 100f * 255));
-
-                        // Use different canvas draw method depending on shape
-                        if (shapeLayer instanceof RectLayer) {
-                            p.setAntiAlias(false);
-                            canvas.drawRect(
-                                    layer.getLeft() + vx,
-                                    layer.getTop() + vy,
-                                    layer.getRight() + vx,
-                                    layer.getBottom() + vy,
-                                    p
-                            );
-                        } else if (shapeLayer instanceof TriangleLayer) {
-                            p.setAntiAlias(true);
-                            Path path = new Path();
-                            path.moveTo(layer.getLeft() + vx, layer.getBottom() + vy);
-                            path.lineTo(layer.getRight() + vx, layer.getBottom() + vy);
-                            path.lineTo(layer.getMidX() + vx, layer.getTop() + vy);
-                            canvas.drawPath(path, p);
-                        } else if (shapeLayer instanceof OvalLayer) {
-                            p.setAntiAlias(true);
-                            canvas.drawOval(
-                                    layer.getLeft() + vx,
-                                    layer.getTop() + vy,
-                                    layer.getRight() + vx,
-                                    layer.getBottom() + vy,
-                                    p
-                            );
-                        }
-                    }
+            if (mHandlesDirty) {
+                updateHandles(mCurrentLayer);
+            }
+            float[] h = mHandles;
+
+            // Draw bounding box, the handles keep their size at any zoom
+            canvas.drawRect(h[0] * scale + vx, h[1] * scale + vy, h[2] * scale + vx,
+                    h[3] * scale + vy, mEditStrokePaint);
+
+            // Draw control points, as plain squares if we're short on time
+            float w = EDIT_VERTEX_WIDTH_DP / 2;
+            for (int i = 4; i < h.length; i += 2) {
+                float x = h[i] * scale + vx;
+                float y = h[i + 1] * scale + vy;
+                if (reducedQuality) {
+                    canvas.drawRect(x - w, y - w, x + w, y + w, mEditPointPaint);
+                } else {
+                    drawRoundRect(canvas, x, y, mEditPointPaint);
                 }
             }
         }
+
+        mQualityGovernor.onFrameDrawn(System.nanoTime() - start);
+        recordInputLatency();
+    }
+
+    /**
+     * Hands the current state of the document to the render surface to be drawn
+     */
+    private void postFrame(float vx, float vy, float scale) {
+        DisplayList.Snapshot snapshot = mRoot != null ? mDisplayList.snapshot() : null;
+        float[] handles = null;
+        if (mCurrentLayer != null) {
+            if (mHandlesDirty) {
+                updateHandles(mCurrentLayer);
+            }
+            handles = mHandles;
+        }
+        // Copies the handles, which go on changing on this thread
+        DocumentSurfaceView.Frame frame = mRenderSurface.obtainFrame();
+        frame.set(snapshot, vx, vy, scale, handles);
+        mRenderSurface.postFrame(frame);
+    }
+
+    /**
+     * Caches the bounding box followed by the eight control point centers of the given layer
+     */
+    private void updateHandles(Layer l) {
+        float left = l.getLeft();
+        float top = l.getTop();
+        float right = l.getRight();
+        float bottom = l.getBottom();
+        float midX = l.getMidX();
+        float midY = l.getMidY();
+        float[] h = mHandles;
+
+        h[0] = left;
+        h[1] = top;
+        h[2] = right;
+        h[3] = bottom;
+        h[4] = left;
+        h[5] = top;
+        h[6] = midX;
+        h[7] = top;
+        h[8] = right;
+        h[9] = top;
+        h[10] = left;
+        h[11] = midY;
+        h[12] = right;
+        h[13] = midY;
+        h[14] = left;
+        h[15] = bottom;
+        h[16] = midX;
+        h[17] = bottom;
+        h[18] = right;
+        h[19] = bottom;
+        mHandlesDirty = false;
     }
 
     public void drawRoundRect(Canvas canvas, float x, float y, Paint pointPaint) {
@@ -400,8 +826,8 @@ public class DocumentView extends View {
     public PointerIcon onResolvePointerIcon(MotionEvent event, int pointerIndex) {
         int icon = PointerIcon.TYPE_DEFAULT;
         Layer l = mCurrentLayer;
-        float x = event.getX() - getViewportX();
-        float y = event.getY() - getViewportY();
+        float x = toDocumentX(event.getX());
+        float y = toDocumentY(event.getY());
 
         if (mMode == MODE_LAYER_DRAG || mMode == MODE_LAYER_PRE_DRAG) {
             icon = PointerIcon.TYPE_GRABBING;
@@ -450,13 +876,37 @@ public class DocumentView extends View {
     private boolean inPointTouchRadius(float x, float y, PointF p) {
         float dx = x - p.x;
         float dy = y - p.y;
-        return Math.sqrt(dx * dx + dy * dy) < mTouchRadius;
+        return Math.sqrt(dx * dx + dy * dy) < getDocumentTouchRadius();
+    }
+
+    /**
+     * Returns the touch radius, which is constant on screen, in document coordinates
+     */
+    private float getDocumentTouchRadius() {
+        return mTouchRadius / mViewportScale;
+    }
+
+    /**
+     * Zooms around the pointer on ctrl-scroll
+     */
+    @Override
+    public boolean onGenericMotionEvent(MotionEvent event) {
+        if (event.getActionMasked() == MotionEvent.ACTION_SCROLL
+                && (event.getMetaState() & KeyEvent.META_CTRL_ON) != 0) {
+            float steps = event.getAxisValue(MotionEvent.AXIS_VSCROLL);
+            zoomBy((float) Math.pow(SCROLL_ZOOM_FACTOR, steps), event.getX(), event.getY());
+            return true;
+        }
+        return super.onGenericMotionEvent(event);
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        float x = event.getX() - getViewportX();
-        float y = event.getY() - getViewportY();
+        mScaleDetector.onTouchEvent(event);
+
+        float x = toDocumentX(event.getX());
+        float y = toDocumentY(event.getY());
+        float touchRadius = getDocumentTouchRadius();
         float dx;
         float dy;
         int index = event.getActionIndex();
@@ -465,6 +915,7 @@ public class DocumentView extends View {
             case MotionEvent.ACTION_DOWN:
                 if (!mScroller.isFinished()) {
                     mScroller.abortAnimation();
+                    endInteraction();
                 }
 
                 if (mVelocityTracker == null) {
@@ -478,6 +929,8 @@ public class DocumentView extends View {
                 mLayerDown = null;
                 mCurrentPoint = null;
                 mTouchDownInCurrentLayerBounds = false;
+                mTouchDownWithMouse = event.isFromSource(InputDevice.SOURCE_MOUSE)
+                        && (event.getButtonState() & MotionEvent.BUTTON_PRIMARY) != 0;
 
                 // Disable interaction after long press
                 new Handler().postDelayed(new Runnable() {
@@ -503,7 +956,7 @@ public class DocumentView extends View {
                     }
 
                     // Skip vertex check if we're inside the hit area of all vertices
-                    if (mCurrentLayer.inInsetBounds(x, y, mTouchRadius)) {
+                    if (mCurrentLayer.inInsetBounds(x, y, touchRadius)) {
                         mMode = MODE_LAYER_PRE_DRAG;
                     } else {
                         PointF closestPoint = null;
@@ -522,7 +975,7 @@ public class DocumentView extends View {
                         }
                         // If that closest point falls within the touch radius, change the mode to
                         // transform drag
-                        if (closestPoint != null && closestDist < mTouchRadius) {
+                        if (closestPoint != null && closestDist < touchRadius) {
                             boolean vertexChanged = false;
                             if (closestPoint != mCurrentPoint) {
                                 vertexChanged = true;
@@ -531,6 +984,10 @@ public class DocumentView extends View {
                             mCurrentPoint = closestPoint;
                             mMode = MODE_LAYER_TRANSFORM_DRAG;
                             mCurrentLayer.startResize();
+                            beginDragCompositing();
+                            beginSnapping();
+                            mQualityGovernor.setInteracting(true);
+                            setAppliedMove(x, y, event.getX(), event.getY());
 
                             if (vertexChanged) {
                                 invalidate();
@@ -554,67 +1011,54 @@ public class DocumentView extends View {
                 if (mMode == MODE_LAYER_SELECTION || mMode == MODE_LAYER_PRE_DRAG) {
                     dx = x - mTouchDownX;
                     dy = y - mTouchDownY;
-                    float delta = (float) Math.sqrt(dx * dx + dy * dy);
+                    float delta = (float) Math.sqrt(dx * dx + dy * dy) * mViewportScale;
 
                     // Move to a drag mode if we've exceeded the system touch slop
                     if (delta > mTouchSlop) {
                         // If our touch doesn't fall within the currently selected layer,
-                        // consider this a drag of the viewport
+                        // consider this a drag of the viewport, or of a selection region
                         if (mMode == MODE_LAYER_SELECTION) {
-                            mMode = MODE_VIEWPORT_DRAG;
+                            int tool = getRegionSelectionTool(event);
+                            if (tool != REGION_SELECTION_NONE) {
+                                beginRegionSelection(tool);
+                            } else {
+                                mMode = MODE_VIEWPORT_DRAG;
+                            }
                         } else {
                             mMode = MODE_LAYER_DRAG;
                             mCurrentLayer.startDrag();
+                            beginDragCompositing();
+                            beginSnapping();
                         }
+                        mQualityGovernor.setInteracting(true);
+                        // Only movement beyond the previous event is applied to the drag
+                        setAppliedMove(mPrevX, mPrevY, mPrevRawX, mPrevRawY);
                     }
                 }
 
-                if (mMode == MODE_VIEWPORT_DRAG) {
-                    setViewportX(getViewportX() + event.getX() - mPrevRawX);
-                    setViewportY(getViewportY() + event.getY() - mPrevRawY);
-                    invalidate();
-                }
-
-                if (mMode == MODE_LAYER_DRAG) {
-                    // For now, simply round deltas to the nearest pixel. Effectively makes the
-                    // atomic drag unit the pixel.
-                    dx = Math.round(x - mTouchDownX);
-                    dy = Math.round(y - mTouchDownY);
-                    int metaState = event.getMetaState();
-                    boolean isShiftPressed = (metaState & KeyEvent.META_SHIFT_ON) != 0;
-
-                    if (isShiftPressed) {
-                        if (Math.abs(dx) > Math.abs(dy)) {
-                            mCurrentLayer.setX(mCurrentLayer.getStartX() + dx);
-                            mCurrentLayer.setY(mCurrentLayer.getStartY());
-                        } else {
-                            mCurrentLayer.setX(mCurrentLayer.getStartX());
-                            mCurrentLayer.setY(mCurrentLayer.getStartY() + dy);
-                        }
-                    } else {
-                        mCurrentLayer.setX(mCurrentLayer.getStartX() + dx);
-                        mCurrentLayer.setY(mCurrentLayer.getStartY() + dy);
-                    }
-
-                    invalidate();
-                }
-
-                if (mMode == MODE_LAYER_TRANSFORM_DRAG) {
-                    // For now, simply round deltas to the nearest pixel. Effectively makes the
-                    // atomic drag unit the pixel.
-                    dx = Math.round(x - mPrevX);
-                    dy = Math.round(y - mPrevY);
-                    mCurrentLayer.resize(mCurrentPoint, dx, dy);
-
-                    invalidate();
+                if ((mMode >= MODE_LAYER_DRAG && mMode <= MODE_VIEWPORT_DRAG)
+                        || mMode == MODE_REGION_SELECTION) {
+                    queueMove(event, x, y);
                 }
                 break;
             case MotionEvent.ACTION_UP:
+                // The final position is applied right away rather than on the next frame, and
+                // never predicted, which also takes back whatever the last frame extrapolated
+                if ((mMode >= MODE_LAYER_DRAG && mMode <= MODE_VIEWPORT_DRAG)
+                        || mMode == MODE_REGION_SELECTION) {
+                    queueMove(event, x, y);
+                }
+                applyPendingMove(false);
 
                 if (mMode == MODE_LAYER_TRANSFORM_DRAG) {
                     mCurrentLayer.endResize();
                 }
 
+                if (mMode == MODE_REGION_SELECTION) {
+                    boolean isShiftPressed = (event.getMetaState() & KeyEvent.META_SHIFT_ON) != 0;
+                    selectRegion(isShiftPressed);
+                }
+
                 if (mMode == MODE_VIEWPORT_DRAG) {
                     mVelocityTracker.computeCurrentVelocity(1000);
                     int vx = (int) (VelocityTrackerCompat.getXVelocity(mVelocityTracker, pointerId));
@@ -648,7 +1092,7 @@ public class DocumentView extends View {
                 if (mMode == MODE_LAYER_SELECTION) {
                     dx = x - mTouchDownX;
                     dy = y - mTouchDownY;
-                    float delta = (float) Math.sqrt(dx * dx + dy * dy);
+                    float delta = (float) Math.sqrt(dx * dx + dy * dy) * mViewportScale;
                     if (delta < mTouchSlop) {
 
                         int metaState = event.getMetaState();
@@ -661,7 +1105,16 @@ public class DocumentView extends View {
                 }
 
             case MotionEvent.ACTION_CANCEL:
+                cancelPendingMove();
+                clearRegion();
+                endSnapping();
                 mMode = MODE_DEFAULT;
+                mDragCompositor.end();
+
+                // A fling keeps the interaction going until it finishes, see computeScroll
+                if (mScroller.isFinished()) {
+                    endInteraction();
+                }
                 break;
         }
 
@@ -677,6 +1130,187 @@ public class DocumentView extends View {
         return true;
     }
 
+    /**
+     * Records the latest pointer position of a move event, to be applied to the model at the start
+     * of the next frame. Any number of moves in between, along with the historical samples batched
+     * into each of them, result in a single model update and redraw. Historical samples still
+     * reach the velocity tracker through the event itself, and their event times are kept to
+     * measure input latency.
+     */
+    private void queueMove(MotionEvent event, float x, float y) {
+        mPendingX = x;
+        mPendingY = y;
+        mPendingRawX = event.getX();
+        mPendingRawY = event.getY();
+        mPendingMetaState = event.getMetaState();
+        mPendingEventTime = event.getEventTime();
+
+        int historySize = event.getHistorySize();
+        if (mPendingSampleCount + historySize + 1 > mPendingSampleTimes.length) {
+            mPendingSampleTimes = Arrays.copyOf(mPendingSampleTimes,
+                    Math.max(mPendingSampleTimes.length * 2, mPendingSampleCount + historySize + 1));
+        }
+        for (int h = 0; h < historySize; h++) {
+            mPendingSampleTimes[mPendingSampleCount++] = event.getHistoricalEventTime(h);
+        }
+        mPendingSampleTimes[mPendingSampleCount++] = event.getEventTime();
+
+        if (mMode == MODE_REGION_SELECTION && mRegionTool == REGION_SELECTION_LASSO) {
+            // Unlike the other drags, the lasso follows every sample, so that fast strokes keep
+            // their shape
+            for (int h = 0; h < historySize; h++) {
+                extendLasso(toDocumentX(event.getHistoricalX(h)),
+                        toDocumentY(event.getHistoricalY(h)));
+            }
+            extendLasso(x, y);
+        }
+
+        if (!mMovePending) {
+            mMovePending = true;
+            Choreographer.getInstance().postFrameCallback(mApplyMoveCallback);
+        }
+    }
+
+    private void cancelPendingMove() {
+        if (mMovePending) {
+            mMovePending = false;
+            Choreographer.getInstance().removeFrameCallback(mApplyMoveCallback);
+        }
+        mPendingSampleCount = 0;
+    }
+
+    private void setAppliedMove(float x, float y, float rawX, float rawY) {
+        mAppliedX = x;
+        mAppliedY = y;
+        mAppliedRawX = rawX;
+        mAppliedRawY = rawY;
+    }
+
+    /**
+     * Applies the move last queued by queueMove to the current drag
+     *
+     * @param predict whether to move dragged layers to where the pointer is expected to be once
+     *                the frame is displayed, rather than where it last was
+     */
+    private void applyPendingMove(boolean predict) {
+        if (!mMovePending) {
+            return;
+        }
+        mMovePending = false;
+        Choreographer.getInstance().removeFrameCallback(mApplyMoveCallback);
+
+        // Samples of a previous move that didn't lead to a frame had no visible effect
+        long[] times = mAppliedSampleTimes;
+        mAppliedSampleTimes = mPendingSampleTimes;
+        mAppliedSampleCount = mPendingSampleCount;
+        mPendingSampleTimes = times;
+        mPendingSampleCount = 0;
+        mAppliedMode = mMode;
+        mAppliedTime = SystemClock.uptimeMillis();
+
+        float x = mPendingX;
+        float y = mPendingY;
+        float dx;
+        float dy;
+
+        if (predict && (mMode == MODE_LAYER_DRAG || mMode == MODE_LAYER_TRANSFORM_DRAG)) {
+            // Extrapolate at the current velocity up to the end of the frame being produced
+            long frameMillis = mQualityGovernor.getFrameIntervalNanos() / 1000000;
+            long ahead = Math.min(MAX_PREDICTION_MILLIS,
+                    mAppliedTime - mPendingEventTime + frameMillis);
+            mVelocityTracker.computeCurrentVelocity(1000);
+            float scale = mViewportScale * 1000;
+            x += mVelocityTracker.getXVelocity() * ahead / scale;
+            y += mVelocityTracker.getYVelocity() * ahead / scale;
+        }
+
+        if (mMode == MODE_VIEWPORT_DRAG) {
+            dx = mPendingRawX - mAppliedRawX;
+            dy = mPendingRawY - mAppliedRawY;
+            mAppliedRawX = mPendingRawX;
+            mAppliedRawY = mPendingRawY;
+            setViewportX(getViewportX() + dx);
+            setViewportY(getViewportY() + dy);
+            // Content moves with the finger, so the visible area moves the other way
+            prefetchTiles(-dx, -dy);
+            invalidate();
+        }
+
+        if (mMode == MODE_LAYER_DRAG) {
+            // For now, simply round deltas to the nearest pixel. Effectively makes the
+            // atomic drag unit the pixel.
+            dx = Math.round(x - mTouchDownX);
+            dy = Math.round(y - mTouchDownY);
+            int metaState = mPendingMetaState;
+            boolean isShiftPressed = (metaState & KeyEvent.META_SHIFT_ON) != 0;
+            boolean moveX = true;
+            boolean moveY = true;
+
+            if (isShiftPressed) {
+                if (Math.abs(dx) > Math.abs(dy)) {
+                    moveY = false;
+                } else {
+                    moveX = false;
+                }
+            }
+
+            float layerX = mCurrentLayer.getStartX() + (moveX ? dx : 0);
+            float layerY = mCurrentLayer.getStartY() + (moveY ? dy : 0);
+            if (mSnapping) {
+                float tolerance = SNAP_DISTANCE_DP * mDensity / mViewportScale;
+                mSnapIndex.clearGuides();
+                if (moveX) {
+                    layerX += mSnapIndex.snapX(layerX, layerX + mCurrentLayer.getWidth(),
+                            tolerance);
+                }
+                if (moveY) {
+                    layerY += mSnapIndex.snapY(layerY, layerY + mCurrentLayer.getHeight(),
+                            tolerance);
+                }
+                invalidateGuides();
+            }
+            // One batch of changes for both axes, rather than one per setter
+            EditTransaction transaction = mCurrentLayer.getTransaction();
+            transaction.begin();
+            try {
+                mCurrentLayer.setX(layerX);
+                mCurrentLayer.setY(layerY);
+            } finally {
+                transaction.commit();
+            }
+
+            // No invalidate necessary, the layer's property changes invalidate the
+            // region it moved across
+        }
+
+        if (mMode == MODE_LAYER_TRANSFORM_DRAG) {
+            // For now, simply round deltas to the nearest pixel. Effectively makes the
+            // atomic drag unit the pixel.
+            dx = Math.round(x - mAppliedX);
+            dy = Math.round(y - mAppliedY);
+            mAppliedX += dx;
+            mAppliedY += dy;
+            if (mSnapping) {
+                float tolerance = SNAP_DISTANCE_DP * mDensity / mViewportScale;
+                mSnapIndex.clearGuides();
+                dx = snapResizeX(dx, tolerance);
+                dy = snapResizeY(dy, tolerance);
+                invalidateGuides();
+            }
+            EditTransaction transaction = mCurrentLayer.getTransaction();
+            transaction.begin();
+            try {
+                mCurrentLayer.resize(mCurrentPoint, dx, dy);
+            } finally {
+                transaction.commit();
+            }
+        }
+
+        if (mMode == MODE_REGION_SELECTION && mRegionTool == REGION_SELECTION_MARQUEE) {
+            updateMarquee(x, y);
+        }
+    }
+
     @Override
     public void computeScroll() {
         if (mScroller != null && mScroller.computeScrollOffset()) {
@@ -685,12 +1319,396 @@ public class DocumentView extends View {
 
             setViewportX(x);
             setViewportY(y);
+            prefetchTiles(x - mScroller.getFinalX(), y - mScroller.getFinalY());
 
             this.postInvalidate();
+        } else if (mMode < MODE_LAYER_DRAG) {
+            endInteraction();
+        }
+    }
+
+    /**
+     * Restores full drawing quality, with one more frame, if the interaction that just ended
+     * lowered it
+     */
+    private void endInteraction() {
+        if (mQualityGovernor.setInteracting(false)) {
+            postInvalidateOnAnimation();
+        }
+    }
+
+    public QualityGovernor getQualityGovernor() {
+        return mQualityGovernor;
+    }
+
+    /**
+     * Extrapolates layer drags from the pointer's velocity so that dragged layers trail the
+     * pointer less. Layers are always left where the pointer was released, not where it was
+     * predicted to go. Off by default.
+     */
+    public void setMotionPredictionEnabled(boolean enabled) {
+        mMotionPredictionEnabled = enabled;
+    }
+
+    public boolean isMotionPredictionEnabled() {
+        return mMotionPredictionEnabled;
+    }
+
+    public boolean isSnappingEnabled() {
+        return mSnappingEnabled;
+    }
+
+    /**
+     * Makes layer drags and resizes snap to the edges and centers of other layers, and to the
+     * document's origin, drawing a guide line along each edge snapped to. On by default.
+     */
+    public void setSnappingEnabled(boolean enabled) {
+        mSnappingEnabled = enabled;
+    }
+
+    public int getRegionSelectionTool() {
+        return mRegionSelectionTool;
+    }
+
+    /**
+     * Sets what a drag that doesn't start on the current layer does: scroll the viewport
+     * (REGION_SELECTION_NONE, the default), or select every layer that a rectangle
+     * (REGION_SELECTION_MARQUEE) or a freeform outline (REGION_SELECTION_LASSO) touches.
+     */
+    public void setRegionSelectionTool(int tool) {
+        mRegionSelectionTool = tool;
+    }
+
+    public boolean isMouseRegionSelectionEnabled() {
+        return mMouseRegionSelectionEnabled;
+    }
+
+    /**
+     * Makes mouse drags that start on empty canvas draw a marquee, or a lasso with alt held, while
+     * the region selection tool is REGION_SELECTION_NONE. They scroll the viewport otherwise. Off
+     * by default.
+     */
+    public void setMouseRegionSelectionEnabled(boolean enabled) {
+        mMouseRegionSelectionEnabled = enabled;
+    }
+
+    /**
+     * @return milliseconds from touch events to the end of drawing the frame that shows them, for
+     * moving layers
+     */
+    public LatencyHistogram getLayerDragLatency() {
+        return mLayerDragLatency;
+    }
+
+    /**
+     * @return milliseconds from touch events to the end of drawing the frame that shows them, for
+     * resizing layers
+     */
+    public LatencyHistogram getTransformDragLatency() {
+        return mTransformDragLatency;
+    }
+
+    /**
+     * @return milliseconds from touch events to the end of drawing the frame that shows them, for
+     * scrolling the viewport
+     */
+    public LatencyHistogram getViewportDragLatency() {
+        return mViewportDragLatency;
+    }
+
+    /**
+     * Records the latency of the touch samples behind the last applied move, if this draw is part of
+     * the frame that applied it. Moves are applied at the start of a frame, so a later frame's
+     * drawing time is after the move was applied.
+     */
+    private void recordInputLatency() {
+        if (mAppliedSampleCount == 0) {
+            return;
+        }
+        if (getDrawingTime() <= mAppliedTime) {
+            LatencyHistogram histogram;
+            switch (mAppliedMode) {
+                case MODE_LAYER_DRAG:
+                    histogram = mLayerDragLatency;
+                    break;
+                case MODE_LAYER_TRANSFORM_DRAG:
+                    histogram = mTransformDragLatency;
+                    break;
+                case MODE_VIEWPORT_DRAG:
+                    histogram = mViewportDragLatency;
+                    break;
+                default:
+                    histogram = null;
+                    break;
+            }
+            long now = SystemClock.uptimeMillis();
+            for (int i = 0; histogram != null && i < mAppliedSampleCount; i++) {
+                histogram.record(now - mAppliedSampleTimes[i]);
+            }
+        }
+        mAppliedSampleCount = 0;
+    }
+
+    /**
+     * Freezes everything but the current layer for the rest of the drag that is starting
+     */
+    private void beginDragCompositing() {
+        if (mRoot != null && mViewportWidth > 0 && mViewportHeight > 0) {
+            mDragCompositor.begin(mCurrentLayer, toDocumentX(0), toDocumentY(0),
+                    toDocumentX(mViewportWidth), toDocumentY(mViewportHeight), mViewportScale);
+        }
+    }
+
+    /**
+     * Asks the tile cache to render tiles ahead of the visible area in the direction it is moving
+     *
+     * @param dx the horizontal direction of travel of the visible area, in document coordinates
+     * @param dy the vertical direction of travel of the visible area, in document coordinates
+     */
+    private void prefetchTiles(float dx, float dy) {
+        if (mTileCache != null) {
+            mTileCache.prefetch(toDocumentX(0), toDocumentY(0), toDocumentX(mViewportWidth),
+                    toDocumentY(mViewportHeight), dx, dy, mViewportScale);
         }
     }
 
+    /**
+     * Indexes the positions the current layer can snap to for the rest of the drag that is
+     * starting
+     */
+    private void beginSnapping() {
+        mSnapOffsetX = 0;
+        mSnapOffsetY = 0;
+        mSnapping = mSnappingEnabled && mRoot != null;
+        if (!mSnapping) {
+            return;
+        }
+
+        List<Layer> dragged = mHitCandidates;
+        if (mCurrentLayer instanceof SelectionGroup) {
+            dragged.addAll(((SelectionGroup) mCurrentLayer).getLayers());
+        } else {
+            dragged.add(mCurrentLayer);
+        }
+        mSnapIndex.build(mRoot, dragged);
+        dragged.clear();
+    }
+
+    private void endSnapping() {
+        if (mSnapping) {
+            mSnapping = false;
+            invalidateGuides();
+            mSnapIndex.clearGuides();
+        }
+    }
+
+    /**
+     * Snaps the vertical edge moved by the control point being dragged, if any
+     *
+     * @param dx how far the pointer moved the edge
+     * @return how far to actually move the edge
+     */
+    private float snapResizeX(float dx, float tolerance) {
+        Layer l = mCurrentLayer;
+        PointF p = mCurrentPoint;
+        float edge;
+        if (p == l.getTopLeft() || p == l.getMidLeft() || p == l.getBottomLeft()) {
+            edge = l.getLeft();
+        } else if (p == l.getTopRight() || p == l.getMidRight() || p == l.getBottomRight()) {
+            edge = l.getRight();
+        } else {
+            return dx;
+        }
+
+        // Where the edge would be without snapping
+        float free = edge - mSnapOffsetX + dx;
+        float snapped = free + mSnapIndex.snapX(free, free, tolerance);
+        mSnapOffsetX = snapped - free;
+        return snapped - edge;
+    }
+
+    /**
+     * Snaps the horizontal edge moved by the control point being dragged, if any
+     */
+    private float snapResizeY(float dy, float tolerance) {
+        Layer l = mCurrentLayer;
+        PointF p = mCurrentPoint;
+        float edge;
+        if (p == l.getTopLeft() || p == l.getMidTop() || p == l.getTopRight()) {
+            edge = l.getTop();
+        } else if (p == l.getBottomLeft() || p == l.getMidBottom() || p == l.getBottomRight()) {
+            edge = l.getBottom();
+        } else {
+            return dy;
+        }
+
+        float free = edge - mSnapOffsetY + dy;
+        float snapped = free + mSnapIndex.snapY(free, free, tolerance);
+        mSnapOffsetY = snapped - free;
+        return snapped - edge;
+    }
+
+    /**
+     * Redraws the view if a guide needs to be drawn or erased. Guides span the whole view, which
+     * the damage invalidated by the moving layer doesn't cover.
+     */
+    private void invalidateGuides() {
+        if (!Float.isNaN(mSnapIndex.getGuideX()) || !Float.isNaN(mSnapIndex.getGuideY())
+                || mGuidesDrawn) {
+            invalidate();
+        }
+    }
+
+    private void drawGuides(Canvas canvas, float vx, float vy, float scale) {
+        float guideX = mSnapping ? mSnapIndex.getGuideX() : Float.NaN;
+        float guideY = mSnapping ? mSnapIndex.getGuideY() : Float.NaN;
+        if (!Float.isNaN(guideX)) {
+            float x = guideX * scale + vx;
+            canvas.drawLine(x, 0, x, mViewportHeight, mGuidePaint);
+        }
+        if (!Float.isNaN(guideY)) {
+            float y = guideY * scale + vy;
+            canvas.drawLine(0, y, mViewportWidth, y, mGuidePaint);
+        }
+        mGuidesDrawn = !Float.isNaN(guideX) || !Float.isNaN(guideY);
+    }
+
+    /**
+     * @return the region selection tool for a drag that isn't moving the current layer
+     */
+    private int getRegionSelectionTool(MotionEvent event) {
+        if (mRegionSelectionTool != REGION_SELECTION_NONE) {
+            return mRegionSelectionTool;
+        }
+        if (mMouseRegionSelectionEnabled && mTouchDownWithMouse && mLayerDown == null) {
+            return (event.getMetaState() & KeyEvent.META_ALT_ON) != 0
+                    ? REGION_SELECTION_LASSO : REGION_SELECTION_MARQUEE;
+        }
+        return REGION_SELECTION_NONE;
+    }
+
+    private void beginRegionSelection(int tool) {
+        mMode = MODE_REGION_SELECTION;
+        mRegionTool = tool;
+        mRegionPointCount = 0;
+        addRegionPoint(mTouchDownX, mTouchDownY);
+    }
+
+    /**
+     * Stretches the marquee to the given document coordinates
+     */
+    private void updateMarquee(float x, float y) {
+        mRegionPointCount = 0;
+        addRegionPoint(mTouchDownX, mTouchDownY);
+        addRegionPoint(x, mTouchDownY);
+        addRegionPoint(x, y);
+        addRegionPoint(mTouchDownX, y);
+        invalidate();
+    }
+
+    /**
+     * Extends the lasso up to the given document coordinates
+     */
+    private void extendLasso(float x, float y) {
+        // Points closer together than this add edges to test without changing the outline
+        float spacing = LASSO_POINT_SPACING_DP * mDensity / mViewportScale;
+        float dx = x - mRegionPoints[mRegionPointCount * 2 - 2];
+        float dy = y - mRegionPoints[mRegionPointCount * 2 - 1];
+        if (dx * dx + dy * dy < spacing * spacing) {
+            return;
+        }
+        addRegionPoint(x, y);
+        invalidate();
+    }
+
+    private void addRegionPoint(float x, float y) {
+        if (mRegionPointCount * 2 == mRegionPoints.length) {
+            mRegionPoints = Arrays.copyOf(mRegionPoints, mRegionPoints.length * 2);
+        }
+        mRegionPoints[mRegionPointCount * 2] = x;
+        mRegionPoints[mRegionPointCount * 2 + 1] = y;
+        mRegionPointCount++;
+    }
+
+    private void clearRegion() {
+        if (mRegionPointCount > 0) {
+            mRegionPointCount = 0;
+            invalidate();
+        }
+    }
+
+    private void drawRegion(Canvas canvas, float vx, float vy, float scale) {
+        if (mRegionPointCount < 2) {
+            return;
+        }
+        float[] p = mRegionPoints;
+        Path path = mRegionPath;
+        path.rewind();
+        path.moveTo(p[0] * scale + vx, p[1] * scale + vy);
+        for (int i = 1; i < mRegionPointCount; i++) {
+            path.lineTo(p[i * 2] * scale + vx, p[i * 2 + 1] * scale + vy);
+        }
+        path.close();
+        canvas.drawPath(path, mRegionPaint);
+    }
+
+    /**
+     * Selects every visible layer whose shape touches the region. The region's bounding box is
+     * looked up in the spatial index first, so only layers near the region have their shapes
+     * tested.
+     *
+     * @param multi whether to add to the current selection rather than replace it
+     */
+    private void selectRegion(boolean multi) {
+        LayerGroup root = getSelectionRoot();
+        if (root == null) {
+            root = mRoot;
+        }
+        if (root == null || mRegionPointCount == 0) {
+            return;
+        }
+
+        float[] points = mRegionPoints;
+        int count = mRegionPointCount;
+        float left = points[0];
+        float top = points[1];
+        float right = left;
+        float bottom = top;
+        for (int i = 1; i < count; i++) {
+            left = Math.min(left, points[i * 2]);
+            top = Math.min(top, points[i * 2 + 1]);
+            right = Math.max(right, points[i * 2]);
+            bottom = Math.max(bottom, points[i * 2 + 1]);
+        }
+
+        List<Layer> candidates = mHitCandidates;
+        List<Layer> hits = mRegionHits;
+        root.findLayersIn(left, top, right, bottom, candidates);
+        for (int i = 0; i < candidates.size(); i++) {
+            Layer l = candidates.get(i);
+            if (l.isVisible() && l.intersectsPolygon(points, count, mRegionScratch)) {
+                hits.add(l);
+            }
+        }
+        candidates.clear();
+
+        // The selection copies the hits, so the list can be reused
+        setCurrentLayer(LayerUtils.selectionFrom(mCurrentLayer, hits, multi));
+        hits.clear();
+        // A selection group may have been added to in place
+        mHandlesDirty = true;
+        invalidate();
+    }
+
     public Layer getTopLayerHit(float x, float y) {
+        return getTopLayerHit(x, y, getSelectionRoot());
+    }
+
+    /**
+     * @return the group whose children a tap or a selection region selects from first, or null for
+     * the document's root
+     */
+    private LayerGroup getSelectionRoot() {
         LayerGroup root;
 
         // If the current layer is a selection, use the most recently selected layer's parent as
@@ -716,19 +1734,20 @@ public class DocumentView extends View {
             root = null;
         }
 
-        return getTopLayerHit(x, y, root);
+        return root;
     }
 
     public Layer getTopLayerHit(float x, float y, LayerGroup root) {
         Layer topLayerHit = null;
 
-        List<Layer> layers;
         if (root == null) {
             root = mRoot;
         }
-        layers = root.getLayers();
 
-        for (int i = layers.size() - 1; i >= 0; i--) {
+        // Only the children whose bounding boxes contain the point, topmost first
+        List<Layer> layers = mHitCandidates;
+        root.findLayersAt(x, y, layers);
+        for (int i = 0; i < layers.size(); i++) {
             Layer l = layers.get(i);
             // Only select visible layers
             if (l != mCurrentLayer && l.isVisible() && l.inBounds(x, y)) {
@@ -740,6 +1759,7 @@ public class DocumentView extends View {
                 break;
             }
         }
+        layers.clear();
 
         if (topLayerHit == null && root != null
                 && root.getParent() instanceof LayerGroup) {
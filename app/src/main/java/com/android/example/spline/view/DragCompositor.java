@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+
+import com.android.example.spline.model.Layer;
+import com.android.example.spline.model.SelectionGroup;
+
+import java.util.List;
+
+/**
+ * Speeds up dragging a layer by freezing everything else in the document for the duration of the
+ * drag. When the drag starts, the layers below and above the dragged content are each drawn once
+ * into a viewport-sized bitmap. Each frame of the drag then only draws those two bitmaps with the
+ * dragged layers between them, so the cost of a frame no longer depends on the document's size.
+ * <p>
+ * Any change to the document outside of the dragged layers, or a viewport that no longer matches
+ * the frozen area, ends the drag compositing and drawing falls back to the full display list. The
+ * owner is expected to end it when the viewport's scale changes.
+ */
+public class DragCompositor {
+
+    private final DisplayList mDisplayList;
+
+    private Bitmap mBelow;
+    private Bitmap mAbove;
+    private Canvas mBelowCanvas;
+    private Canvas mAboveCanvas;
+    private boolean mActive;
+
+    // The span of display list nodes being dragged
+    private int mStart;
+    private int mEnd;
+
+    // The frozen area in document coordinates
+    private float mLeft;
+    private float mTop;
+    private float mRight;
+    private float mBottom;
+    // Bitmap pixels per document pixel
+    private float mScale;
+
+    public DragCompositor(DisplayList displayList) {
+        mDisplayList = displayList;
+    }
+
+    /**
+     * Freezes the layers below and above the given layer, or the layers of a selection, within
+     * the given area of the document.
+     *
+     * @param scale the number of pixels per document pixel the document is drawn at
+     * @return false if the layer isn't drawn by the display list, in which case the compositor
+     * stays inactive
+     */
+    public boolean begin(Layer layer, float left, float top, float right, float bottom,
+                         float scale) {
+        end();
+
+        int start = Integer.MAX_VALUE;
+        int end = -1;
+        if (layer instanceof SelectionGroup) {
+            // The selection is drawn as a single span covering all of its layers
+            List<Layer> layers = ((SelectionGroup) layer).getLayers();
+            for (int i = 0, n = layers.size(); i < n; i++) {
+                int layerStart = mDisplayList.getSpanStart(layers.get(i));
+                if (layerStart < 0) {
+                    return false;
+                }
+                start = Math.min(start, layerStart);
+                end = Math.max(end, mDisplayList.getSpanEnd(layerStart));
+            }
+        } else {
+            start = mDisplayList.getSpanStart(layer);
+            if (start >= 0) {
+                end = mDisplayList.getSpanEnd(start);
+            }
+        }
+
+        int width = (int) Math.ceil((right - left) * scale);
+        int height = (int) Math.ceil((bottom - top) * scale);
+        if (end < 0 || width <= 0 || height <= 0) {
+            return false;
+        }
+
+        if (mBelow == null || mBelow.getWidth() != width || mBelow.getHeight() != height) {
+            mBelow = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mAbove = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mBelowCanvas = new Canvas(mBelow);
+            mAboveCanvas = new Canvas(mAbove);
+        }
+
+        mStart = start;
+        mEnd = end;
+        mLeft = left;
+        mTop = top;
+        mRight = left + width / scale;
+        mBottom = top + height / scale;
+        mScale = scale;
+
+        freeze(mBelowCanvas, mBelow, 0, start);
+        freeze(mAboveCanvas, mAbove, end, mDisplayList.size());
+        mActive = true;
+        return true;
+    }
+
+    private void freeze(Canvas canvas, Bitmap bitmap, int from, int to) {
+        bitmap.eraseColor(Color.TRANSPARENT);
+        canvas.save();
+        canvas.scale(mScale, mScale);
+        canvas.translate(-mLeft, -mTop);
+        mDisplayList.drawSpan(canvas, from, to, mLeft, mTop, mRight, mBottom);
+        canvas.restore();
+    }
+
+    /**
+     * Stops drawing from the frozen layers. The bitmaps are kept for the next drag.
+     */
+    public void end() {
+        mActive = false;
+    }
+
+    /**
+     * Drops the frozen bitmaps
+     */
+    public void release() {
+        end();
+        mBelow = null;
+        mAbove = null;
+        mBelowCanvas = null;
+        mAboveCanvas = null;
+    }
+
+    public boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Returns whether a change to the given layer leaves the frozen layers intact, i.e. whether it
+     * is drawn within the dragged span.
+     */
+    public boolean isDragged(Layer layer) {
+        int index = mDisplayList.indexOf(layer);
+        return index >= mStart && index < mEnd;
+    }
+
+    /**
+     * Draws the frozen layers with the dragged span between them, if the compositor is active and
+     * the given area of the document is within the frozen area.
+     *
+     * @return false if nothing was drawn and the caller should draw the document itself
+     */
+    public boolean draw(Canvas canvas, float left, float top, float right, float bottom) {
+        if (!mActive || left < mLeft || top < mTop || right > mRight || bottom > mBottom) {
+            return false;
+        }
+
+        drawFrozen(canvas, mBelow);
+        mDisplayList.drawSpan(canvas, mStart, mEnd, left, top, right, bottom);
+        drawFrozen(canvas, mAbove);
+        return true;
+    }
+
+    private void drawFrozen(Canvas canvas, Bitmap bitmap) {
+        if (mScale == 1) {
+            canvas.drawBitmap(bitmap, mLeft, mTop, null);
+        } else {
+            canvas.save();
+            canvas.translate(mLeft, mTop);
+            canvas.scale(1 / mScale, 1 / mScale);
+            canvas.drawBitmap(bitmap, 0, 0, null);
+            canvas.restore();
+        }
+    }
+}
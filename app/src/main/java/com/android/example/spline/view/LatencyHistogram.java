@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.view;
+
+/**
+ * Counts latencies in one millisecond buckets. Latencies of MAX_MILLIS or more all go to the last
+ * bucket, so percentiles that fall there are reported as MAX_MILLIS.
+ */
+public class LatencyHistogram {
+
+    public static final int MAX_MILLIS = 200;
+
+    private final int[] mBuckets = new int[MAX_MILLIS + 1];
+    private int mCount;
+    private long mTotalMillis;
+    private long mMaxMillis;
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        mBuckets[(int) Math.min(millis, MAX_MILLIS)]++;
+        mCount++;
+        mTotalMillis += millis;
+        mMaxMillis = Math.max(mMaxMillis, millis);
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return how many latencies of the given number of milliseconds were recorded
+     */
+    public int getBucket(int millis) {
+        return mBuckets[Math.min(millis, MAX_MILLIS)];
+    }
+
+    public float getMeanMillis() {
+        return mCount == 0 ? 0 : (float) mTotalMillis / mCount;
+    }
+
+    public long getMaxMillis() {
+        return mMaxMillis;
+    }
+
+    /**
+     * @param fraction between 0 and 1, e.g. 0.9 for the 90th percentile
+     * @return the smallest latency that at least the given fraction of latencies do not exceed
+     */
+    public int getPercentileMillis(float fraction) {
+        if (mCount == 0) {
+            return 0;
+        }
+        int rank = Math.max(1, (int) Math.ceil(fraction * mCount));
+        int seen = 0;
+        for (int i = 0; i < mBuckets.length; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                return i;
+            }
+        }
+        return MAX_MILLIS;
+    }
+
+    public void reset() {
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mTotalMillis = 0;
+        mMaxMillis = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + mCount + " mean=" + getMeanMillis() + "ms p50="
+                + getPercentileMillis(0.5f) + "ms p90=" + getPercentileMillis(0.9f) + "ms p99="
+                + getPercentileMillis(0.99f) + "ms max=" + mMaxMillis + "ms";
+    }
+}
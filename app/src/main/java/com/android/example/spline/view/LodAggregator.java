@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.view;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+import java.util.Arrays;
+
+/**
+ * Level of detail policy for shapes too small to make out on screen. Shapes smaller than a pixel
+ * are collected into a grid of small cells instead of being drawn one by one. Each cell is drawn
+ * once, in the color of the last shape that landed in it, with an opacity proportional to how much
+ * of the cell the shapes covered. Consecutive cells of the same color are drawn with a single
+ * drawPoints call.
+ * <p>
+ * Collected cells must be flushed before anything else is drawn so that shapes stay in order.
+ */
+class LodAggregator {
+
+    /**
+     * Shapes smaller than this many pixels on screen in both dimensions are aggregated into cells
+     */
+    static final float POINT_SIZE = 1;
+
+    /**
+     * Ovals and triangles smaller than this many pixels on screen in both dimensions are drawn as
+     * rectangles
+     */
+    static final float RECT_SIZE = 4;
+
+    static final float CELL_SIZE = 2;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final Paint mPaint = new Paint();
+
+    // Open addressing table from cell key to entry index
+    private long[] mTableKeys = new long[256];
+    private int[] mTableEntries = new int[256];
+
+    // Entries in the order their cells were first touched
+    private float[] mPoints = new float[256];
+    private int[] mColors = new int[128];
+    private float[] mCoverage = new float[128];
+    private int[] mSlots = new int[128];
+    private int mCount;
+    // CELL_SIZE in document coordinates at the current scale
+    private float mCellSize = CELL_SIZE;
+
+    LodAggregator() {
+        Arrays.fill(mTableKeys, EMPTY);
+        mPaint.setStrokeWidth(CELL_SIZE);
+        mPaint.setStrokeCap(Paint.Cap.SQUARE);
+    }
+
+    /**
+     * Sets the number of pixels per document pixel the cells are drawn at. Must only be called
+     * while empty.
+     */
+    void setScale(float scale) {
+        mCellSize = CELL_SIZE / scale;
+        mPaint.setStrokeWidth(mCellSize);
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Adds a shape of the given normalized bounds and color (including alpha) to its cell
+     */
+    void add(float minX, float minY, float maxX, float maxY, int color) {
+        int cx = (int) Math.floor((minX + maxX) / 2 / mCellSize);
+        int cy = (int) Math.floor((minY + maxY) / 2 / mCellSize);
+        long key = ((long) cx << 32) | (cy & 0xffffffffL);
+        float coverage = (maxX - minX) * (maxY - minY) * Color.alpha(color) / 255f;
+
+        int mask = mTableKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mTableKeys[slot] != EMPTY) {
+            if (mTableKeys[slot] == key) {
+                int entry = mTableEntries[slot];
+                mColors[entry] = color;
+                mCoverage[entry] += coverage;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (mCount == mColors.length) {
+            mColors = Arrays.copyOf(mColors, mCount * 2);
+            mCoverage = Arrays.copyOf(mCoverage, mCount * 2);
+            mPoints = Arrays.copyOf(mPoints, mCount * 4);
+            mSlots = Arrays.copyOf(mSlots, mCount * 2);
+        }
+
+        mTableKeys[slot] = key;
+        mTableEntries[slot] = mCount;
+        mSlots[mCount] = slot;
+        mColors[mCount] = color;
+        mCoverage[mCount] = coverage;
+        mPoints[mCount * 2] = (cx + 0.5f) * mCellSize;
+        mPoints[mCount * 2 + 1] = (cy + 0.5f) * mCellSize;
+        mCount++;
+
+        // Keep the table at most half full
+        if (mCount * 2 > mTableKeys.length) {
+            growTable();
+        }
+    }
+
+    /**
+     * Draws and clears the collected cells
+     *
+     * @return the number of draw calls issued
+     */
+    int flush(Canvas canvas) {
+        float cellArea = mCellSize * mCellSize;
+        for (int i = 0; i < mCount; i++) {
+            // Bake each cell's coverage into its color so that runs can be compared directly
+            float alpha = Math.min(1, mCoverage[i] / cellArea);
+            mColors[i] = (mColors[i] & 0xffffff) | (Math.round(alpha * 255) << 24);
+        }
+
+        int calls = 0;
+        int runStart = 0;
+        for (int i = 1; i <= mCount; i++) {
+            if (i == mCount || mColors[i] != mColors[runStart]) {
+                mPaint.setColor(mColors[runStart]);
+                canvas.drawPoints(mPoints, runStart * 2, (i - runStart) * 2, mPaint);
+                calls++;
+                runStart = i;
+            }
+        }
+
+        clear();
+        return calls;
+    }
+
+    /**
+     * Drops the collected cells without drawing them
+     */
+    void clear() {
+        // Only clear the slots in use, the table may be much larger than a typical run of cells
+        for (int i = 0; i < mCount; i++) {
+            mTableKeys[mSlots[i]] = EMPTY;
+        }
+        mCount = 0;
+    }
+
+    private void growTable() {
+        int size = mTableKeys.length * 2;
+        mTableKeys = new long[size];
+        mTableEntries = new int[size];
+        Arrays.fill(mTableKeys, EMPTY);
+
+        int mask = size - 1;
+        for (int i = 0; i < mCount; i++) {
+            int cx = (int) Math.floor(mPoints[i * 2] / mCellSize);
+            int cy = (int) Math.floor(mPoints[i * 2 + 1] / mCellSize);
+            long key = ((long) cx << 32) | (cy & 0xffffffffL);
+            int slot = hash(key) & mask;
+            while (mTableKeys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            mTableKeys[slot] = key;
+            mTableEntries[slot] = i;
+            mSlots[i] = slot;
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.view;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import java.util.Arrays;
+
+/**
+ * Tessellates runs of shapes into a single triangle mesh with per-vertex colors, so that a run of
+ * any length is submitted with one Canvas.drawVertices call. Triangles are drawn in the order they
+ * were added, so shapes keep their painting order within a run.
+ * <p>
+ * Meshes aren't anti-aliased, and drawVertices is only supported by hardware accelerated canvases
+ * from API 29, so views drawing meshes on older devices need a software layer.
+ */
+class MeshBatch {
+
+    // Indices are shorts, so a single mesh can't address more vertices than this
+    private static final int MAX_VERTICES = 0x8000;
+
+    // Ovals are approximated by fans of 8 to 64 triangles depending on their size
+    private static final int MAX_OVAL_SEGMENTS = 64;
+    private static final int MIN_OVAL_SEGMENTS = 8;
+    private static final float OVAL_SEGMENT_LENGTH = 4;
+
+    private static final float[] COS = new float[MAX_OVAL_SEGMENTS];
+    private static final float[] SIN = new float[MAX_OVAL_SEGMENTS];
+
+    static {
+        for (int i = 0; i < MAX_OVAL_SEGMENTS; i++) {
+            double angle = 2 * Math.PI * i / MAX_OVAL_SEGMENTS;
+            COS[i] = (float) Math.cos(angle);
+            SIN[i] = (float) Math.sin(angle);
+        }
+    }
+
+    private final Paint mPaint = new Paint();
+
+    private float[] mVertices = new float[1024];
+    // Sized like mVertices rather than one per vertex, since some versions of drawVertices check
+    // the color array's length against the number of vertex coordinates
+    private int[] mColors = new int[1024];
+    private short[] mIndices = new short[1536];
+    private int mVertexCount;
+    private int mIndexCount;
+    // Meshes already drawn because they ran out of indices, reported by the next flush
+    private int mOverflowCount;
+
+    boolean isEmpty() {
+        return mIndexCount == 0;
+    }
+
+    void addRect(Canvas canvas, float left, float top, float right, float bottom, int color) {
+        int v = reserve(canvas, 4, 6);
+        addVertex(left, top, color);
+        addVertex(right, top, color);
+        addVertex(right, bottom, color);
+        addVertex(left, bottom, color);
+        addTriangle(v, v + 1, v + 2);
+        addTriangle(v, v + 2, v + 3);
+    }
+
+    void addTriangle(Canvas canvas, float x1, float y1, float x2, float y2, float x3, float y3,
+                     int color) {
+        int v = reserve(canvas, 3, 3);
+        addVertex(x1, y1, color);
+        addVertex(x2, y2, color);
+        addVertex(x3, y3, color);
+        addTriangle(v, v + 1, v + 2);
+    }
+
+    void addOval(Canvas canvas, float left, float top, float right, float bottom, int color) {
+        float rx = (right - left) / 2;
+        float ry = (bottom - top) / 2;
+        float cx = left + rx;
+        float cy = top + ry;
+
+        // Use the smallest power of two segment count that keeps segments short
+        float circumference = (float) (Math.PI * (Math.abs(rx) + Math.abs(ry)));
+        int segments = MIN_OVAL_SEGMENTS;
+        while (segments < MAX_OVAL_SEGMENTS && circumference / segments > OVAL_SEGMENT_LENGTH) {
+            segments *= 2;
+        }
+        int step = MAX_OVAL_SEGMENTS / segments;
+
+        int v = reserve(canvas, segments + 1, segments * 3);
+        addVertex(cx, cy, color);
+        for (int i = 0; i < MAX_OVAL_SEGMENTS; i += step) {
+            addVertex(cx + rx * COS[i], cy + ry * SIN[i], color);
+        }
+        for (int i = 0; i < segments; i++) {
+            addTriangle(v, v + 1 + i, v + 1 + (i + 1) % segments);
+        }
+    }
+
+    /**
+     * Draws and clears the mesh collected so far
+     *
+     * @return the number of draw calls issued since the last flush
+     */
+    int flush(Canvas canvas) {
+        int calls = mOverflowCount;
+        mOverflowCount = 0;
+        if (mIndexCount == 0) {
+            return calls;
+        }
+
+        canvas.drawVertices(Canvas.VertexMode.TRIANGLES, mVertexCount * 2, mVertices, 0, null, 0,
+                mColors, 0, mIndices, 0, mIndexCount, mPaint);
+        mVertexCount = 0;
+        mIndexCount = 0;
+        return calls + 1;
+    }
+
+    /**
+     * Makes room for a shape, flushing the mesh first if the shape's vertices couldn't be indexed
+     *
+     * @return the index of the shape's first vertex
+     */
+    private int reserve(Canvas canvas, int vertices, int indices) {
+        if (mVertexCount + vertices > MAX_VERTICES) {
+            // The flush reports and clears any earlier overflows as well
+            mOverflowCount = flush(canvas);
+        }
+
+        if ((mVertexCount + vertices) * 2 > mVertices.length) {
+            int size = Math.max(mVertices.length * 2, (mVertexCount + vertices) * 2);
+            mVertices = Arrays.copyOf(mVertices, size);
+            mColors = Arrays.copyOf(mColors, size);
+        }
+
+        if (mIndexCount + indices > mIndices.length) {
+            mIndices = Arrays.copyOf(mIndices,
+                    Math.max(mIndices.length * 2, mIndexCount + indices));
+        }
+        return mVertexCount;
+    }
+
+    private void addVertex(float x, float y, int color) {
+        mVertices[mVertexCount * 2] = x;
+        mVertices[mVertexCount * 2 + 1] = y;
+        mColors[mVertexCount] = color;
+        mVertexCount++;
+    }
+
+    private void addTriangle(int a, int b, int c) {
+        mIndices[mIndexCount++] = (short) a;
+        mIndices[mIndexCount++] = (short) b;
+        mIndices[mIndexCount++] = (short) c;
+    }
+}
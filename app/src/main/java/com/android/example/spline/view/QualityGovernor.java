@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.view;
+
+/**
+ * Decides when DocumentView should trade drawing quality for frame rate. While the user is
+ * interacting with the document (dragging a layer, dragging or flinging the viewport), any frame
+ * whose draw time exceeds the budget switches to reduced quality for the rest of the interaction.
+ * Full quality comes back with the first frame drawn after the interaction ends.
+ * <p>
+ * Draw times are those of onDraw, which on hardware accelerated views only records the frame. So
+ * the budget is a fraction of the display's frame interval, leaving the rest for the render
+ * thread and the GPU.
+ */
+public class QualityGovernor {
+
+    public static final float DEFAULT_REFRESH_RATE = 60;
+
+    // The share of each frame interval that onDraw may take up
+    private static final float DRAW_BUDGET_FRACTION = 0.5f;
+
+    private long mFrameIntervalNanos;
+    private long mBudgetNanos;
+    private boolean mInteracting;
+    private boolean mReducedQuality;
+    private long mLastDrawNanos;
+
+    public QualityGovernor() {
+        setRefreshRate(DEFAULT_REFRESH_RATE);
+    }
+
+    public void setRefreshRate(float refreshRate) {
+        if (refreshRate <= 0) {
+            refreshRate = DEFAULT_REFRESH_RATE;
+        }
+        mFrameIntervalNanos = (long) (1e9 / refreshRate);
+        mBudgetNanos = (long) (mFrameIntervalNanos * DRAW_BUDGET_FRACTION);
+    }
+
+    public long getFrameIntervalNanos() {
+        return mFrameIntervalNanos;
+    }
+
+    public long getBudgetNanos() {
+        return mBudgetNanos;
+    }
+
+    /**
+     * @return true if this ended an interaction that was drawn at reduced quality, in which case
+     * the view should be redrawn to restore full quality
+     */
+    public boolean setInteracting(boolean interacting) {
+        mInteracting = interacting;
+        if (!interacting && mReducedQuality) {
+            mReducedQuality = false;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isInteracting() {
+        return mInteracting;
+    }
+
+    /**
+     * Reports how long the last frame took to draw
+     */
+    public void onFrameDrawn(long drawNanos) {
+        mLastDrawNanos = drawNanos;
+        if (mInteracting && drawNanos > mBudgetNanos) {
+            mReducedQuality = true;
+        }
+    }
+
+    public long getLastDrawNanos() {
+        return mLastDrawNanos;
+    }
+
+    public boolean isReducedQuality() {
+        return mReducedQuality;
+    }
+}
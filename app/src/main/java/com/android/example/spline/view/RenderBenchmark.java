@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+
+/**
+ * Compares the cost of drawing a display list one shape at a time against drawing it as batched
+ * meshes. Both renderers draw the same area of the document into the same software bitmap, so
+ * that the comparison isn't skewed by either renderer's hardware support.
+ */
+public class RenderBenchmark {
+
+    // Frames drawn before timing starts, so that lazily built state doesn't count
+    private static final int WARMUP_FRAMES = 3;
+
+    public static class Result {
+        public final int frames;
+        public final long shapeNanosPerFrame;
+        public final long meshNanosPerFrame;
+        public final int shapeDrawCalls;
+        public final int meshDrawCalls;
+
+        Result(int frames, long shapeNanosPerFrame, long meshNanosPerFrame, int shapeDrawCalls,
+               int meshDrawCalls) {
+            this.frames = frames;
+            this.shapeNanosPerFrame = shapeNanosPerFrame;
+            this.meshNanosPerFrame = meshNanosPerFrame;
+            this.shapeDrawCalls = shapeDrawCalls;
+            this.meshDrawCalls = meshDrawCalls;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("shapes: %.2fms, %d calls; meshes: %.2fms, %d calls (%d frames)",
+                    shapeNanosPerFrame / 1e6, shapeDrawCalls, meshNanosPerFrame / 1e6,
+                    meshDrawCalls, frames);
+        }
+    }
+
+    /**
+     * Draws the given area of the document the given number of times with each renderer. Group
+     * caches are disabled while timing, since they would hide most of the renderers' work. The
+     * display list's settings are restored afterwards. Must be called on the thread that owns the
+     * display list.
+     */
+    public static Result run(DisplayList displayList, float left, float top, float right,
+                             float bottom, int frames) {
+        Bitmap bitmap = Bitmap.createBitmap(Math.max(1, (int) Math.ceil(right - left)),
+                Math.max(1, (int) Math.ceil(bottom - top)), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.translate(-left, -top);
+
+        frames = Math.max(1, frames);
+        boolean meshEnabled = displayList.isMeshRenderingEnabled();
+        int groupCacheThreshold = displayList.getGroupCacheThreshold();
+        try {
+            displayList.setGroupCacheThreshold(0);
+            displayList.setMeshRenderingEnabled(false);
+            long shapeNanos = time(displayList, canvas, bitmap, left, top, right, bottom, frames);
+            int shapeDrawCalls = displayList.getDrawCount();
+
+            displayList.setMeshRenderingEnabled(true);
+            long meshNanos = time(displayList, canvas, bitmap, left, top, right, bottom, frames);
+            int meshDrawCalls = displayList.getDrawCount();
+
+            return new Result(frames, shapeNanos / frames, meshNanos / frames, shapeDrawCalls,
+                    meshDrawCalls);
+        } finally {
+            displayList.setMeshRenderingEnabled(meshEnabled);
+            displayList.setGroupCacheThreshold(groupCacheThreshold);
+        }
+    }
+
+    private static long time(DisplayList displayList, Canvas canvas, Bitmap bitmap, float left,
+                             float top, float right, float bottom, int frames) {
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+            displayList.draw(canvas, left, top, right, bottom);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+            displayList.draw(canvas, left, top, right, bottom);
+        }
+        return System.nanoTime() - start;
+    }
+}
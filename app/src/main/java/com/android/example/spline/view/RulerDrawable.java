@@ -32,12 +32,17 @@ import com.android.example.spline.R;
 
 /**
  * Draws a pixel-based ruler with markers every 50px and labels every 200px, either horizontally or
- * vertically depending on whether width or height is the larger dimension.
+ * vertically depending on whether width or height is the larger dimension. When the document is
+ * zoomed, the markers switch to the round document distance that keeps them about as far apart on
+ * screen.
  */
 public class RulerDrawable extends Drawable {
 
     private static final int FONT_SIZE_DP = 11;
 
+    // Markers are at least this many pixels apart on screen
+    private static final int MIN_SEGMENT_SPACING = 40;
+
     private final float mDensity;
 
     private Paint mTextPaint;
@@ -46,6 +51,7 @@ public class RulerDrawable extends Drawable {
     private Path mVerticalTextPath;
 
     private float mViewportStart;
+    private float mViewportScale = 1;
     private float mHighlightStart;
     private float mHighlightSize;
 
@@ -73,6 +79,10 @@ public class RulerDrawable extends Drawable {
         mViewportStart = viewportStart;
     }
 
+    public void setViewportScale(float viewportScale) {
+        mViewportScale = viewportScale;
+    }
+
     public void setHighlightStart(float highlightStart) {
         mHighlightStart = highlightStart;
     }
@@ -88,7 +98,10 @@ public class RulerDrawable extends Drawable {
 
         int borderX1, borderX2, borderY1, borderY2;
 
-        int segmentSpacing = 50;
+        float scale = mViewportScale;
+        // Segments are measured in document pixels, and drawn segmentSize pixels apart
+        int segmentSpacing = segmentSpacing(scale);
+        float segmentSize = segmentSpacing * scale;
         int numSegments;
 
         boolean validHighlight = mHighlightStart < Float.MAX_VALUE
@@ -98,14 +111,14 @@ public class RulerDrawable extends Drawable {
             borderX1 = borderX2 = (int) (bounds.width() - mDensity / 2);
             borderY1 = 0;
             borderY2 = bounds.height();
-            numSegments = bounds.height() / segmentSpacing;
+            numSegments = (int) (bounds.height() / segmentSize);
 
             if (validHighlight) {
                 canvas.drawRect(
                         0,
-                        mHighlightStart + mViewportStart,
+                        mHighlightStart * scale + mViewportStart,
                         bounds.width(),
-                        mHighlightStart + mHighlightSize + mViewportStart,
+                        (mHighlightStart + mHighlightSize) * scale + mViewportStart,
                         mHighlightPaint
                 );
             }
@@ -113,24 +126,25 @@ public class RulerDrawable extends Drawable {
             borderX1 = 0;
             borderX2 = bounds.width();
             borderY1 = borderY2 = (int) (bounds.height() - mDensity / 2);
-            numSegments = bounds.width() / segmentSpacing;
+            numSegments = (int) (bounds.width() / segmentSize);
 
             if (validHighlight) {
                 canvas.drawRect(
-                        mHighlightStart + mViewportStart,
+                        mHighlightStart * scale + mViewportStart,
                         0,
-                        mHighlightStart + mHighlightSize + mViewportStart,
+                        (mHighlightStart + mHighlightSize) * scale + mViewportStart,
                         bounds.height(),
                         mHighlightPaint
                 );
             }
         }
 
-        int offset = Math.round(mViewportStart % segmentSpacing);
-        int segmentOffset = (int) (mViewportStart / segmentSpacing);
+        int offset = Math.round(mViewportStart % segmentSize);
+        int segmentOffset = (int) (mViewportStart / segmentSize);
 
         for (int i = -1; i < numSegments + 2; i++) {
             int h = 4;
+            float pos = i * segmentSize + offset;
 
             int idx = i - segmentOffset;
             if (idx % 2 == 0) {
@@ -142,10 +156,10 @@ public class RulerDrawable extends Drawable {
                     mVerticalTextPath.reset();
                     mVerticalTextPath.moveTo(
                             bounds.width() / 2,
-                            i * segmentSpacing + offset + 25 * mDensity);
+                            pos + 25 * mDensity);
                     mVerticalTextPath.lineTo(
                             bounds.width() / 2,
-                            (i - 1) * segmentSpacing + offset);
+                            pos - segmentSize);
 
                     canvas.drawTextOnPath(Integer.toString(idx * segmentSpacing),
                             mVerticalTextPath,
@@ -155,7 +169,7 @@ public class RulerDrawable extends Drawable {
 
                 } else {
                     canvas.drawText(Integer.toString(idx * segmentSpacing),
-                            i * segmentSpacing + offset,
+                            pos,
                             bounds.height() / 2,
                             mTextPaint);
                 }
@@ -164,15 +178,15 @@ public class RulerDrawable extends Drawable {
             if (isVertical) {
                 canvas.drawLine(
                         bounds.width() - (h + 4) * mDensity,
-                        i * segmentSpacing + offset,
+                        pos,
                         bounds.width() - 4 * mDensity,
-                        i * segmentSpacing + offset,
+                        pos,
                         mLinePaint);
             } else {
                 canvas.drawLine(
-                        i * segmentSpacing + offset,
+                        pos,
                         bounds.height() - (h + 4) * mDensity,
-                        i * segmentSpacing + offset,
+                        pos,
                         bounds.height() - 4 * mDensity,
                         mLinePaint);
             }
@@ -181,6 +195,23 @@ public class RulerDrawable extends Drawable {
         canvas.drawLine(borderX1, borderY1, borderX2, borderY2, mLinePaint);
     }
 
+    /**
+     * Returns the smallest of 1, 2, 5, 10, 20, 50... document pixels that is at least
+     * MIN_SEGMENT_SPACING pixels on screen, i.e. 50 at 100%
+     */
+    private static int segmentSpacing(float scale) {
+        float min = MIN_SEGMENT_SPACING / scale;
+        for (int base = 1; ; base *= 10) {
+            if (base >= min) {
+                return base;
+            } else if (base * 2 >= min) {
+                return base * 2;
+            } else if (base * 5 >= min) {
+                return base * 5;
+            }
+        }
+    }
+
     @Override
     public void setAlpha(@IntRange(from = 0, to = 255) int alpha) {
 
@@ -38,8 +38,11 @@ public class RulerView extends View {
     private boolean mIsVertical;
 
     private float mViewportStart;
+    private float mViewportScale = 1;
     private float mHighlightStart;
     private float mHighlightSize;
+    // Movement not yet applied to a highlight drag, in document pixels
+    private float mHighlightDragRemainder;
     private InverseBindingListener mViewportStartAttrChangedListener;
     private InverseBindingListener mHighlightStartAttrChangedListener;
 
@@ -95,6 +98,21 @@ public class RulerView extends View {
         }
     }
 
+    public float getViewportScale() {
+        return mViewportScale;
+    }
+
+    /**
+     * Sets the document's zoom factor, in pixels per document pixel
+     */
+    public void setViewportScale(float viewportScale) {
+        if (viewportScale != mViewportScale) {
+            mViewportScale = viewportScale;
+            mDrawable.setViewportScale(viewportScale);
+            mDrawable.invalidateSelf();
+        }
+    }
+
     public float getHighlightStart() {
         return mHighlightStart;
     }
@@ -135,16 +153,11 @@ public class RulerView extends View {
                 }
 
                 mMode = MODE_RULER_DRAG;
-                if (mIsVertical) {
-                    if (y - mViewportStart >= mHighlightStart &&
-                            y - mViewportStart <= mHighlightStart + mHighlightSize) {
-                        mMode = MODE_HIGHLIGHT_DRAG;
-                    }
-                } else {
-                    if (x - mViewportStart >= mHighlightStart &&
-                            x - mViewportStart <= mHighlightStart + mHighlightSize) {
-                        mMode = MODE_HIGHLIGHT_DRAG;
-                    }
+                // Position along the ruler in document coordinates
+                float position = ((mIsVertical ? y : x) - mViewportStart) / mViewportScale;
+                if (position >= mHighlightStart && position <= mHighlightStart + mHighlightSize) {
+                    mMode = MODE_HIGHLIGHT_DRAG;
+                    mHighlightDragRemainder = 0;
                 }
 
                 if (mVelocityTracker == null) {
@@ -165,12 +178,13 @@ public class RulerView extends View {
                         setViewportStart(getViewportStart() + dx);
                     }
                 } else if (mMode == MODE_HIGHLIGHT_DRAG) {
-                    if (mIsVertical) {
-                        // Drag highlight by whole pixels for now
-                        setHighlightStart(getHighlightStart() + Math.round(dy));
-                    } else {
-                        setHighlightStart(getHighlightStart() + Math.round(dx));
-                    }
+                    // Drag highlight by whole document pixels for now, keeping the rest for the
+                    // next move so that slow drags at high zoom still add up
+                    float delta = (mIsVertical ? dy : dx) / mViewportScale
+                            + mHighlightDragRemainder;
+                    int step = Math.round(delta);
+                    mHighlightDragRemainder = delta - step;
+                    setHighlightStart(getHighlightStart() + step);
                 }
 
                 break;
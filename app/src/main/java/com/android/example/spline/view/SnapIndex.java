@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.view;
+
+import com.android.example.spline.model.Layer;
+import com.android.example.spline.model.LayerGroup;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Sorted positions that dragged layers snap to along each axis: the edges and centers of every
+ * other visible shape, and the document's origin. Built once when a drag starts, after which each
+ * snap is a binary search, so the cost of a move doesn't grow with the size of the document.
+ * <p>
+ * The index also remembers the position last snapped to on each axis, which DocumentView draws as
+ * a guide line.
+ */
+class SnapIndex {
+
+    private float[] mXs = new float[64];
+    private int mXCount;
+    private float[] mYs = new float[64];
+    private int mYCount;
+    private final IdentityHashMap<Layer, Boolean> mExcluded = new IdentityHashMap<>();
+
+    private float mGuideX = Float.NaN;
+    private float mGuideY = Float.NaN;
+    private float mTarget;
+
+    /**
+     * Indexes the visible shapes under root, leaving out the given layers and their descendants
+     */
+    void build(LayerGroup root, List<Layer> excluded) {
+        mXCount = 0;
+        mYCount = 0;
+        mExcluded.clear();
+        for (int i = 0; i < excluded.size(); i++) {
+            mExcluded.put(excluded.get(i), Boolean.TRUE);
+        }
+
+        addX(0);
+        addY(0);
+        if (root != null) {
+            addChildren(root);
+        }
+        mExcluded.clear();
+
+        mXCount = sortUnique(mXs, mXCount);
+        mYCount = sortUnique(mYs, mYCount);
+        clearGuides();
+    }
+
+    private void addChildren(LayerGroup group) {
+        List<Layer> layers = group.getLayers();
+        for (int i = 0; i < layers.size(); i++) {
+            Layer l = layers.get(i);
+            if (!l.isVisible() || mExcluded.containsKey(l)) {
+                continue;
+            }
+            if (l instanceof LayerGroup) {
+                addChildren((LayerGroup) l);
+            } else {
+                float left = l.getLeft();
+                float right = l.getRight();
+                float top = l.getTop();
+                float bottom = l.getBottom();
+                addX(left);
+                addX(right);
+                addX((left + right) / 2);
+                addY(top);
+                addY(bottom);
+                addY((top + bottom) / 2);
+            }
+        }
+    }
+
+    private void addX(float x) {
+        if (mXCount == mXs.length) {
+            mXs = Arrays.copyOf(mXs, mXCount * 2);
+        }
+        mXs[mXCount++] = x;
+    }
+
+    private void addY(float y) {
+        if (mYCount == mYs.length) {
+            mYs = Arrays.copyOf(mYs, mYCount * 2);
+        }
+        mYs[mYCount++] = y;
+    }
+
+    private static int sortUnique(float[] values, int count) {
+        Arrays.sort(values, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || values[i] != values[unique - 1]) {
+                values[unique++] = values[i];
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * Finds the offset that moves whichever of the edges at start and end, or their center, is
+     * closest to a horizontal snap position onto it. The position becomes the vertical guide.
+     *
+     * @param tolerance how far an edge may be from a snap position and still snap to it
+     * @return the offset, or 0 if nothing is within tolerance
+     */
+    float snapX(float start, float end, float tolerance) {
+        float offset = snap(mXs, mXCount, start, end, tolerance);
+        mGuideX = mTarget;
+        return offset;
+    }
+
+    /**
+     * Like snapX, for vertical snap positions and the horizontal guide
+     */
+    float snapY(float start, float end, float tolerance) {
+        float offset = snap(mYs, mYCount, start, end, tolerance);
+        mGuideY = mTarget;
+        return offset;
+    }
+
+    /**
+     * @return the x coordinate last snapped to, or NaN if the last snapX didn't snap
+     */
+    float getGuideX() {
+        return mGuideX;
+    }
+
+    /**
+     * @return the y coordinate last snapped to, or NaN if the last snapY didn't snap
+     */
+    float getGuideY() {
+        return mGuideY;
+    }
+
+    void clearGuides() {
+        mGuideX = Float.NaN;
+        mGuideY = Float.NaN;
+    }
+
+    /**
+     * Snaps the closest of start, end and their center, leaving the position snapped to in mTarget
+     */
+    private float snap(float[] values, int count, float start, float end, float tolerance) {
+        mTarget = Float.NaN;
+        float best = 0;
+        float bestDistance = tolerance;
+        for (int i = 0; i < 3; i++) {
+            float edge = i == 0 ? start : i == 1 ? end : (start + end) / 2;
+            float target = nearest(values, count, edge);
+            float distance = Math.abs(target - edge);
+            if (distance <= bestDistance && (Float.isNaN(mTarget) || distance < bestDistance)) {
+                mTarget = target;
+                best = target - edge;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Binary searches the sorted values for the one closest to value
+     */
+    private static float nearest(float[] values, int count, float value) {
+        int i = Arrays.binarySearch(values, 0, count, value);
+        if (i >= 0) {
+            return values[i];
+        }
+        int insertion = -i - 1;
+        if (insertion == 0) {
+            return values[0];
+        }
+        if (insertion == count) {
+            return values[count - 1];
+        }
+        float below = values[insertion - 1];
+        float above = values[insertion];
+        return value - below <= above - value ? below : above;
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.LongSparseArray;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Caches the document's shape content as fixed-size bitmap tiles in document coordinates. Tiles are
+ * rasterized from a DisplayList.Snapshot on a pool of background threads, so panning and flinging
+ * over unchanged content is mostly a matter of drawing cached bitmaps. Until a tile is ready, its
+ * area is drawn from a cached tile of a coarser level if there is one, and otherwise directly from
+ * the display list on the UI thread.
+ * <p>
+ * Tiles form a pyramid of levels. A tile of level n covers TILE_SIZE * 2^n document pixels, so
+ * level 0 is drawn at 100%, positive levels when zoomed out and negative levels when zoomed in. Each
+ * scale is drawn from the level with the smallest tiles that still have at least one tile pixel
+ * per screen pixel, which keeps zoomed out views of large documents down to a handful of tiles.
+ * <p>
+ * Tiles are invalidated by the bounds of the layers that change, and tiles just outside the
+ * viewport in the direction of a fling can be prefetched ahead of time. All methods other than the
+ * tile jobs themselves must be called from the UI thread.
+ */
+public class TileCache {
+
+    public static final int TILE_SIZE = 256;
+
+    public static final int MIN_LEVEL = -5;
+    public static final int MAX_LEVEL = 5;
+
+    // How many rows or columns of tiles ahead of the viewport to render during a fling
+    private static final int PREFETCH_DISTANCE = 2;
+
+    /**
+     * Notified on the UI thread when a tile has finished rendering, with the tile's area in
+     * document coordinates.
+     */
+    public interface OnTileReadyListener {
+        void onTileReady(float left, float top, float right, float bottom);
+    }
+
+    private static class Tile {
+        final long key;
+        final int level;
+        final int tx;
+        final int ty;
+        Bitmap bitmap;
+        boolean stale;
+        // Identifies the render job currently in flight for this tile, 0 if there is none
+        int requestStamp;
+        long lastUsed;
+
+        Tile(long key, int level, int tx, int ty) {
+            this.key = key;
+            this.level = level;
+            this.tx = tx;
+            this.ty = ty;
+        }
+    }
+
+    private final LongSparseArray<Tile> mTiles = new LongSparseArray<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final long mMaxBytes;
+    private final Paint mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mSrc = new Rect();
+    private final RectF mDst = new RectF();
+
+    private ExecutorService mExecutor;
+    private DisplayList mDisplayList;
+    private OnTileReadyListener mListener;
+    private long mFrame;
+    private long mBytes;
+    private int mStamp;
+
+    public TileCache(DisplayList displayList) {
+        mDisplayList = displayList;
+        // Leave most of the heap to the rest of the app
+        mMaxBytes = Runtime.getRuntime().maxMemory() / 8;
+    }
+
+    public void setOnTileReadyListener(OnTileReadyListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the level whose tiles are drawn at the given scale
+     */
+    public static int levelFor(float scale) {
+        // The small epsilon keeps exact powers of two from rounding to the next level
+        int level = (int) Math.floor(-Math.log(scale) / Math.log(2) + 1e-4);
+        return Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level));
+    }
+
+    /**
+     * Returns the size of a tile of the given level in document coordinates
+     */
+    private static float tileSize(int level) {
+        return Math.scalb((float) TILE_SIZE, level);
+    }
+
+    /**
+     * Draws the area of the document within the given rectangle, using cached tiles where they
+     * are up to date and requesting the rest. The canvas is expected to be transformed to document
+     * coordinates.
+     *
+     * @param scale the number of pixels per document pixel the canvas draws at
+     */
+    public void draw(Canvas canvas, float left, float top, float right, float bottom,
+                     float scale) {
+        mFrame++;
+        int level = levelFor(scale);
+        float size = tileSize(level);
+        int minTx = toTile(left, size);
+        int minTy = toTile(top, size);
+        int maxTx = toTile(right, size);
+        int maxTy = toTile(bottom, size);
+
+        for (int ty = minTy; ty <= maxTy; ty++) {
+            for (int tx = minTx; tx <= maxTx; tx++) {
+                Tile tile = obtainTile(level, tx, ty);
+                tile.lastUsed = mFrame;
+                float tileLeft = tx * size;
+                float tileTop = ty * size;
+
+                if (tile.bitmap != null && !tile.stale) {
+                    mDst.set(tileLeft, tileTop, tileLeft + size, tileTop + size);
+                    canvas.drawBitmap(tile.bitmap, null, mDst, mBitmapPaint);
+                } else {
+                    if (!drawFromCoarserLevel(canvas, level, tx, ty)) {
+                        canvas.save();
+                        canvas.clipRect(tileLeft, tileTop, tileLeft + size, tileTop + size);
+                        mDisplayList.draw(canvas, Math.max(left, tileLeft),
+                                Math.max(top, tileTop), Math.min(right, tileLeft + size),
+                                Math.min(bottom, tileTop + size));
+                        canvas.restore();
+                    }
+                    request(tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stands in for a tile that isn't ready with the matching part of the closest cached tile that
+     * covers it on a coarser level, which is blurrier but far cheaper than drawing the shapes.
+     *
+     * @return false if no coarser level has an up to date tile there
+     */
+    private boolean drawFromCoarserLevel(Canvas canvas, int level, int tx, int ty) {
+        for (int parentLevel = level + 1; parentLevel <= MAX_LEVEL; parentLevel++) {
+            int shift = parentLevel - level;
+            Tile parent = mTiles.get(key(parentLevel, tx >> shift, ty >> shift));
+            if (parent == null || parent.bitmap == null || parent.stale) {
+                continue;
+            }
+
+            // The part of the parent's bitmap that covers this tile
+            int size = TILE_SIZE >> shift;
+            if (size == 0) {
+                return false;
+            }
+            int srcLeft = (tx - (parent.tx << shift)) * size;
+            int srcTop = (ty - (parent.ty << shift)) * size;
+            mSrc.set(srcLeft, srcTop, srcLeft + size, srcTop + size);
+
+            float tileSize = tileSize(level);
+            mDst.set(tx * tileSize, ty * tileSize, (tx + 1) * tileSize, (ty + 1) * tileSize);
+            parent.lastUsed = mFrame;
+            canvas.drawBitmap(parent.bitmap, mSrc, mDst, mBitmapPaint);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Requests tiles just beyond the given visible area in the direction the viewport is moving,
+     * so that they are likely to be ready by the time they scroll into view.
+     *
+     * @param dx the horizontal direction the visible area is moving in document coordinates
+     * @param dy the vertical direction the visible area is moving in document coordinates
+     * @param scale the number of pixels per document pixel the area is drawn at
+     */
+    public void prefetch(float left, float top, float right, float bottom, float dx, float dy,
+                         float scale) {
+        int level = levelFor(scale);
+        float size = tileSize(level);
+        int minTx = toTile(left, size);
+        int minTy = toTile(top, size);
+        int maxTx = toTile(right, size);
+        int maxTy = toTile(bottom, size);
+
+        if (dx > 0) {
+            minTx = maxTx + 1;
+            maxTx += PREFETCH_DISTANCE;
+        } else if (dx < 0) {
+            maxTx = minTx - 1;
+            minTx -= PREFETCH_DISTANCE;
+        }
+
+        if (dy > 0) {
+            minTy = maxTy + 1;
+            maxTy += PREFETCH_DISTANCE;
+        } else if (dy < 0) {
+            maxTy = minTy - 1;
+            minTy -= PREFETCH_DISTANCE;
+        }
+
+        if (dx == 0 && dy == 0) {
+            return;
+        }
+
+        for (int ty = minTy; ty <= maxTy; ty++) {
+            for (int tx = minTx; tx <= maxTx; tx++) {
+                Tile tile = obtainTile(level, tx, ty);
+                tile.lastUsed = mFrame;
+                if (tile.bitmap == null || tile.stale) {
+                    request(tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks every tile, on every level, intersecting the given rectangle (in document coordinates)
+     * as stale and discards any render still in flight for them.
+     */
+    public void invalidate(float left, float top, float right, float bottom) {
+        for (int i = 0, n = mTiles.size(); i < n; i++) {
+            Tile tile = mTiles.valueAt(i);
+            float size = tileSize(tile.level);
+            if (tile.tx >= toTile(left, size) && tile.tx <= toTile(right, size)
+                    && tile.ty >= toTile(top, size) && tile.ty <= toTile(bottom, size)) {
+                tile.stale = true;
+                tile.requestStamp = 0;
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        for (int i = 0, n = mTiles.size(); i < n; i++) {
+            Tile tile = mTiles.valueAt(i);
+            tile.stale = true;
+            tile.requestStamp = 0;
+        }
+    }
+
+    /**
+     * Drops all tiles and stops the render threads. The cache can continue to be used afterwards,
+     * new threads are started on demand.
+     */
+    public void release() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        mTiles.clear();
+        mBytes = 0;
+    }
+
+    private Tile obtainTile(int level, int tx, int ty) {
+        long key = key(level, tx, ty);
+        Tile tile = mTiles.get(key);
+        if (tile == null) {
+            tile = new Tile(key, level, tx, ty);
+            mTiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Packs a tile's level and its signed 28 bit column and row into a key
+     */
+    private static long key(int level, int tx, int ty) {
+        return ((long) (level & 0xff) << 56) | ((long) (tx & 0xfffffff) << 28)
+                | (ty & 0xfffffff);
+    }
+
+    private void request(Tile tile) {
+        if (tile.requestStamp != 0) {
+            return;
+        }
+
+        if (mExecutor == null) {
+            mExecutor = Executors.newFixedThreadPool(
+                    Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "TileCache");
+                        }
+                    });
+        }
+
+        final int stamp = ++mStamp;
+        final long key = tile.key;
+        final int level = tile.level;
+        final int tx = tile.tx;
+        final int ty = tile.ty;
+        final DisplayList.Snapshot snapshot = mDisplayList.snapshot();
+        tile.requestStamp = stamp;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = renderTile(snapshot, level, tx, ty);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTileRendered(key, stamp, bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Runs on a render thread
+     */
+    private static Bitmap renderTile(DisplayList.Snapshot snapshot, int level, int tx, int ty) {
+        Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        float size = tileSize(level);
+        float scale = TILE_SIZE / size;
+        float left = tx * size;
+        float top = ty * size;
+        canvas.scale(scale, scale);
+        canvas.translate(-left, -top);
+        snapshot.draw(canvas, left, top, left + size, top + size, scale, new Paint(), new Path());
+        return bitmap;
+    }
+
+    private void onTileRendered(long key, int stamp, Bitmap bitmap) {
+        Tile tile = mTiles.get(key);
+
+        // Discard results for tiles that were invalidated or evicted while rendering
+        if (tile == null || tile.requestStamp != stamp) {
+            return;
+        }
+
+        if (tile.bitmap != null) {
+            mBytes -= tile.bitmap.getByteCount();
+        }
+        tile.bitmap = bitmap;
+        tile.stale = false;
+        tile.requestStamp = 0;
+        mBytes += bitmap.getByteCount();
+        trimToSize();
+
+        if (mListener != null) {
+            float size = tileSize(tile.level);
+            float left = tile.tx * size;
+            float top = tile.ty * size;
+            mListener.onTileReady(left, top, left + size, top + size);
+        }
+    }
+
+    /**
+     * Evicts the least recently drawn tiles until the cache fits within its memory budget. Evicted
+     * bitmaps are left to the garbage collector rather than recycled, since the most recent frame
+     * may still reference them.
+     */
+    private void trimToSize() {
+        // Drop placeholders for tiles that scrolled away before a render was ever kept for them
+        for (int i = mTiles.size() - 1; i >= 0; i--) {
+            Tile tile = mTiles.valueAt(i);
+            if (tile.bitmap == null && tile.requestStamp == 0 && tile.lastUsed < mFrame) {
+                mTiles.removeAt(i);
+            }
+        }
+
+        while (mBytes > mMaxBytes) {
+            int oldest = -1;
+            for (int i = 0, n = mTiles.size(); i < n; i++) {
+                Tile tile = mTiles.valueAt(i);
+                if (tile.bitmap != null
+                        && (oldest < 0 || tile.lastUsed < mTiles.valueAt(oldest).lastUsed)) {
+                    oldest = i;
+                }
+            }
+
+            if (oldest < 0) {
+                break;
+            }
+
+            mBytes -= mTiles.valueAt(oldest).bitmap.getByteCount();
+            mTiles.removeAt(oldest);
+        }
+    }
+
+    private static int toTile(float coord, float tileSize) {
+        return (int) Math.floor(coord / tileSize);
+    }
+}
@@ -153,19 +153,36 @@ public class DocumentViewModel extends BaseObservable {
         return document.getClipboardLayer() != null;
     }
 
+    /**
+     * Starts an edit whose layer property notifications are delivered together on
+     * commitTransaction, see Document.beginTransaction
+     */
+    public void beginTransaction() {
+        document.beginTransaction();
+    }
+
+    public void commitTransaction() {
+        document.commitTransaction();
+    }
+
     public void deleteCurrentLayer() {
         Layer l = getCurrentLayer();
         if (l != null) {
-            if (l instanceof SelectionGroup) {
-                SelectionGroup selection = (SelectionGroup) l;
-                List<Layer> selectedLayers = selection.getLayers();
-                for (Layer layer : selectedLayers) {
-                    document.removeLayer(layer);
+            beginTransaction();
+            try {
+                if (l instanceof SelectionGroup) {
+                    SelectionGroup selection = (SelectionGroup) l;
+                    List<Layer> selectedLayers = selection.getLayers();
+                    for (Layer layer : selectedLayers) {
+                        document.removeLayer(layer);
+                    }
                 }
+                document.removeLayer(l);
+                l = null;
+                setCurrentLayer(null);
+            } finally {
+                commitTransaction();
             }
-            document.removeLayer(l);
-            l = null;
-            setCurrentLayer(null);
         }
     }
 
@@ -226,6 +243,18 @@ public class DocumentViewModel extends BaseObservable {
         }
     }
 
+    @Bindable
+    public float getViewportScale() {
+        return document.getViewportScale();
+    }
+
+    public void setViewportScale(float viewportScale) {
+        if (viewportScale != getViewportScale()) {
+            document.setViewportScale(viewportScale);
+            notifyPropertyChanged(BR.viewportScale);
+        }
+    }
+
     @Bindable
     public int getViewportWidth() {
         return viewportWidth;
@@ -289,32 +318,47 @@ public class DocumentViewModel extends BaseObservable {
         // Center the layer in the current viewport if a majority of the layer in its
         // current position falls outside of the viewport. This effectively centers new layers, who
         // are given an initial x, y values of Integer MIN_VALUE.
-        if (layer.getMidX() < -getViewportX()
-                || layer.getMidX() > -getViewportX() + getViewportWidth()
-                || layer.getMidY() < -getViewportY()
-                || layer.getMidY() > -getViewportY() + getViewportHeight()) {
-            layer.setX(-getViewportX() + getViewportWidth() / 2 - layer.getWidth() / 2);
-            layer.setY(-getViewportY() + getViewportHeight() / 2 - layer.getHeight() / 2);
-        }
+        float scale = getViewportScale();
+        float left = -getViewportX() / scale;
+        float top = -getViewportY() / scale;
+        float width = getViewportWidth() / scale;
+        float height = getViewportHeight() / scale;
+        beginTransaction();
+        try {
+            if (layer.getMidX() < left
+                    || layer.getMidX() > left + width
+                    || layer.getMidY() < top
+                    || layer.getMidY() > top + height) {
+                layer.setX(left + width / 2 - layer.getWidth() / 2);
+                layer.setY(top + height / 2 - layer.getHeight() / 2);
+            }
 
-        layer.setSelected(true);
-        document.addLayer(layer);
-        setCurrentLayer(layer);
+            layer.setSelected(true);
+            document.addLayer(layer);
+            setCurrentLayer(layer);
+        } finally {
+            commitTransaction();
+        }
     }
 
     public void convertSelectionToGroup() {
         Layer l = getCurrentLayer();
         if (l != null) {
-            LayerGroup g;
-            if (l instanceof SelectionGroup) {
-                g = ((SelectionGroup) l).copy();
-                deleteCurrentLayer();
-            } else {
-                document.removeLayer(l);
-                g = new LayerGroup();
-                g.addLayer(l);
+            beginTransaction();
+            try {
+                LayerGroup g;
+                if (l instanceof SelectionGroup) {
+                    g = ((SelectionGroup) l).copy();
+                    deleteCurrentLayer();
+                } else {
+                    document.removeLayer(l);
+                    g = new LayerGroup();
+                    g.addLayer(l);
+                }
+                addLayer(g);
+            } finally {
+                commitTransaction();
             }
-            addLayer(g);
         }
     }
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.model;
+
+import com.android.example.spline.util.Allocations;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeBusTest {
+
+    private static final int MOVES = 10000;
+
+    private Document mDocument;
+    private ChangeBus mBus;
+    private RectLayer mLayer;
+    private final List<String> mDelivered = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mDocument = new Document();
+        mBus = mDocument.getChangeBus();
+        mLayer = new RectLayer();
+        mLayer.setWidth(10);
+        mLayer.setHeight(10);
+        mDocument.addLayer(mLayer);
+    }
+
+    @Test
+    public void movesDoNotAllocate() {
+        mBus.addListener(new ChangeBus.Listener() {
+            @Override
+            public void onLayersChanged(List<ChangeBus.Change> changes) {
+                for (int i = 0; i < changes.size(); i++) {
+                    changes.get(i).getNewBounds();
+                }
+            }
+        });
+        mBus.addListener(mLayer, new ChangeBus.Listener() {
+            @Override
+            public void onLayersChanged(List<ChangeBus.Change> changes) {
+                changes.get(0).getOldBounds();
+            }
+        });
+        Runnable moves = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < MOVES; i++) {
+                    mLayer.setX(i % 100);
+                }
+            }
+        };
+        moves.run();
+
+        // Allows for the odd allocation of the JVM itself, each move used to take hundreds of bytes
+        long allocated = new Allocations().measure(moves);
+        assertTrue("Allocated " + allocated + " bytes", allocated < MOVES / 10);
+    }
+
+    @Test
+    public void listenerCanUnsubscribeWhileNotified() {
+        final ChangeBus.Listener first = new ChangeBus.Listener() {
+            @Override
+            public void onLayersChanged(List<ChangeBus.Change> changes) {
+                mDelivered.add("first");
+                mBus.removeListener(this);
+            }
+        };
+        mBus.addListener(first);
+        mBus.addListener(new ChangeBus.Listener() {
+            @Override
+            public void onLayersChanged(List<ChangeBus.Change> changes) {
+                mDelivered.add("second");
+            }
+        });
+
+        mLayer.setX(5);
+        mLayer.setX(6);
+        assertEquals(3, mDelivered.size());
+        assertEquals("second", mDelivered.get(2));
+    }
+
+    @Test
+    public void changesMadeByListenersFollow() {
+        final RectLayer other = new RectLayer();
+        mDocument.addLayer(other);
+        mBus.addListener(new ChangeBus.Listener() {
+            @Override
+            public void onLayersChanged(List<ChangeBus.Change> changes) {
+                for (int i = 0; i < changes.size(); i++) {
+                    ChangeBus.Change change = changes.get(i);
+                    mDelivered.add(change.getLayer() == mLayer ? "layer" : "other");
+                    if (change.getLayer() == mLayer) {
+                        // Delivered once every listener has heard of the current changes
+                        other.setX(change.getNewBounds().left);
+                    }
+                }
+            }
+        });
+        mBus.addListener(new ChangeBus.Listener() {
+            @Override
+            public void onLayersChanged(List<ChangeBus.Change> changes) {
+                mDelivered.add("last");
+            }
+        });
+
+        mLayer.setX(20);
+        assertEquals(20, other.getX(), 0);
+        assertEquals("[layer, last, other, last]", mDelivered.toString());
+    }
+}
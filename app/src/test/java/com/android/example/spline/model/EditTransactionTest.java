@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.model;
+
+import android.databinding.Observable;
+
+import com.android.example.spline.BR;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class EditTransactionTest {
+
+    private Document mDocument;
+    private RectLayer mLayer;
+    private final List<Integer> mNotified = new ArrayList<>();
+    private int mBatches;
+
+    @Before
+    public void setUp() {
+        mDocument = new Document();
+        mLayer = createRect(0, 0);
+        mDocument.addLayer(mLayer);
+        mLayer.addOnPropertyChangedCallback(new Observable.OnPropertyChangedCallback() {
+            @Override
+            public void onPropertyChanged(Observable sender, int propertyId) {
+                mNotified.add(propertyId);
+            }
+        });
+        mDocument.getChangeBus().addListener(new ChangeBus.Listener() {
+            @Override
+            public void onLayersChanged(List<ChangeBus.Change> changes) {
+                mBatches++;
+            }
+        });
+    }
+
+    @Test
+    public void defersUntilOutermostCommit() {
+        mDocument.beginTransaction();
+        mDocument.beginTransaction();
+        mLayer.setX(10);
+        mDocument.commitTransaction();
+        mLayer.setY(10);
+        assertEquals(0, mNotified.size());
+        assertEquals(0, mBatches);
+
+        mDocument.commitTransaction();
+        assertEquals(1, mNotified.size());
+        assertEquals(BR._all, (int) mNotified.get(0));
+        assertEquals(1, mBatches);
+    }
+
+    @Test
+    public void otherDocumentsAreNotHeldBack() {
+        Document other = new Document();
+        RectLayer otherLayer = createRect(0, 0);
+        other.addLayer(otherLayer);
+        final List<Integer> notified = new ArrayList<>();
+        otherLayer.addOnPropertyChangedCallback(new Observable.OnPropertyChangedCallback() {
+            @Override
+            public void onPropertyChanged(Observable sender, int propertyId) {
+                notified.add(propertyId);
+            }
+        });
+
+        mDocument.beginTransaction();
+        otherLayer.setX(10);
+        assertFalse(notified.isEmpty());
+        mDocument.commitTransaction();
+    }
+
+    @Test
+    public void groupMoveIsOneBatch() {
+        LayerGroup group = new LayerGroup();
+        group.addLayer(createRect(0, 0));
+        group.addLayer(createRect(20, 20));
+        mDocument.addLayer(group);
+        mBatches = 0;
+
+        EditTransaction transaction = group.getTransaction();
+        transaction.begin();
+        try {
+            group.setX(5);
+            group.setY(5);
+        } finally {
+            transaction.commit();
+        }
+        assertEquals(1, mBatches);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void commitWithoutBegin() {
+        mDocument.commitTransaction();
+    }
+
+    private static RectLayer createRect(float x, float y) {
+        RectLayer rect = new RectLayer();
+        rect.setX(x);
+        rect.setY(y);
+        rect.setWidth(10);
+        rect.setHeight(10);
+        return rect;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.model;
+
+import com.android.example.spline.util.Allocations;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LayerIndexTest {
+
+    private Document mDocument;
+    private LayerGroup mRoot;
+
+    @Before
+    public void setUp() {
+        mDocument = new Document();
+        mRoot = mDocument.getRoot();
+    }
+
+    /**
+     * A child that moves twice, with a query of the root in between, must still move its group in
+     * the root's index the second time
+     */
+    @Test
+    public void nestedMoveAfterParentQuery() {
+        LayerGroup group = new LayerGroup();
+        Layer child = createRect(0, 0, 10, 10);
+        group.addLayer(child);
+        mRoot.addLayer(group);
+
+        assertEquals(Collections.singletonList(group), findAt(mRoot, 5, 5));
+        assertEquals(Collections.singletonList(child), findAt(group, 5, 5));
+
+        child.setX(100);
+        // Flushes the root's index only, the child is still dirty in the group's
+        assertEquals(Collections.singletonList(group), findAt(mRoot, 105, 5));
+
+        child.setX(200);
+        assertEquals(Collections.singletonList(group), findAt(mRoot, 205, 5));
+        assertEquals(Collections.<Layer>emptyList(), findAt(mRoot, 105, 5));
+        assertEquals(Collections.singletonList(child), findAt(group, 205, 5));
+    }
+
+    @Test
+    public void nestedResizeAfterParentQuery() {
+        LayerGroup outer = new LayerGroup();
+        LayerGroup inner = new LayerGroup();
+        Layer child = createRect(0, 0, 10, 10);
+        inner.addLayer(child);
+        outer.addLayer(inner);
+        mRoot.addLayer(outer);
+        findAt(inner, 0, 0);
+        findAt(outer, 0, 0);
+
+        child.setWidth(50);
+        assertEquals(Collections.singletonList(outer), findAt(mRoot, 40, 5));
+        child.setWidth(90);
+        assertEquals(Collections.singletonList(outer), findAt(mRoot, 80, 5));
+        assertEquals(Collections.singletonList(inner), findAt(outer, 80, 5));
+    }
+
+    @Test
+    public void groupOutsideDocumentFollowsMoves() {
+        LayerGroup group = new LayerGroup();
+        Layer child = createRect(0, 0, 10, 10);
+        group.addLayer(child);
+        assertEquals(Collections.singletonList(child), findAt(group, 5, 5));
+
+        child.setX(100);
+        assertEquals(Collections.singletonList(child), findAt(group, 105, 5));
+        assertEquals(Collections.<Layer>emptyList(), findAt(group, 5, 5));
+    }
+
+    @Test
+    public void groupMovedBeforeJoiningDocument() {
+        LayerGroup group = new LayerGroup();
+        Layer child = createRect(0, 0, 10, 10);
+        group.addLayer(child);
+        mRoot.addLayer(group);
+        assertEquals(Collections.singletonList(child), findAt(group, 5, 5));
+
+        mRoot.removeLayer(group);
+        child.setX(100);
+        mRoot.addLayer(group);
+        assertEquals(Collections.singletonList(child), findAt(group, 105, 5));
+        assertEquals(Collections.singletonList(group), findAt(mRoot, 105, 5));
+    }
+
+    /**
+     * Inserting at the front, and repeatedly at the same spot, which runs out of room between keys
+     */
+    @Test
+    public void insertsKeepZOrder() {
+        Random random = new Random(5);
+        for (int i = 0; i < 300; i++) {
+            Layer shape = createRect(random.nextInt(100), random.nextInt(100), 50, 50);
+            int position = i % 3 == 0 ? 0 : Math.min(1, mRoot.getLayers().size());
+            mRoot.getLayers().add(position, shape);
+            shape.setParent(mRoot);
+            if (i % 5 == 0) {
+                mRoot.getLayers().remove(random.nextInt(mRoot.getLayers().size()));
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            float x = random.nextInt(150);
+            float y = random.nextInt(150);
+            assertEquals(linearFindAt(mRoot, x, y), findAt(mRoot, x, y));
+        }
+    }
+
+    /**
+     * Random edits of a three level tree, queried at random levels, against a linear search
+     */
+    @Test
+    public void matchesLinearSearch() {
+        Random random = new Random(3);
+        List<Layer> shapes = new ArrayList<>();
+        List<LayerGroup> groups = new ArrayList<>();
+        groups.add(mRoot);
+        for (int i = 0; i < 8; i++) {
+            LayerGroup group = new LayerGroup();
+            groups.get(random.nextInt(groups.size())).addLayer(group);
+            groups.add(group);
+        }
+        for (int i = 0; i < 200; i++) {
+            Layer shape = createRect(random.nextInt(1000), random.nextInt(1000),
+                    5 + random.nextInt(100), 5 + random.nextInt(100));
+            groups.get(random.nextInt(groups.size())).addLayer(shape);
+            shapes.add(shape);
+        }
+
+        for (int step = 0; step < 5000; step++) {
+            Layer shape = shapes.get(random.nextInt(shapes.size()));
+            switch (random.nextInt(4)) {
+                case 0:
+                    shape.setX(random.nextInt(1000));
+                    break;
+                case 1:
+                    shape.setY(random.nextInt(1000));
+                    break;
+                case 2:
+                    shape.setWidth(5 + random.nextInt(100));
+                    break;
+                default:
+                    shape.setHeight(5 + random.nextInt(100));
+                    break;
+            }
+
+            LayerGroup group = groups.get(random.nextInt(groups.size()));
+            float x = random.nextInt(1100);
+            float y = random.nextInt(1100);
+            assertEquals("Step " + step, linearFindAt(group, x, y), findAt(group, x, y));
+        }
+    }
+
+    @Test
+    public void draggingDoesNotAllocate() {
+        Random random = new Random(7);
+        final List<Layer> shapes = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            Layer shape = createRect(random.nextInt(1000), random.nextInt(1000), 20, 20);
+            mRoot.addLayer(shape);
+            shapes.add(shape);
+        }
+        final List<Layer> hits = new ArrayList<>();
+        Runnable drag = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 2000; i++) {
+                    Layer shape = shapes.get(i % 50);
+                    shape.setX((shape.getX() + 37) % 1000);
+                    shape.setY((shape.getY() + 53) % 1000);
+                    mRoot.findLayersAt(i % 1000, (i * 7) % 1000, hits);
+                    hits.clear();
+                }
+            }
+        };
+        // Until the pool of tree nodes has grown to what the drag needs
+        for (int i = 0; i < 5; i++) {
+            drag.run();
+        }
+
+        // Allows for the odd node the tree grows by, each step used to allocate tens of bytes
+        long allocated = new Allocations().measure(drag);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static List<Layer> findAt(LayerGroup group, float x, float y) {
+        List<Layer> layers = new ArrayList<>();
+        group.findLayersAt(x, y, layers);
+        return layers;
+    }
+
+    private static List<Layer> linearFindAt(LayerGroup group, float x, float y) {
+        List<Layer> layers = new ArrayList<>();
+        List<Layer> children = group.getLayers();
+        for (int i = children.size() - 1; i >= 0; i--) {
+            Layer l = children.get(i);
+            if (!(l instanceof LayerGroup && ((LayerGroup) l).getLayers().isEmpty())
+                    && l.inBounds(x, y)) {
+                layers.add(l);
+            }
+        }
+        return layers;
+    }
+
+    private static Layer createRect(float x, float y, float width, float height) {
+        RectLayer rect = new RectLayer();
+        rect.setX(x);
+        rect.setY(y);
+        rect.setWidth(width);
+        rect.setHeight(height);
+        return rect;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SelectionGroupTest {
+
+    private Document mDocument;
+    private LayerGroup mGroup;
+    private Layer mNested;
+    private Layer mShape;
+    private Layer mOther;
+    private SelectionGroup mSelection;
+
+    @Before
+    public void setUp() {
+        mDocument = new Document();
+        mGroup = new LayerGroup();
+        mNested = createRect(0, 0, 10, 10);
+        mGroup.addLayer(mNested);
+        mShape = createRect(50, 50, 10, 10);
+        mOther = createRect(200, 200, 10, 10);
+        mDocument.addLayer(mGroup);
+        mDocument.addLayer(mShape);
+        mDocument.addLayer(mOther);
+
+        mSelection = new SelectionGroup();
+        mSelection.addLayer(mGroup);
+        mSelection.addLayer(mShape);
+        mDocument.setCurrentLayer(mSelection);
+    }
+
+    @Test
+    public void unrelatedEditKeepsBounds() {
+        assertEquals(60, mSelection.getRight(), 0);
+        mOther.setX(500);
+        assertTrue(mSelection.isBoundsCached());
+    }
+
+    @Test
+    public void memberMoveInvalidatesBounds() {
+        assertEquals(60, mSelection.getRight(), 0);
+        mShape.setX(100);
+        assertFalse(mSelection.isBoundsCached());
+        assertEquals(110, mSelection.getRight(), 0);
+    }
+
+    @Test
+    public void nestedMoveInvalidatesBounds() {
+        assertEquals(0, mSelection.getX(), 0);
+        mNested.setX(-30);
+        assertEquals(-30, mSelection.getX(), 0);
+    }
+
+    @Test
+    public void deselectedSelectionIsReleased() {
+        assertEquals(60, mSelection.getRight(), 0);
+        mDocument.setCurrentLayer(mOther);
+        mShape.setX(100);
+        assertFalse(mSelection.isBoundsCached());
+        assertEquals(110, mSelection.getRight(), 0);
+
+        // Selecting it again tracks its layers once more
+        mDocument.setCurrentLayer(mSelection);
+        assertEquals(110, mSelection.getRight(), 0);
+        mOther.setX(600);
+        assertTrue(mSelection.isBoundsCached());
+        mShape.setX(20);
+        assertEquals(30, mSelection.getRight(), 0);
+    }
+
+    private static Layer createRect(float x, float y, float width, float height) {
+        RectLayer rect = new RectLayer();
+        rect.setX(x);
+        rect.setY(y);
+        rect.setWidth(width);
+        rect.setHeight(height);
+        return rect;
+    }
+}
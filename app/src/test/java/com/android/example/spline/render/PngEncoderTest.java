@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.render;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PngEncoderTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        int width = 97;
+        int height = 61;
+        int[] pixels = new int[width * height];
+        Random random = new Random(2);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        // Flat runs, which the Sub filter turns into zeros
+        for (int i = 0; i < width * 10; i++) {
+            pixels[i] = 0x80ff8000;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngEncoder encoder = new PngEncoder(out, width, height);
+        // In uneven bands, from a buffer with a wider stride than the image
+        int stride = width + 3;
+        int[] buffer = new int[stride * height];
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(pixels, row * width, buffer, row * stride, width);
+        }
+        encoder.writeRows(buffer, 0, stride, 7);
+        encoder.writeRows(buffer, 7 * stride, stride, 50);
+        encoder.writeRows(buffer, 57 * stride, stride, height - 57);
+        encoder.finish();
+
+        assertArrayEquals(pixels, decode(out.toByteArray(), width, height));
+    }
+
+    @Test
+    public void exportMatchesRender() throws IOException {
+        // Taller than a band, so that several bands are rendered and encoded
+        int width = 300;
+        int height = 700;
+        Scene scene = TiledRendererTest.createScene();
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            TiledRenderer renderer = new TiledRenderer(pool);
+            int[] pixels = renderer.render(scene, 0, 0, 2, width, height);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            renderer.exportPng(scene, 0, 0, 2, width, height, out);
+            assertArrayEquals(pixels, decode(out.toByteArray(), width, height));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finishRequiresAllRows() throws IOException {
+        PngEncoder encoder = new PngEncoder(new ByteArrayOutputStream(), 4, 4);
+        encoder.writeRows(new int[16], 0, 4, 3);
+        encoder.finish();
+    }
+
+    private static int[] decode(byte[] png, int width, int height) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        return image.getRGB(0, 0, width, height, null, 0, width);
+    }
+}
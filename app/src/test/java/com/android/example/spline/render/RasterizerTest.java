@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.render;
+
+import com.android.example.spline.util.ShapeUtils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks rasterized shapes against the hit tests of ShapeUtils. The Rasterizer samples each pixel
+ * row at four heights, so a pixel is fully covered if the shape contains the whole width of the
+ * pixel at each of those heights, and empty if it contains none of it.
+ */
+public class RasterizerTest {
+
+    private static final int SIZE = 64;
+    private static final int SUBSAMPLES = 4;
+    // Points tested along each sampled row of a pixel to decide that the shape misses it
+    private static final int MISS_SAMPLES = 64;
+    private static final int COLOR = 0xff3366cc;
+
+    @Test
+    public void rectMatchesHitTest() {
+        checkShape(Scene.TYPE_RECT, 10.25f, 8.5f, 50.75f, 40.4f);
+    }
+
+    @Test
+    public void ovalMatchesHitTest() {
+        checkShape(Scene.TYPE_OVAL, 6.3f, 12.1f, 57.7f, 51.9f);
+    }
+
+    @Test
+    public void triangleMatchesHitTest() {
+        checkShape(Scene.TYPE_TRIANGLE, 4.6f, 3.2f, 60.1f, 55.5f);
+    }
+
+    @Test
+    public void flippedTriangleMatchesHitTest() {
+        checkShape(Scene.TYPE_TRIANGLE, 58.5f, 60.2f, 7.25f, 5.75f);
+    }
+
+    @Test
+    public void translucentGroupIsCompositedOnce() {
+        // Two overlapping opaque rects in a half transparent group show the same alpha everywhere
+        Scene scene = new Scene.Builder()
+                .beginGroup(128)
+                .addShape(Scene.TYPE_RECT, 0, 0, 40, 40, COLOR)
+                .addShape(Scene.TYPE_RECT, 20, 20, 60, 60, COLOR)
+                .endGroup()
+                .build();
+        int[] pixels = render(scene);
+        assertEquals(128, pixels[10 * SIZE + 10] >>> 24);
+        assertEquals(128, pixels[30 * SIZE + 30] >>> 24);
+        assertEquals(0, pixels[50 * SIZE + 10]);
+    }
+
+    private static void checkShape(int type, float left, float top, float right, float bottom) {
+        Scene scene = new Scene.Builder().addShape(type, left, top, right, bottom, COLOR).build();
+        int[] pixels = render(scene);
+
+        int full = 0;
+        int empty = 0;
+        for (int row = 0; row < SIZE; row++) {
+            for (int col = 0; col < SIZE; col++) {
+                int pixel = pixels[row * SIZE + col];
+                String at = " at " + col + ", " + row;
+                if (coversPixel(type, left, top, right, bottom, col, row)) {
+                    assertEquals("Covered pixel" + at, COLOR, pixel);
+                    full++;
+                } else if (missesPixel(type, left, top, right, bottom, col, row)) {
+                    assertEquals("Empty pixel" + at, 0, pixel);
+                    empty++;
+                }
+                // Anything else is an edge pixel, partially covered
+            }
+        }
+        // Make sure the shape and its surroundings were actually tested
+        assertTrue(full > 100);
+        assertTrue(empty > 100);
+    }
+
+    private static int[] render(Scene scene) {
+        int[] pixels = new int[SIZE * SIZE];
+        new Rasterizer().render(scene, 0, 0, 1, 0, 0, SIZE, SIZE, pixels, 0, SIZE);
+        return pixels;
+    }
+
+    /**
+     * All shapes are convex, so containing both ends of a row means containing the whole row
+     */
+    private static boolean coversPixel(int type, float left, float top, float right, float bottom,
+                                       int col, int row) {
+        for (int s = 0; s < SUBSAMPLES; s++) {
+            float y = row + (s + 0.5f) / SUBSAMPLES;
+            if (!hit(type, left, top, right, bottom, col, y)
+                    || !hit(type, left, top, right, bottom, col + 1, y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean missesPixel(int type, float left, float top, float right, float bottom,
+                                       int col, int row) {
+        for (int s = 0; s < SUBSAMPLES; s++) {
+            float y = row + (s + 0.5f) / SUBSAMPLES;
+            for (int i = 0; i <= MISS_SAMPLES; i++) {
+                if (hit(type, left, top, right, bottom, col + i / (float) MISS_SAMPLES, y)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean hit(int type, float left, float top, float right, float bottom,
+                               float x, float y) {
+        switch (type) {
+            case Scene.TYPE_RECT:
+                return ShapeUtils.inRect(left, top, right, bottom, x, y);
+            case Scene.TYPE_TRIANGLE:
+                return ShapeUtils.inTriangle(left, top, right, bottom, x, y);
+            default:
+                return ShapeUtils.inOval(left, top, right, bottom, x, y);
+        }
+    }
+}
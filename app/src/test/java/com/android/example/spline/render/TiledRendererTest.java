@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.render;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class TiledRendererTest {
+
+    // Not a multiple of the tile size, so the last row and column of tiles are partial
+    private static final int WIDTH = 600;
+    private static final int HEIGHT = 520;
+
+    @Test
+    public void tiledRenderMatchesUntiled() {
+        Scene scene = createScene();
+        float originX = -12.5f;
+        float originY = 7.25f;
+        float scale = 1.5f;
+
+        int[] untiled = new int[WIDTH * HEIGHT];
+        new Rasterizer().render(scene, originX, originY, scale, 0, 0, WIDTH, HEIGHT, untiled, 0,
+                WIDTH);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            int[] tiled = new TiledRenderer(pool).render(scene, originX, originY, scale, WIDTH,
+                    HEIGHT);
+            assertArrayEquals(untiled, tiled);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Shapes of every type scattered across tile boundaries, some of them in translucent groups
+     */
+    static Scene createScene() {
+        Random random = new Random(1);
+        Scene.Builder builder = new Scene.Builder();
+        for (int i = 0; i < 150; i++) {
+            if (i % 25 == 0) {
+                builder.beginGroup(64 + random.nextInt(192));
+            }
+
+            int type = Scene.TYPE_RECT + random.nextInt(3);
+            float left = random.nextFloat() * 420 - 20;
+            float top = random.nextFloat() * 360 - 20;
+            float right = left + 5 + random.nextFloat() * 90;
+            float bottom = top + 5 + random.nextFloat() * 90;
+            int color = random.nextInt() | (random.nextBoolean() ? 0xff000000 : 0);
+            builder.addShape(type, left, top, right, bottom, color);
+
+            if (i % 25 == 24) {
+                builder.endGroup();
+            }
+        }
+        return builder.build();
+    }
+}
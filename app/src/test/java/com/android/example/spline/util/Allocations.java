@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.util;
+
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the bytes allocated on the current thread, as counted by the JVM. Tests using it are
+ * skipped on JVMs that don't count allocations.
+ */
+public class Allocations {
+
+    private final com.sun.management.ThreadMXBean mBean;
+    private final long mThreadId = Thread.currentThread().getId();
+
+    public Allocations() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        mBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(mBean.isThreadAllocatedMemorySupported());
+        mBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far
+     */
+    public long get() {
+        return mBean.getThreadAllocatedBytes(mThreadId);
+    }
+
+    /**
+     * @return the bytes the current thread allocated while running the given code
+     */
+    public long measure(Runnable runnable) {
+        long start = get();
+        runnable.run();
+        return get() - start;
+    }
+}
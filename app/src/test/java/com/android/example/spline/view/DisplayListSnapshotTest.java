@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.view;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+import com.android.example.spline.model.ChangeBus;
+import com.android.example.spline.model.Layer;
+import com.android.example.spline.model.LayerGroup;
+import com.android.example.spline.model.OvalLayer;
+import com.android.example.spline.model.RectLayer;
+import com.android.example.spline.model.ShapeLayer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DisplayListSnapshotTest {
+
+    private static final int LAYER_COUNT = 5000;
+
+    private LayerGroup mRoot;
+    private final List<Layer> mLayers = new ArrayList<>();
+    private DisplayList mDisplayList;
+
+    @Before
+    public void setUp() {
+        mRoot = new LayerGroup();
+        LayerGroup group = null;
+        for (int i = 0; i < LAYER_COUNT; i++) {
+            if (i % 100 == 0) {
+                group = new LayerGroup();
+                mRoot.addLayer(group);
+            }
+            ShapeLayer shape = i % 2 == 0 ? new RectLayer() : new OvalLayer();
+            shape.setX((i % 100) * 10);
+            shape.setY((i / 100) * 10);
+            shape.setWidth(8);
+            shape.setHeight(8);
+            group.addLayer(shape);
+            mLayers.add(shape);
+        }
+
+        mDisplayList = new DisplayList();
+        mDisplayList.setRoot(mRoot);
+    }
+
+    @Test
+    public void unchangedListReturnsSameSnapshot() {
+        DisplayList.Snapshot snapshot = mDisplayList.snapshot();
+        assertSame(snapshot, mDisplayList.snapshot());
+    }
+
+    @Test
+    public void editSharesUnchangedChunks() {
+        DisplayList.Snapshot before = mDisplayList.snapshot();
+        int chunks = (mDisplayList.size() + DisplayList.Snapshot.CHUNK_SIZE - 1)
+                / DisplayList.Snapshot.CHUNK_SIZE;
+
+        // Only the chunks holding the moved layer and its group's node are copied
+        move(mLayers.get(LAYER_COUNT / 2 + 10), 3, 4);
+        DisplayList.Snapshot after = mDisplayList.snapshot();
+        assertNotSame(before, after);
+        assertTrue(after.getSharedChunkCount(before) >= chunks - 2);
+
+        assertEquals(record(fullSnapshot()), record(after));
+    }
+
+    @Test
+    public void undrawnChangeKeepsSnapshot() {
+        DisplayList.Snapshot before = mDisplayList.snapshot();
+        Layer layer = mLayers.get(10);
+        layer.setName("Renamed");
+        mDisplayList.invalidateLayer(layer, ChangeBus.CHANGE_NAME | ChangeBus.CHANGE_SELECTION);
+        assertSame(before, mDisplayList.snapshot());
+    }
+
+    @Test
+    public void colorChangeLeavesGroupUntouched() {
+        DisplayList.Snapshot before = mDisplayList.snapshot();
+        int chunks = (mDisplayList.size() + DisplayList.Snapshot.CHUNK_SIZE - 1)
+                / DisplayList.Snapshot.CHUNK_SIZE;
+
+        // The group's bounds aren't recomputed, so only the layer's own chunk is copied
+        mDisplayList.invalidateLayer(mLayers.get(LAYER_COUNT / 2 + 10), ChangeBus.CHANGE_COLOR);
+        DisplayList.Snapshot after = mDisplayList.snapshot();
+        assertNotSame(before, after);
+        assertEquals(chunks - 1, after.getSharedChunkCount(before));
+    }
+
+    @Test
+    public void snapshotsMatchRebuiltList() {
+        DisplayList.Snapshot snapshot = mDisplayList.snapshot();
+        for (int i = 0; i < 50; i++) {
+            Layer layer = mLayers.get((i * 997) % LAYER_COUNT);
+            move(layer, i - 25, 25 - i);
+            if (i % 7 == 0) {
+                layer.setVisible(!layer.isVisible());
+                mDisplayList.invalidateLayer(layer, ChangeBus.CHANGE_VISIBILITY);
+            }
+            snapshot = mDisplayList.snapshot();
+        }
+        assertEquals(record(fullSnapshot()), record(snapshot));
+    }
+
+    @Test
+    public void structureChangeCopiesEverything() {
+        DisplayList.Snapshot before = mDisplayList.snapshot();
+        mRoot.addLayer(new RectLayer());
+        mDisplayList.invalidateStructure(mRoot.getLayers());
+        assertEquals(0, mDisplayList.snapshot().getSharedChunkCount(before));
+    }
+
+    private void move(Layer layer, float dx, float dy) {
+        layer.setX(layer.getX() + dx);
+        layer.setY(layer.getY() + dy);
+        mDisplayList.invalidateLayer(layer, ChangeBus.CHANGE_GEOMETRY);
+    }
+
+    /**
+     * Takes a snapshot of the current tree from scratch
+     */
+    private DisplayList.Snapshot fullSnapshot() {
+        DisplayList list = new DisplayList();
+        list.setRoot(mRoot);
+        return list.snapshot();
+    }
+
+    private static List<String> record(DisplayList.Snapshot snapshot) {
+        RecordingCanvas canvas = new RecordingCanvas();
+        snapshot.draw(canvas, -1000, -1000, 10000, 10000, 1, new Paint(), new Path());
+        return canvas.calls;
+    }
+
+    private static class RecordingCanvas extends Canvas {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+            calls.add("rect " + left + " " + top + " " + right + " " + bottom);
+        }
+
+        @Override
+        public void drawOval(float left, float top, float right, float bottom, Paint paint) {
+            calls.add("oval " + left + " " + top + " " + right + " " + bottom);
+        }
+
+        @Override
+        public void drawPath(Path path, Paint paint) {
+            calls.add("path");
+        }
+    }
+}
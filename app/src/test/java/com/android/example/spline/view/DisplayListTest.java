@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.example.spline.view;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+import com.android.example.spline.model.ChangeBus;
+import com.android.example.spline.model.Layer;
+import com.android.example.spline.model.LayerGroup;
+import com.android.example.spline.model.OvalLayer;
+import com.android.example.spline.model.RectLayer;
+import com.android.example.spline.model.ShapeLayer;
+import com.android.example.spline.model.TriangleLayer;
+import com.android.example.spline.util.Allocations;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class DisplayListTest {
+
+    private static final int FRAMES = 1000;
+
+    private LayerGroup mRoot;
+    private Layer mShape;
+    private DisplayList mDisplayList;
+    private Canvas mCanvas;
+
+    @Before
+    public void setUp() {
+        mRoot = new LayerGroup();
+        for (int i = 0; i < 10; i++) {
+            mRoot.addLayer(createShape(i, i * 20, i * 10));
+        }
+
+        // Large enough to be cached as a bitmap once it has been drawn unchanged for a few frames
+        LayerGroup group = new LayerGroup();
+        group.setOpacity(50);
+        for (int i = 0; i < DisplayList.DEFAULT_GROUP_CACHE_THRESHOLD + 8; i++) {
+            group.addLayer(createShape(i, 300 + i * 5, 300 + i * 5));
+        }
+        mRoot.addLayer(group);
+
+        mShape = createShape(0, 50, 50);
+        mRoot.addLayer(mShape);
+
+        mDisplayList = new DisplayList();
+        mDisplayList.setRoot(mRoot);
+        mCanvas = new Canvas();
+    }
+
+    @Test
+    public void steadyFrameDoesNotAllocate() {
+        // Builds the list, then lets the group's cache settle
+        drawFrames(4);
+
+        assertNoAllocations(new Runnable() {
+            @Override
+            public void run() {
+                drawFrames(FRAMES);
+            }
+        });
+    }
+
+    @Test
+    public void movedLayerDoesNotAllocate() {
+        drawFrames(4);
+
+        assertNoAllocations(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < FRAMES; i++) {
+                    mShape.setX(50 + i % 2 * 10);
+                    mDisplayList.invalidateLayer(mShape, ChangeBus.CHANGE_GEOMETRY);
+                    drawFrames(1);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void steadyFrameDoesNotAllocateWithMeshRendering() {
+        mDisplayList.setMeshRenderingEnabled(true);
+        drawFrames(4);
+
+        assertNoAllocations(new Runnable() {
+            @Override
+            public void run() {
+                drawFrames(FRAMES);
+            }
+        });
+    }
+
+    /**
+     * Zoomed out far enough for every shape to be aggregated into cells
+     */
+    @Test
+    public void snapshotDrawDoesNotAllocate() {
+        final DisplayList.Snapshot snapshot = mDisplayList.snapshot();
+        final Paint paint = new Paint();
+        final Path path = new Path();
+        final Runnable draw = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < FRAMES; i++) {
+                    snapshot.draw(mCanvas, 0, 0, 100000, 100000, 0.01f, paint, path);
+                }
+            }
+        };
+        draw.run();
+
+        assertNoAllocations(draw);
+    }
+
+    private void drawFrames(int count) {
+        for (int i = 0; i < count; i++) {
+            mDisplayList.draw(mCanvas, 0, 0, 1000, 1000);
+        }
+    }
+
+    private static void assertNoAllocations(Runnable runnable) {
+        // Allows for the odd allocation of the JVM itself, far less than one per frame
+        long allocated = new Allocations().measure(runnable);
+        assertTrue("Allocated " + allocated + " bytes", allocated < FRAMES);
+    }
+
+    private static ShapeLayer createShape(int kind, float x, float y) {
+        ShapeLayer shape;
+        switch (kind % 3) {
+            case 0:
+                shape = new RectLayer();
+                break;
+            case 1:
+                shape = new OvalLayer();
+                break;
+            default:
+                shape = new TriangleLayer();
+                break;
+        }
+        shape.setX(x);
+        shape.setY(y);
+        shape.setWidth(40);
+        shape.setHeight(30);
+        return shape;
+    }
+}